@@ -0,0 +1,59 @@
+/**
+ * Compares broadcasting a chat message by encoding it once per
+ * recipient, as the server used to through each client's PrintWriter,
+ * with encoding it once and sharing the Frame between all recipients.
+ *
+ *     java -cp bin BroadcastBenchmark
+ *
+ * Recipients are sink sessions whose writer takes every frame off the
+ * queue straight away, so the figures cover building, encoding and
+ * queueing the message but no socket I/O.
+ */
+public class BroadcastBenchmark {
+
+    private static final String TEXT = "has anyone seen the build logs from last night?";
+
+    public static void main(String[] args) {
+        for (int recipients : new int[] { 1000, 10000 }) {
+            final SessionRegistry sessions = new SessionRegistry();
+            for (int i = 0; i < recipients; i++) {
+                sessions.register("user" + i, new SinkSession());
+            }
+            final int rounds = 2000000 / recipients;
+
+            Microbench.run("encode per recipient, " + recipients + " recipients", rounds, () -> {
+                for (Session session : sessions.sessions()) {
+                    session.send(Frame.of(FrameType.MESSAGE, "alice: " + TEXT));
+                }
+            });
+            Microbench.run("encode once, " + recipients + " recipients", rounds, () -> {
+                sessions.broadcast(Frame.of(FrameType.MESSAGE, "alice: " + TEXT));
+            });
+        }
+    }
+
+    /**
+     * A session whose writer drains its queue as soon as something is
+     * queued, standing in for a client that always keeps up.
+     */
+    static final class SinkSession extends Session {
+
+        long written;
+
+        SinkSession() {
+            super(new OutboundQueue(OutboundQueue.Policy.DISCONNECT, Integer.MAX_VALUE, Long.MAX_VALUE));
+        }
+
+        @Override
+        protected void outboundReady() {
+            byte[] frame;
+            while ((frame = outbound.poll()) != null) {
+                written += frame.length;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,389 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a running chat server with thousands of simulated clients and
+ * reports how many messages it delivered per second and how long they
+ * took to arrive, from the moment a client sent one until the moment
+ * each recipient had read it.
+ *
+ *     java -cp bin ChatServer --mode=nio --log-dir=
+ *     java -cp bin LoadGenerator --clients=2000 --rate=200 --duration=30
+ *
+ * Every client connects, takes the name "load<n>" and then only reads.
+ * A pacer thread sends rate messages a second in total, each from a
+ * random client, either to everybody (--pattern=broadcast) or as a
+ * private message to another random client (--pattern=direct).  The
+ * message text is the time it was due, so every reader can work out
+ * the latency without any clock but its own; all clients live in this
+ * one process.  Messages sent during the warm-up are delivered but not
+ * counted.
+ *
+ * The clients are spread over a few selector threads, like the NIO
+ * server, so ten thousand of them take ten thousand sockets rather
+ * than ten thousand threads.  Latencies are collected in a histogram
+ * with about 2% precision, so the report costs the same however many
+ * messages were delivered.
+ */
+public class LoadGenerator {
+
+    private static final String NAME_PREFIX = "load";
+
+    /**
+     * Marks the messages this generator sent, as opposed to the server's
+     * announcements.
+     */
+    private static final String TIMESTAMP_MARKER = "t=";
+
+    private final String host;
+    private final int port;
+    private final int clientCount;
+    private final int rate;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final boolean direct;
+
+    private final Reader[] readers;
+    private final Client[] clients;
+    private final CountDownLatch named;
+
+    /**
+     * Messages sent before this nanoTime are not measured.
+     */
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    /**
+     * Writes that found the socket full because the server had stopped
+     * reading.
+     */
+    private final AtomicLong stalls = new AtomicLong();
+
+    LoadGenerator(Map<String, String> options) throws IOException {
+        host = option(options, "host", "localhost");
+        port = Integer.parseInt(option(options, "port", "9001"));
+        clientCount = Integer.parseInt(option(options, "clients", "1000"));
+        rate = Integer.parseInt(option(options, "rate", "100"));
+        durationSeconds = Integer.parseInt(option(options, "duration", "30"));
+        warmupSeconds = Integer.parseInt(option(options, "warmup", "5"));
+        direct = option(options, "pattern", "broadcast").equals("direct");
+        int threads = Integer.parseInt(option(options, "threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + options.keySet());
+        }
+
+        readers = new Reader[Math.max(1, threads)];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Reader(i);
+        }
+        clients = new Client[clientCount];
+        named = new CountDownLatch(clientCount);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.remove(name);
+        return value == null ? defaultValue : value;
+    }
+
+    void run() throws Exception {
+        for (Reader reader : readers) {
+            Thread thread = new Thread(reader, "load-reader-" + reader.index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            clients[i] = new Client(NAME_PREFIX + i, channel, readers[i % readers.length]);
+            clients[i].reader.add(clients[i]);
+        }
+        if (!named.await(60, TimeUnit.SECONDS)) {
+            throw new IOException(named.getCount() + " clients were never accepted");
+        }
+        System.out.println(String.format("%d clients connected and named in %.1f s", clientCount,
+                (System.nanoTime() - connectStart) / 1e9));
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(warmupSeconds + durationSeconds);
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        Random random = new Random();
+        long next = start;
+        long measuredSent = 0;
+        while (next < end) {
+            long now = System.nanoTime();
+            if (now < next) {
+                long sleep = next - now;
+                Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                continue;
+            }
+            // Stamped with the time it was due rather than the time it went
+            // out, so that a server that holds up the sender is charged for
+            // the wait of every message it delayed.
+            Client from = clients[random.nextInt(clientCount)];
+            String text = TIMESTAMP_MARKER + next;
+            if (direct) {
+                text = clients[random.nextInt(clientCount)].name + MessageRouter.DIRECT_MARKER + text;
+            }
+            from.write(text);
+            if (next >= measureFrom) {
+                measuredSent++;
+            }
+            next += interval;
+        }
+        // give the last messages time to arrive
+        Thread.sleep(2000);
+
+        Histogram latencies = new Histogram();
+        for (Reader reader : readers) {
+            synchronized (reader.latencies) {
+                latencies.add(reader.latencies);
+            }
+        }
+        long delivered = latencies.count();
+        System.out.println(String.format("sent %d messages (%.0f/s), %d deliveries (%.0f/s), %d write stalls",
+                measuredSent, measuredSent / (double) durationSeconds,
+                delivered, delivered / (double) durationSeconds, stalls.get()));
+        System.out.println(String.format("latency us: p50 %d  p99 %d  p999 %d  max %d",
+                latencies.percentile(50), latencies.percentile(99), latencies.percentile(99.9),
+                latencies.max()));
+        for (Client client : clients) {
+            client.channel.close();
+        }
+    }
+
+    /**
+     * One simulated client: its channel and the bytes of a line that has
+     * only partly arrived.
+     */
+    private final class Client {
+        final String name;
+        final SocketChannel channel;
+        final Reader reader;
+        final StringBuilder partial = new StringBuilder();
+        boolean accepted;
+
+        Client(String name, SocketChannel channel, Reader reader) {
+            this.name = name;
+            this.channel = channel;
+            this.reader = reader;
+        }
+
+        /**
+         * Sends one line.  The lines are short enough that the socket
+         * takes them whole unless the server has stopped reading, in
+         * which case this waits for it, and the wait shows up as latency.
+         */
+        synchronized void write(String line) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            boolean stalled = false;
+            while (bytes.hasRemaining()) {
+                if (channel.write(bytes) == 0 && !stalled) {
+                    stalled = true;
+                    stalls.incrementAndGet();
+                }
+                if (bytes.hasRemaining()) {
+                    Thread.yield();
+                }
+            }
+        }
+
+        void onLine(String line, long now, Histogram latencies) throws IOException {
+            if (line.equals(FrameType.PING.keyword)) {
+                // clients that only read would otherwise be reaped as idle
+                write(IdleTracker.PONG_COMMAND);
+                return;
+            }
+            if (!accepted) {
+                if (line.startsWith("SUBMITNAME")) {
+                    write(name);
+                } else if (line.startsWith("NAMEACCEPTED")) {
+                    accepted = true;
+                    named.countDown();
+                }
+                return;
+            }
+            if (!line.startsWith("MESSAGE ")) {
+                return;
+            }
+            int marker = line.indexOf(": " + TIMESTAMP_MARKER);
+            if (marker < 0) {
+                return;
+            }
+            long sentAt = Long.parseLong(line.substring(marker + 2 + TIMESTAMP_MARKER.length()));
+            if (sentAt >= measureFrom) {
+                latencies.record((now - sentAt) / 1000);
+            }
+        }
+    }
+
+    /**
+     * A selector thread that reads for its share of the clients.
+     */
+    private final class Reader implements Runnable {
+        final int index;
+        final Selector selector;
+        final Queue<Client> added = new ConcurrentLinkedQueue<Client>();
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        /**
+         * Latencies of what this thread has read, locked only to be
+         * merged at the end.
+         */
+        final Histogram latencies = new Histogram();
+
+        Reader(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        void add(Client client) {
+            added.add(client);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Client client;
+                    while ((client = added.poll()) != null) {
+                        client.channel.register(selector, SelectionKey.OP_READ, client);
+                    }
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        read((Client) key.attachment(), key);
+                    }
+                } catch (IOException e) {
+                    System.out.println(e);
+                }
+            }
+        }
+
+        private void read(Client client, SelectionKey key) throws IOException {
+            buffer.clear();
+            int read;
+            try {
+                read = client.channel.read(buffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                key.cancel();
+                return;
+            }
+            long now = System.nanoTime();
+            String text = new String(buffer.array(), 0, read, StandardCharsets.UTF_8);
+            int start = 0;
+            synchronized (latencies) {
+                for (int newline; (newline = text.indexOf('\n', start)) >= 0; start = newline + 1) {
+                    String line = text.substring(start, newline);
+                    if (client.partial.length() > 0) {
+                        line = client.partial.append(line).toString();
+                        client.partial.setLength(0);
+                    }
+                    client.onLine(line, now, latencies);
+                }
+            }
+            client.partial.append(text, start, text.length());
+        }
+    }
+
+    /**
+     * Counts of values in buckets that are 1/64 of a power of two wide,
+     * so every recorded value is within about 2% of its bucket.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKETS = 64;
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long count;
+        private long max;
+
+        void record(long value) {
+            value = Math.max(0, value);
+            counts[bucket(value)]++;
+            count++;
+            max = Math.max(max, value);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        long count() {
+            return count;
+        }
+
+        long max() {
+            return max;
+        }
+
+        /**
+         * Returns the lowest value of the bucket holding the given
+         * percentile.
+         */
+        long percentile(double percentile) {
+            long target = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) {
+                    return lowest(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value) - 5;
+            return magnitude * SUB_BUCKETS + (int) (value >>> (magnitude - 1)) - SUB_BUCKETS;
+        }
+
+        private static long lowest(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int magnitude = bucket / SUB_BUCKETS;
+            return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << (magnitude - 1);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures how fast the MessageLog takes messages, both as the cost of
+ * one append() to the thread that is routing the message and as the
+ * rate the writer thread keeps up over a few million messages.
+ *
+ *     java -cp bin MessageLogBenchmark
+ *
+ * The log's queue only holds so many messages, so once it is full the
+ * senders go at the writer's pace and the sustained figure is the rate
+ * at which records reach the mapped segments.
+ */
+public class MessageLogBenchmark {
+
+    private static final int SENDERS = 4;
+    private static final int MESSAGES_PER_SENDER = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        File directory = Files.createTempDirectory("message-log").toFile();
+        try {
+            final MessageLog log = new MessageLog(directory, 64L * 1024 * 1024, 100, 50);
+            final List<String> keys = Collections.singletonList(MessageLog.PUBLIC);
+            final byte[] payload = "alice: has anyone seen the build logs from last night?"
+                    .getBytes(StandardCharsets.UTF_8);
+
+            Microbench.run("append", 10000, () -> log.append(keys, payload));
+
+            Thread[] senders = new Thread[SENDERS];
+            long start = System.nanoTime();
+            for (int i = 0; i < SENDERS; i++) {
+                senders[i] = new Thread(() -> {
+                    for (int m = 0; m < MESSAGES_PER_SENDER; m++) {
+                        log.append(keys, payload);
+                    }
+                });
+                senders[i].start();
+            }
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%-48s %12.0f msgs/s", SENDERS + " senders, sustained",
+                    SENDERS * (double) MESSAGES_PER_SENDER / seconds));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.delete(file.toPath());
+    }
+}
@@ -0,0 +1,57 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * A small harness for timing the server's hot paths from a plain main
+ * method.  Each benchmark is run for a number of warm-up rounds so that
+ * the JIT has compiled it, then for a number of measured rounds, and
+ * the time and heap allocated per operation are reported.
+ *
+ * JMH cannot be used here because it refuses benchmark classes in the
+ * default package, and the server classes live in the default package
+ * and cannot be imported from any other.
+ */
+final class Microbench {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Microbench() {
+    }
+
+    /**
+     * Runs operation repeatedly and prints the average time and
+     * allocation of one call.  Each round makes operationsPerRound
+     * calls.
+     */
+    static void run(String name, int operationsPerRound, Runnable operation) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            for (int i = 0; i < operationsPerRound; i++) {
+                operation.run();
+            }
+        }
+
+        long thread = Thread.currentThread().getId();
+        long bestNanos = Long.MAX_VALUE;
+        long totalNanos = 0;
+        long totalBytes = 0;
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            long allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < operationsPerRound; i++) {
+                operation.run();
+            }
+            long nanos = System.nanoTime() - start;
+            totalBytes += THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+            totalNanos += nanos;
+            bestNanos = Math.min(bestNanos, nanos);
+        }
+
+        long operations = (long) operationsPerRound * MEASURED_ROUNDS;
+        System.out.println(String.format("%-48s %12.1f ns/op (best %.1f) %12.1f B/op",
+                name, totalNanos / (double) operations, bestNanos / (double) operationsPerRound,
+                totalBytes / (double) operations));
+    }
+}
@@ -0,0 +1,63 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures what a MessagePipeline costs each chat message: a clean
+ * message, one with a word to mask, and, for comparison, looking for
+ * every word of the same list one after another as a filter without the
+ * KeywordAutomaton would.
+ *
+ *     java -cp bin PipelineBenchmark
+ *
+ * The pipeline has the profanity and links filters, with a list of a
+ * thousand made up words.  The asynchronous stages are left out, since
+ * what they cost on the routing thread is copying the odd message they
+ * want.  A clean message should allocate nothing.
+ */
+public class PipelineBenchmark {
+
+    private static final int WORDS = 1000;
+    private static final String CLEAN = "has anyone seen the build logs from last night? the deploy looks stuck";
+    private static final String DIRTY = "has anyone seen the build logs from last night? the word17 deploy is stuck";
+
+    public static void main(String[] args) throws IOException {
+        File list = File.createTempFile("words", ".txt");
+        list.deleteOnExit();
+        final List<String> words = new ArrayList<String>();
+        try (PrintWriter out = new PrintWriter(list, "UTF-8")) {
+            for (int i = 0; i < WORDS; i++) {
+                words.add("word" + i);
+                out.println("word" + i);
+            }
+        }
+        final MessagePipeline pipeline = new MessagePipeline.Builder()
+                .add(new PipelineStages.Profanity(list))
+                .add(new PipelineStages.Links(false))
+                .build();
+        final Session alice = new BroadcastBenchmark.SinkSession();
+
+        final byte[] clean = CLEAN.getBytes(StandardCharsets.UTF_8);
+        Microbench.run("pipeline, clean message, " + WORDS + " words", 1000000, () -> {
+            pipeline.process(alice, null, clean, 0, clean.length);
+        });
+        final byte[] dirty = DIRTY.getBytes(StandardCharsets.UTF_8);
+        final byte[] masked = new byte[dirty.length];
+        Microbench.run("pipeline, one word masked", 1000000, () -> {
+            System.arraycopy(dirty, 0, masked, 0, dirty.length);
+            pipeline.process(alice, null, masked, 0, masked.length);
+        });
+        Microbench.run("indexOf for each word, clean message", 10000, () -> {
+            String text = CLEAN.toLowerCase(Locale.ROOT);
+            for (String word : words) {
+                if (text.indexOf(word) >= 0) {
+                    throw new AssertionError(word);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Measures room membership changes with a hundred thousand rooms, and a
+ * room message to rooms of very different sizes.
+ *
+ *     java -cp bin RoomBenchmark
+ *
+ * Membership is skewed the way real rooms are: most rooms are two
+ * person chats, and one announcement room has twenty thousand members.
+ * A room message should cost in proportion to the room's members,
+ * however many sessions and rooms there are in total.
+ */
+public class RoomBenchmark {
+
+    private static final int ROOMS = 100000;
+    private static final int SESSIONS = 20000;
+    private static final String TEXT = "has anyone seen the build logs from last night?";
+
+    public static void main(String[] args) {
+        final SessionRegistry sessions = new SessionRegistry();
+        final Rooms rooms = sessions.rooms();
+        final Session[] all = new Session[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            all[i] = new BroadcastBenchmark.SinkSession();
+            sessions.register("user" + i, all[i]);
+            rooms.join(all[i], "announcements");
+        }
+        for (int room = 0; room < ROOMS; room++) {
+            rooms.join(all[(2 * room) % SESSIONS], "chat" + room);
+            rooms.join(all[(2 * room + 1) % SESSIONS], "chat" + room);
+        }
+        System.out.println(rooms.size() + " rooms");
+
+        // a third member who comes and goes
+        final Session visitor = new BroadcastBenchmark.SinkSession();
+        sessions.register("visitor", visitor);
+        final int[] next = new int[1];
+        Microbench.run("join and leave, " + ROOMS + " rooms", 100000, () -> {
+            String room = "chat" + (next[0]++ % ROOMS);
+            rooms.join(visitor, room);
+            rooms.leave(visitor, room);
+        });
+        Microbench.run("message to a 2 member room", 100000, () -> {
+            rooms.lookup("chat" + (next[0]++ % ROOMS)).broadcast(Frame.of(FrameType.MESSAGE, "alice: " + TEXT));
+        });
+        Microbench.run("message to a " + SESSIONS + " member room", 100, () -> {
+            rooms.lookup("announcements").broadcast(Frame.of(FrameType.MESSAGE, "alice: " + TEXT));
+        });
+    }
+}
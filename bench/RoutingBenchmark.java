@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Measures the per message work a connection does apart from
+ * broadcasting: reading a line or frame off the socket stream,
+ * registering a screen name, and routing a private message.
+ *
+ *     java -cp bin RoutingBenchmark
+ *
+ * Reading uses a stream that hands out the same bytes over and over,
+ * and the registry holds ten thousand sink sessions, so the figures
+ * cover parsing, lookups and queueing but no socket I/O.
+ */
+public class RoutingBenchmark {
+
+    private static final int SESSIONS = 10000;
+    private static final String TEXT = "has anyone seen the build logs from last night?";
+
+    public static void main(String[] args) throws IOException {
+        final SessionRegistry sessions = new SessionRegistry();
+        for (int i = 0; i < SESSIONS; i++) {
+            sessions.register("user" + i, new BroadcastBenchmark.SinkSession());
+        }
+        final MessageRouter router = new MessageRouter(sessions, null);
+        final Session alice = sessions.lookup("user0");
+
+        final FrameReader lines = new FrameReader(new Repeating(("user42>>" + TEXT + "\n")
+                .getBytes(StandardCharsets.UTF_8)));
+        Microbench.run("read a text line", 1000000, () -> {
+            try {
+                lines.readLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        final FrameReader frames = new FrameReader(new Repeating(BinaryFrames.encode(FrameType.DIRECT,
+                BinaryFrames.directPayload(Arrays.asList("user42"), TEXT))));
+        Microbench.run("read a binary DIRECT frame", 1000000, () -> {
+            try {
+                frames.readFrame();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        final Session newcomer = new BroadcastBenchmark.SinkSession();
+        final int[] next = new int[1];
+        Microbench.run("register and unregister, " + SESSIONS + " sessions", 100000, () -> {
+            sessions.register("newcomer" + (next[0]++ & 1023), newcomer);
+            sessions.unregister(newcomer);
+        });
+
+        Microbench.run("route a text private message", 1000000, () -> {
+            router.route(alice, "user" + (next[0]++ % SESSIONS) + ">>" + TEXT);
+        });
+        Microbench.run("route a text private message to 3", 1000000, () -> {
+            router.route(alice, "user1,user2,user3>>" + TEXT);
+        });
+        final FrameReader direct = new FrameReader(new Repeating(BinaryFrames.encode(FrameType.DIRECT,
+                BinaryFrames.directPayload(Arrays.asList("user42"), TEXT))));
+        Microbench.run("read and route a binary private message", 1000000, () -> {
+            try {
+                router.route(alice, direct.readFrame());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * A stream that returns the same bytes again and again, standing in
+     * for a client that never stops sending.
+     */
+    private static final class Repeating extends InputStream {
+
+        private final byte[] bytes;
+        private int position;
+
+        Repeating(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            int b = bytes[position] & 0xff;
+            position = (position + 1) % bytes.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int count = Math.min(length, bytes.length - position);
+            System.arraycopy(bytes, position, buffer, offset, count);
+            position = (position + count) % bytes.length;
+            return count;
+        }
+    }
+}
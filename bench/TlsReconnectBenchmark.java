@@ -0,0 +1,107 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Measures how long a client takes to reconnect to a chat server running
+ * with TLS, with and without resuming its session, as in a reconnect
+ * storm after a network blip.
+ *
+ *     keytool -genkeypair -alias chat -keyalg EC -dname CN=localhost
+ *         -ext san=dns:localhost,ip:127.0.0.1 -keystore chat.p12 -storepass changeit
+ *     java -cp bin ChatServer --mode=nio --tls-keystore=chat.p12 --tls-password=changeit
+ *     java -cp bin TlsReconnectBenchmark --truststore=chat.p12 --connections=500
+ *
+ * Each connection does the handshake and reads the server's first
+ * SUBMITNAME, which also brings the session ticket, and is then closed.
+ * A fresh SSLContext per connection forces a full handshake every time;
+ * one shared context resumes the session from the first.  The server's
+ * chat_tls_resumed_total metric shows how many were resumed.
+ */
+public class TlsReconnectBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        String host = option(options, "host", "localhost");
+        int port = Integer.parseInt(option(options, "port", "9001"));
+        String truststore = option(options, "truststore", "chat.p12");
+        String password = option(options, "truststore-password", "changeit");
+        int connections = Integer.parseInt(option(options, "connections", "500"));
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + options.keySet());
+        }
+
+        KeyStore certificates = KeyStore.getInstance(truststore.endsWith(".jks") ? "JKS" : "PKCS12");
+        InputStream in = new FileInputStream(truststore);
+        try {
+            certificates.load(in, password.toCharArray());
+        } finally {
+            in.close();
+        }
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(certificates);
+
+        // warm up both paths before measuring either
+        for (int round = 0; round < 2; round++) {
+            boolean measure = round == 1;
+            int count = measure ? connections : Math.max(1, connections / 10);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                reconnect(newContext(trust).getSocketFactory(), host, port);
+            }
+            long full = System.nanoTime() - start;
+
+            SSLSocketFactory shared = newContext(trust).getSocketFactory();
+            reconnect(shared, host, port);
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                reconnect(shared, host, port);
+            }
+            long resumed = System.nanoTime() - start;
+            if (measure) {
+                System.out.printf("full handshakes:    %8.1f us per connection%n", full / 1000.0 / count);
+                System.out.printf("resumed handshakes: %8.1f us per connection%n", resumed / 1000.0 / count);
+            }
+        }
+    }
+
+    private static SSLContext newContext(TrustManagerFactory trust) throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+
+    private static void reconnect(SSLSocketFactory factory, String host, int port) throws IOException {
+        SSLSocket socket = (SSLSocket) factory.createSocket(host, port);
+        socket.setTcpNoDelay(true);
+        try {
+            InputStream in = socket.getInputStream();
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n') {
+                // the SUBMITNAME line
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.remove(name);
+        return value == null ? defaultValue : value;
+    }
+}
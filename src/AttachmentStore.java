@@ -0,0 +1,494 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Files that users send each other.  An upload is written to a file
+ * under incoming/ as its chunks arrive, hashing it on the way, and once
+ * it is complete it is moved to a path named after its SHA-256.  The
+ * same file sent twice, or to several rooms, is therefore only stored
+ * once.  The upload is then announced like any other message, as
+ * "[file:hash:size] name", to the recipients the sender named, so
+ * rooms, private messages, the log and the cluster treat it like any
+ * other message.
+ *
+ * A client that wants a file it has seen announced asks for it with
+ * DOWNLOAD, and the file is sent to it a chunk at a time with
+ * FileChannel.transferTo, which on a socket channel is sendfile: the
+ * bytes go from the page cache to the socket without ever being copied
+ * onto the heap.  The writer only sends the next chunk when the
+ * client's outbound queue is empty, so chat messages are never stuck
+ * behind more than one chunk of a large file.
+ *
+ * Opening, writing and moving files all happen on the store's own
+ * thread, so that a slow disk holds up uploads rather than every client
+ * of the event loop that read them.  The reader only checks a frame and
+ * copies an UPLOADDATA chunk out of its buffer, which is reused for the
+ * next frame, before handing it over.  If the thread falls so far behind
+ * that its queue is full, the upload fails and the sender is told.
+ *
+ * Files live on the node they were uploaded to; a client of another
+ * node in the cluster is told that the attachment is not available.
+ */
+public class AttachmentStore {
+
+    /**
+     * Starts the text of an announcement.
+     */
+    static final String MARKER = "[file:";
+
+    /**
+     * Most bytes of a file sent in one ATTACHMENTDATA frame, and the most
+     * a client should put in one UPLOADDATA frame.
+     */
+    static final int CHUNK_BYTES = 64 * 1024;
+
+    private static final String INCOMING = "incoming";
+
+    /**
+     * Tasks, most of them chunks, that may wait for the store's thread
+     * before uploads fail.
+     */
+    private static final int QUEUE_LENGTH = 1024;
+
+    private final File directory;
+    private final File incoming;
+    private final long maxBytes;
+    private final AtomicLong nextUpload = new AtomicLong();
+
+    private final ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_LENGTH), task -> {
+                Thread thread = new Thread(task, "attachments");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Opens the store in the given directory, creating it if need be and
+     * throwing away uploads that a previous run did not finish.  Uploads
+     * larger than maxBytes are refused.
+     */
+    AttachmentStore(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.incoming = new File(directory, INCOMING);
+        this.maxBytes = maxBytes;
+        if (!incoming.isDirectory() && !incoming.mkdirs()) {
+            throw new IOException("Cannot create " + incoming);
+        }
+        File[] leftovers = incoming.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                leftover.delete();
+            }
+        }
+    }
+
+    /**
+     * Starts an upload from an UPLOAD frame.  A previous upload the
+     * client has not finished is abandoned.
+     */
+    void begin(Session from, InboundFrame frame) throws IOException {
+        abandon(from);
+        if (frame.length < 8) {
+            throw new IOException("Bad UPLOAD frame");
+        }
+        long size = BinaryFrames.readLong(frame.buffer, frame.offset);
+        String spec = new String(frame.buffer, frame.offset + 8, frame.length - 8, StandardCharsets.UTF_8);
+        int marker = spec.indexOf(MessageRouter.DIRECT_MARKER);
+        if (marker < 0 || size < 0) {
+            throw new IOException("Bad UPLOAD frame");
+        }
+        if (size > maxBytes) {
+            from.send(Frame.of(FrameType.ERROR, "Attachments may be at most " + maxBytes + " bytes"));
+            return;
+        }
+        if (size == 0) {
+            from.send(Frame.of(FrameType.ERROR, "Empty attachments are not sent"));
+            return;
+        }
+        String recipients = spec.substring(0, marker).trim();
+        String name = displayName(spec.substring(marker + MessageRouter.DIRECT_MARKER.length()));
+        File file = new File(incoming, nextUpload.incrementAndGet() + ".part");
+        Upload upload = new Upload(this, file, size, recipients, name);
+        from.upload = upload;
+        submit(from, upload, upload::open);
+    }
+
+    /**
+     * Queues the data of an UPLOADDATA frame to be written to the
+     * client's upload.  Once the last byte has been written the file is
+     * stored and announce is called, on the store's thread, with the text
+     * announcing it.  Data that does not belong to an upload is ignored,
+     * since the upload may have been refused.
+     */
+    void write(Session from, InboundFrame frame, Consumer<String> announce) {
+        Upload upload = from.upload;
+        if (upload == null) {
+            return;
+        }
+        if (frame.length > upload.remaining) {
+            abandon(from);
+            from.send(Frame.of(FrameType.ERROR, "Attachment is larger than announced"));
+            return;
+        }
+        byte[] data = new byte[frame.length];
+        System.arraycopy(frame.buffer, frame.offset, data, 0, data.length);
+        upload.remaining -= data.length;
+        boolean last = upload.remaining == 0;
+        if (last) {
+            from.upload = null;
+        }
+        submit(from, upload, () -> {
+            upload.write(data);
+            if (last) {
+                String hash = upload.finish();
+                store(upload.file, hash);
+                String announcement = MARKER + hash + ":" + upload.size + "] " + upload.name;
+                announce.accept(upload.recipients.isEmpty() ? announcement
+                        : upload.recipients + MessageRouter.DIRECT_MARKER + announcement);
+            }
+        });
+    }
+
+    /**
+     * Forgets the client's unfinished upload, if it has one.
+     */
+    void abandon(Session from) {
+        Upload upload = from.upload;
+        if (upload != null) {
+            from.upload = null;
+            upload.discard();
+        }
+    }
+
+    /**
+     * Runs part of an upload on the store's thread.  If that fails, or
+     * the thread is too far behind, the upload is thrown away and the
+     * sender told; an upload that was already abandoned fails quietly.
+     */
+    private void submit(Session from, Upload upload, FileTask task) {
+        Runnable run = () -> {
+            if (upload.discarded) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (IOException e) {
+                if (!upload.discarded) {
+                    upload.discard();
+                    System.out.println("Attachment from " + from.name() + " failed: " + e);
+                    from.send(Frame.of(FrameType.ERROR, "Attachment failed: " + e.getMessage()));
+                }
+            }
+        };
+        try {
+            worker.execute(run);
+        } catch (RejectedExecutionException e) {
+            if (from.upload == upload) {
+                from.upload = null;
+            }
+            upload.discard();
+            from.send(Frame.of(FrameType.ERROR, "Attachment failed: the server is too busy"));
+        }
+    }
+
+    /**
+     * Some file work that may fail.
+     */
+    private interface FileTask {
+        void run() throws IOException;
+    }
+
+    /**
+     * Answers a DOWNLOAD frame with the attachment's size and queues the
+     * attachment to be sent to the client.  The file is opened on the
+     * store's thread.
+     */
+    void download(Session to, InboundFrame frame) throws IOException {
+        if (frame.length < 4) {
+            throw new IOException("Bad DOWNLOAD frame");
+        }
+        int id = BinaryFrames.readInt(frame.buffer, frame.offset);
+        String hash = new String(frame.buffer, frame.offset + 4, frame.length - 4, StandardCharsets.UTF_8);
+        try {
+            worker.execute(() -> download(to, id, hash));
+        } catch (RejectedExecutionException e) {
+            sendSize(to, id, -1);
+        }
+    }
+
+    private void download(Session to, int id, String hash) {
+        File file = isHash(hash) ? path(hash) : null;
+        FileChannel channel = null;
+        if (file != null && file.isFile()) {
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            } catch (IOException e) {
+                System.out.println("Cannot open attachment " + hash + ": " + e);
+            }
+        }
+        long size = -1;
+        try {
+            size = channel == null ? -1 : channel.size();
+        } catch (IOException e) {
+            System.out.println("Cannot open attachment " + hash + ": " + e);
+        }
+        sendSize(to, id, size);
+        if (size > 0) {
+            to.download(new Download(id, channel, size));
+        } else if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static void sendSize(Session to, int id, long size) {
+        byte[] reply = new byte[12];
+        BinaryFrames.writeInt(reply, 0, id);
+        BinaryFrames.writeLong(reply, 4, size);
+        to.send(Frame.of(FrameType.ATTACHMENT, reply, null));
+    }
+
+    /**
+     * Moves a complete upload to its place, unless the same file is
+     * there already.
+     */
+    private void store(File upload, String hash) throws IOException {
+        File target = path(hash);
+        if (target.isFile()) {
+            upload.delete();
+            return;
+        }
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            upload.delete();
+            throw new IOException("Cannot create " + parent);
+        }
+        try {
+            Files.move(upload.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            upload.delete();
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(upload.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Files are spread over directories named after the first two hex
+     * digits of their hash, so no directory gets too large.
+     */
+    private File path(String hash) {
+        return new File(new File(directory, hash.substring(0, 2)), hash);
+    }
+
+    private static boolean isHash(String hash) {
+        if (hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * The last part of the path the client sent, without any characters
+     * that would break the announcement line or be taken for the end of
+     * a recipient list.
+     */
+    private static String displayName(String path) {
+        String name = path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1).trim();
+        StringBuilder cleaned = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            cleaned.append(c < ' ' || c == '>' ? '_' : c);
+        }
+        return cleaned.length() == 0 ? "attachment" : cleaned.toString();
+    }
+
+    /**
+     * Returns the hash, size and name of the attachment announced in a
+     * line of chat text, or null if the text does not announce one.
+     */
+    static String[] parseAnnouncement(String text) {
+        int start = text.indexOf(MARKER);
+        if (start < 0) {
+            return null;
+        }
+        int hashStart = start + MARKER.length();
+        int colon = text.indexOf(':', hashStart);
+        int close = text.indexOf("] ", hashStart);
+        if (colon < 0 || close < colon || !isHash(text.substring(hashStart, colon))) {
+            return null;
+        }
+        return new String[] { text.substring(hashStart, colon), text.substring(colon + 1, close),
+                text.substring(close + 2) };
+    }
+
+    /**
+     * A file a client is in the middle of sending.  The thread reading
+     * from the client counts down what remains to arrive; the file, its
+     * channel and the digest are only used on the store's thread.
+     */
+    static final class Upload {
+        private final AttachmentStore store;
+        final File file;
+        final long size;
+        final String recipients;
+        final String name;
+        private final MessageDigest digest;
+        private FileChannel channel;
+        long remaining;
+        volatile boolean discarded;
+
+        Upload(AttachmentStore store, File file, long size, String recipients, String name) {
+            this.store = store;
+            this.file = file;
+            this.size = size;
+            this.recipients = recipients;
+            this.name = name;
+            this.remaining = size;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void open() throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void write(byte[] data) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            digest.update(data);
+        }
+
+        /**
+         * Closes the complete file and returns its hash.
+         */
+        String finish() throws IOException {
+            channel.close();
+            return hex(digest.digest());
+        }
+
+        /**
+         * Throws the upload away.  May be called from any thread; the
+         * file is closed and deleted on the store's thread, after the
+         * chunks queued before, unless that is too far behind.
+         */
+        void discard() {
+            discarded = true;
+            try {
+                store.worker.execute(this::delete);
+            } catch (RejectedExecutionException e) {
+                delete();
+            }
+        }
+
+        private void delete() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * A file being sent to a client.  Only the client's writer uses it:
+     * startChunk() gives the header of the next ATTACHMENTDATA frame,
+     * and transfer() sends the chunk's bytes after it.
+     */
+    static final class Download {
+        private final int id;
+        private final FileChannel file;
+        private final long size;
+        private long position;
+        private long chunkLeft;
+
+        Download(int id, FileChannel file, long size) {
+            this.id = id;
+            this.file = file;
+            this.size = size;
+        }
+
+        /**
+         * Starts the next chunk and returns the frame header and id that
+         * go in front of it.
+         */
+        byte[] startChunk() {
+            int length = (int) Math.min(CHUNK_BYTES, size - position);
+            chunkLeft = length;
+            byte[] header = new byte[BinaryFrames.HEADER_LENGTH + 4];
+            BinaryFrames.writeHeader(header, 0, FrameType.ATTACHMENTDATA, 4 + length);
+            BinaryFrames.writeInt(header, BinaryFrames.HEADER_LENGTH, id);
+            return header;
+        }
+
+        /**
+         * Sends as much of the current chunk as the target takes and
+         * returns the number of bytes sent.  Fewer than chunkLeft() are
+         * only sent to a non-blocking channel that is full.
+         */
+        long transfer(WritableByteChannel target) throws IOException {
+            long sent = file.transferTo(position, chunkLeft, target);
+            if (sent == 0 && position >= file.size()) {
+                throw new IOException("Attachment file was cut short");
+            }
+            position += sent;
+            chunkLeft -= sent;
+            return sent;
+        }
+
+        long chunkLeft() {
+            return chunkLeft;
+        }
+
+        boolean finished() {
+            return position == size;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
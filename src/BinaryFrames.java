@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Layout of the binary protocol.  Every frame is
+ *
+ *     type     1 byte, a FrameType code
+ *     length   4 bytes, big-endian length of the payload
+ *     payload  length bytes, UTF-8 text for most types
+ *
+ * so a message may contain any characters, newlines and ">>" included,
+ * and a reader knows how much to read without scanning for a
+ * delimiter.  A DIRECT frame's payload is a recipient count (2 bytes),
+ * each recipient as a 2 byte length and its UTF-8 name, and then the
+ * message text up to the end of the payload.
+ *
+ * A SEQUENCE or ACK payload is a single 8 byte sequence number, and a
+ * RESUME payload is the last sequence number the client received
+ * followed by its resume token.
+ *
+ * Attachments: an UPLOAD payload is the file's size (8 bytes) followed
+ * by "recipients>>filename", where the recipients are as in a text
+ * private message and empty means everybody, and the file itself
+ * follows in UPLOADDATA frames of raw bytes.  A DOWNLOAD payload is an
+ * id the client picks (4 bytes) and the attachment's hash.  The server
+ * answers with ATTACHMENT, the id and the size (8 bytes, -1 if there is
+ * no such attachment), and then ATTACHMENTDATA frames of the id
+ * followed by raw bytes.  See AttachmentStore.
+ */
+final class BinaryFrames {
+
+    static final int HEADER_LENGTH = 5;
+
+    /**
+     * What a client sends in the text protocol, in place of a name, to
+     * switch the connection to binary.
+     */
+    static final String BINARY_REQUEST = "/binary";
+
+    /**
+     * Larger frames are treated as a misbehaving peer.
+     */
+    static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+
+    private BinaryFrames() {
+    }
+
+    /**
+     * Returns the total length of the frame starting at offset if all of
+     * it is among the available bytes, or -1 if more bytes are needed.
+     */
+    static int completeLength(byte[] buffer, int offset, int available) throws IOException {
+        if (available < HEADER_LENGTH) {
+            return -1;
+        }
+        int total = HEADER_LENGTH + payloadLength(buffer, offset);
+        return available >= total ? total : -1;
+    }
+
+    /**
+     * Reads and checks the payload length from the header at offset.
+     */
+    static int payloadLength(byte[] buffer, int offset) throws IOException {
+        int length = (buffer[offset + 1] & 0xff) << 24
+                | (buffer[offset + 2] & 0xff) << 16
+                | (buffer[offset + 3] & 0xff) << 8
+                | (buffer[offset + 4] & 0xff);
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Bad frame length " + length);
+        }
+        return length;
+    }
+
+    static void writeHeader(byte[] buffer, int offset, FrameType type, int payloadLength) {
+        buffer[offset] = type.code;
+        buffer[offset + 1] = (byte) (payloadLength >>> 24);
+        buffer[offset + 2] = (byte) (payloadLength >>> 16);
+        buffer[offset + 3] = (byte) (payloadLength >>> 8);
+        buffer[offset + 4] = (byte) payloadLength;
+    }
+
+    /**
+     * Encodes a whole frame with the given payload.
+     */
+    static byte[] encode(FrameType type, byte[] payload) {
+        byte[] frame = new byte[HEADER_LENGTH + payload.length];
+        writeHeader(frame, 0, type, payload.length);
+        System.arraycopy(payload, 0, frame, HEADER_LENGTH, payload.length);
+        return frame;
+    }
+
+    /**
+     * Builds the payload of a DIRECT frame.
+     */
+    static byte[] directPayload(List<String> recipients, String message) {
+        byte[][] names = new byte[recipients.size()][];
+        int length = 2;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = recipients.get(i).getBytes(StandardCharsets.UTF_8);
+            length += 2 + names[i].length;
+        }
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[length + text.length];
+        int position = writeShort(payload, 0, names.length);
+        for (byte[] name : names) {
+            position = writeShort(payload, position, name.length);
+            System.arraycopy(name, 0, payload, position, name.length);
+            position += name.length;
+        }
+        System.arraycopy(text, 0, payload, position, text.length);
+        return payload;
+    }
+
+    /**
+     * Builds the payload of a RESUME frame.
+     */
+    static byte[] resumePayload(long lastSequence, String token) {
+        byte[] tokenBytes = token.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[8 + tokenBytes.length];
+        writeLong(payload, 0, lastSequence);
+        System.arraycopy(tokenBytes, 0, payload, 8, tokenBytes.length);
+        return payload;
+    }
+
+    /**
+     * Builds the payload of an UPLOAD frame.
+     */
+    static byte[] uploadPayload(long size, String recipients, String fileName) {
+        byte[] text = (recipients + MessageRouter.DIRECT_MARKER + fileName).getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[8 + text.length];
+        writeLong(payload, 0, size);
+        System.arraycopy(text, 0, payload, 8, text.length);
+        return payload;
+    }
+
+    /**
+     * Builds the payload of a DOWNLOAD frame.
+     */
+    static byte[] downloadPayload(int id, String hash) {
+        byte[] text = hash.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[4 + text.length];
+        writeInt(payload, 0, id);
+        System.arraycopy(text, 0, payload, 4, text.length);
+        return payload;
+    }
+
+    static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16
+                | (buffer[offset + 2] & 0xff) << 8 | (buffer[offset + 3] & 0xff);
+    }
+
+    static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    static void writeLong(byte[] buffer, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static int readShort(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 8 | (buffer[offset + 1] & 0xff);
+    }
+
+    private static int writeShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 8);
+        buffer[offset + 1] = (byte) value;
+        return offset + 2;
+    }
+}
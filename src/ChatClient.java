@@ -1,25 +1,52 @@
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.security.KeyStore;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
 import javax.swing.DefaultListModel;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import java.awt.Color;
 import java.awt.Component;
+import java.awt.GridLayout;
 import java.awt.Toolkit;
 
 import javax.swing.DefaultListCellRenderer;
@@ -37,15 +64,104 @@ import javax.swing.DefaultListCellRenderer;
  * sending the server arbitrary strings to be broadcast to all
  * chatters connected to the server.  When the server sends a
  * line beginning with "MESSAGE " then all characters following
- * this string should be displayed in its message area.
+ * this string should be displayed in its message area, and a line
+ * beginning with "ERROR " reports a private message that could not
+ * be delivered.
+ *
+ * Unless started with --text, the client answers the first
+ * "SUBMITNAME" with "/binary", and once the server has replied
+ * "BINARY" both sides use the length prefixed binary protocol, in
+ * which messages may contain any characters at all.
+ *
+ * If the connection drops after the name has been accepted, the client
+ * keeps reconnecting, waiting twice as long after each failed attempt.
+ * A binary client presents the resume token it got with NAMEACCEPTED
+ * and the number of the last message it saw, and is sent only the
+ * messages it missed; if the server no longer knows the token the
+ * client joins again under the same name.
+ *
+ * The client answers the server's PING at once, whatever it is doing,
+ * so that the server does not take a quiet user for a dead connection.
+ *
+ * The reader thread never touches Swing.  It collects messages and
+ * changes to the online user list, and a timer hands them to the Swing
+ * thread as one batch per frame, about thirty times a second, so a busy
+ * room or a roster of thousands arrives as a handful of updates.  Only
+ * the latest --scrollback=N messages are kept (5000 by default).
+ *
+ * The user can join and leave rooms, and pick one of the rooms they
+ * are in as the target of whatever they type; see MessageRouter for the
+ * "#room>>message" form and the /join and /leave commands.  Typing
+ * "/search words" shows a page of the messages that contain them; see
+ * SearchIndex for what else a search may say.
+ *
+ * In the binary protocol the user can also send a file to the selected
+ * room, or to everybody, and double click a file someone has sent to
+ * save it.  Files are streamed a chunk at a time in both directions, on
+ * a thread of their own going up and straight from the reader's buffer
+ * to disk coming down, so a large one never has to fit in memory; see
+ * AttachmentStore.
+ *
+ * With --tls the connection is encrypted and the server's certificate
+ * is checked against the JVM's trusted ones, or against the
+ * certificates in --truststore=file (PKCS12, or JKS if the name ends in
+ * .jks, with --truststore-password if it has one).  Every reconnect uses
+ * the same SSLContext, which keeps the session of the last connection,
+ * so a client coming back resumes it instead of doing a full handshake.
  */
 public class ChatClient {
 
-    BufferedReader in;
-    PrintWriter out;
+    FrameReader in;
+    OutputStream out;
+    
+    // Whether to ask the server for the binary protocol, and whether
+    // the server has agreed to it
+    boolean binaryProtocol = true;
+    volatile boolean binaryActive;
+    private boolean binaryRequested;
+    
+    private static final int PORT = 9001;
+    private static final long MIN_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    
+    // Acknowledge received messages to the server after this many
+    private static final int ACK_INTERVAL = 16;
+    
+    Socket socket;
+    
+    // Makes the TLS sockets, or null for plain TCP
+    private SSLSocketFactory tls;
+    
+    // The accepted screen name and the token for resuming the session,
+    // kept for reconnecting
+    private String screenName;
+    private volatile String requestedName;
+    private String resumeToken;
+    private boolean nameResent;
+    private boolean resuming;
+    private long backoffMillis = MIN_BACKOFF_MILLIS;
+    
+    // Number of the last message received, the number announced for the
+    // message about to arrive, and how many have not been acknowledged
+    private long lastSequence;
+    private long nextSequence;
+    private int unacknowledged;
+    
     JFrame frame = new JFrame("Chatter");
     JTextField textField = new JTextField(40);
-    JTextArea messageArea = new JTextArea(8, 30);
+    
+    // The latest messages, shown in a list that only paints the rows in
+    // view; see Scrollback
+    static final int DEFAULT_SCROLLBACK = 5000;
+    Scrollback messages = new Scrollback(DEFAULT_SCROLLBACK);
+    JList<String> messageList = new JList<String>(messages);
+    JScrollPane messageScroll = new JScrollPane(messageList);
+    
+    // What the reader thread has received since the last UI frame, and
+    // the timer that hands it to the Swing thread at most this often
+    private static final int UI_FRAME_MILLIS = 33;
+    private final UiUpdates updates = new UiUpdates();
+    private final Timer uiTimer = new Timer(UI_FRAME_MILLIS, e -> applyUpdates());
     
     
     // Added a list box to view online users
@@ -59,6 +175,20 @@ public class ChatClient {
     // Added a button to confirm send messages
     JButton msgSendBtn = new JButton();
     
+    // The room typed messages go to, and buttons to join and leave rooms
+    static final String EVERYONE = "Everyone";
+    JComboBox<String> roomBox = new JComboBox<String>(new String[] { EVERYONE });
+    JButton joinRoomBtn = new JButton();
+    JButton leaveRoomBtn = new JButton();
+    
+    // Sending files, and the progress of the latest upload or download
+    JButton sendFileBtn = new JButton();
+    JProgressBar transferBar = new JProgressBar(0, 100);
+    
+    // Downloads the server has been asked for, by the id sent with them
+    private final AtomicInteger nextDownload = new AtomicInteger();
+    private final Map<Integer, Incoming> downloads = new ConcurrentHashMap<Integer, Incoming>();
+    
     /**
      * Constructs the client by laying out the GUI and registering a
      * listener with the textfield so that pressing Return in the
@@ -73,12 +203,16 @@ public class ChatClient {
     	
         // Layout GUI
         textField.setEditable(false);
-        messageArea.setEditable(false);
         
         // set background color to message area
-        messageArea.setBackground(Color.black);
+        messageList.setBackground(Color.black);
         // set text color to message area
-        messageArea.setForeground(Color.ORANGE);
+        messageList.setForeground(Color.ORANGE);
+        // every row is one line high and as wide as the view, so the list
+        // never has to measure the lines it is not showing
+        messageList.setFixedCellHeight(messageList.getFontMetrics(messageList.getFont()).getHeight());
+        messageList.setFixedCellWidth(1);
+        messageList.setVisibleRowCount(8);
         // set background color to text field
         textField.setBackground(Color.WHITE);
         // set text color to text field
@@ -101,13 +235,28 @@ public class ChatClient {
         broadcastCheckBox.setForeground(Color.RED);
         // set online user list's selection model
         onlineUserList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        // add text to room buttons
+        joinRoomBtn.setText("Join room");
+        leaveRoomBtn.setText("Leave room");
+        sendFileBtn.setText("Send file");
+        transferBar.setStringPainted(true);
+        
+        JPanel westPanel = new JPanel(new GridLayout(0, 1));
+        westPanel.setBackground(Color.BLACK);
+        westPanel.add(broadcastCheckBox);
+        westPanel.add(roomBox);
+        westPanel.add(joinRoomBtn);
+        westPanel.add(leaveRoomBtn);
+        westPanel.add(sendFileBtn);
+        westPanel.add(transferBar);
         
         frame.getContentPane().add(textField, "North");
-        frame.getContentPane().add(new JScrollPane(messageArea), "Center");
+        frame.getContentPane().add(messageScroll, "Center");
         frame.getContentPane().add(new JScrollPane(onlineUserList), "East");
-        frame.getContentPane().add(broadcastCheckBox, "West");
+        frame.getContentPane().add(westPanel, "West");
         frame.getContentPane().add(msgSendBtn,"South");
         frame.pack();
+        uiTimer.start();
         
         
         // TODO: You may have to edit this event handler to handle point to point messaging,
@@ -120,7 +269,7 @@ public class ChatClient {
              * the text area in preparation for the next message.
              */
             public void actionPerformed(ActionEvent e) {
-                out.println(textField.getText());
+                sendTyped(textField.getText());
                 textField.setText("");
             }
         });
@@ -156,11 +305,9 @@ public class ChatClient {
 				// get message from pop up window
 				String broadCastMessage = getMessage();
 				
-				// Iterate through selected user list 
-				// and send each user name to the server with a token
-				for(int i = 0;i < selectedUsers.size(); i++) {
-					System.out.println(selectedUsers.get(i));
-					out.println(selectedUsers.get(i) + ">>" + broadCastMessage);
+				// Send the message once, addressed to every selected user
+				if (!selectedUsers.isEmpty() && broadCastMessage != null) {
+					sendDirect(selectedUsers, broadCastMessage);
 				}
 				
 				// after completing message process clear selected list
@@ -169,6 +316,55 @@ public class ChatClient {
         	
         });
         
+        // added listeners to room buttons
+        joinRoomBtn.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				String room = JOptionPane.showInputDialog(
+						frame,
+						"Room to join:",
+						"Join a room",
+						JOptionPane.PLAIN_MESSAGE);
+				if (room != null && !room.trim().isEmpty()) {
+					sendRoomCommand(FrameType.JOIN, room.trim());
+				}
+			}
+        	
+        });
+        leaveRoomBtn.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				String room = selectedRoom();
+				if (room != null) {
+					sendRoomCommand(FrameType.LEAVE, room);
+				}
+			}
+        	
+        });
+        
+        // added listeners to send a file and to save one that was sent
+        sendFileBtn.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+				chooseUpload();
+			}
+        	
+        });
+        messageList.addMouseListener(new MouseAdapter() {
+
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				int index = messageList.locationToIndex(e.getPoint());
+				if (e.getClickCount() == 2 && index >= 0) {
+					chooseDownload(messages.getElementAt(index));
+				}
+			}
+        	
+        });
+        
     }
     
     // This function handles the online user list row coloring feature
@@ -222,6 +418,534 @@ public class ChatClient {
             JOptionPane.PLAIN_MESSAGE);
     }
     
+    /**
+     * Sends a line typed into the text field.  As in the text protocol,
+     * "alice,bob>>hello" is a private message for alice and bob, and
+     * anything else is for everybody.
+     */
+    void sendTyped(String typed) {
+        if (typed.startsWith("/search ")) {
+            sendSearch(typed.substring("/search ".length()));
+            return;
+        }
+        if (typed.startsWith("/join ") || typed.startsWith("/leave ")) {
+            int space = typed.indexOf(' ');
+            FrameType command = typed.startsWith("/join ") ? FrameType.JOIN : FrameType.LEAVE;
+            sendRoomCommand(command, typed.substring(space + 1).trim());
+            return;
+        }
+        int marker = typed.indexOf(">>");
+        String room = selectedRoom();
+        if (marker < 0 && room != null) {
+            sendDirect(Arrays.asList("#" + room), typed);
+            return;
+        }
+        if (marker < 0 || !binaryActive) {
+            sendText(typed);
+            return;
+        }
+        List<String> recipients = new ArrayList<String>();
+        for (String recipient : typed.substring(0, marker).split(",")) {
+            if (!recipient.trim().isEmpty()) {
+                recipients.add(recipient.trim());
+            }
+        }
+        sendDirect(recipients, typed.substring(marker + 2));
+    }
+
+    /**
+     * Returns the room picked as the target of typed messages, or null
+     * for everyone.
+     */
+    String selectedRoom() {
+        String selected = (String) roomBox.getSelectedItem();
+        return selected == null || selected.equals(EVERYONE) ? null : selected.substring(1);
+    }
+
+    /**
+     * Asks the server to join or leave a room.
+     */
+    void sendRoomCommand(FrameType command, String room) {
+        if (binaryActive) {
+            write(BinaryFrames.encode(command, room.getBytes(StandardCharsets.UTF_8)));
+        } else {
+            String line = (command == FrameType.JOIN ? "/join " : "/leave ") + room + "\n";
+            write(line.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Searches what has been said; see SearchIndex for the query.
+     */
+    void sendSearch(String query) {
+        if (binaryActive) {
+            write(BinaryFrames.encode(FrameType.SEARCH, query.getBytes(StandardCharsets.UTF_8)));
+        } else {
+            write(("/search " + query + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    void sendName(String name) {
+        if (binaryActive) {
+            write(BinaryFrames.encode(FrameType.NAME, name.getBytes(StandardCharsets.UTF_8)));
+        } else {
+            write((name + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    void sendText(String text) {
+        if (binaryActive) {
+            write(BinaryFrames.encode(FrameType.TEXT, text.getBytes(StandardCharsets.UTF_8)));
+        } else {
+            write((text + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    void sendDirect(List<String> recipients, String message) {
+        if (binaryActive) {
+            write(BinaryFrames.encode(FrameType.DIRECT, BinaryFrames.directPayload(recipients, message)));
+        } else {
+            // the text protocol takes a comma separated recipient list
+            write((String.join(",", recipients) + ">>" + message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Asks for a file and sends it to the selected room, or to everybody,
+     * on a thread of its own.  Runs on the Swing thread.
+     */
+    private void chooseUpload() {
+        if (!binaryActive) {
+            updates.line("!!! Files can only be sent in the binary protocol");
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        String room = selectedRoom();
+        String recipients = room == null ? "" : "#" + room;
+        Socket connection = socket;
+        Thread uploader = new Thread(() -> upload(file, recipients, connection), "upload");
+        uploader.setDaemon(true);
+        uploader.start();
+    }
+
+    /**
+     * Sends a file as an UPLOAD frame followed by its bytes in UPLOADDATA
+     * frames, reusing one buffer for all of them.  The upload is given up
+     * if the connection it started on is lost; the server throws away
+     * what it got.
+     */
+    private void upload(File file, String recipients, Socket connection) {
+        byte[] chunk = new byte[BinaryFrames.HEADER_LENGTH + AttachmentStore.CHUNK_BYTES];
+        try (FileInputStream input = new FileInputStream(file)) {
+            long size = file.length();
+            byte[] start = BinaryFrames.encode(FrameType.UPLOAD,
+                    BinaryFrames.uploadPayload(size, recipients, file.getName()));
+            boolean connected = write(connection, start, 0, start.length);
+            long sent = 0;
+            int shown = -1;
+            while (connected && sent < size) {
+                int read = input.read(chunk, BinaryFrames.HEADER_LENGTH,
+                        (int) Math.min(AttachmentStore.CHUNK_BYTES, size - sent));
+                if (read < 0) {
+                    throw new IOException("the file got shorter");
+                }
+                BinaryFrames.writeHeader(chunk, 0, FrameType.UPLOADDATA, read);
+                connected = write(connection, chunk, 0, BinaryFrames.HEADER_LENGTH + read);
+                sent += read;
+                shown = showProgress(sent, size, shown);
+            }
+            if (!connected) {
+                updates.line("!!! Sending " + file.getName() + " was cut off by the connection dropping");
+            }
+        } catch (IOException e) {
+            updates.line("!!! Cannot send " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Asks where to save the file announced in a line of chat, if it
+     * announces one, and asks the server for it.  Runs on the Swing
+     * thread.
+     */
+    private void chooseDownload(String line) {
+        String[] attachment = AttachmentStore.parseAnnouncement(line);
+        if (attachment == null) {
+            return;
+        }
+        if (!binaryActive) {
+            updates.line("!!! Files can only be fetched in the binary protocol");
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File(attachment[2]));
+        if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            updates.line("!!! Cannot save to " + file + ": " + e.getMessage());
+            return;
+        }
+        int id = nextDownload.incrementAndGet();
+        downloads.put(id, new Incoming(file, channel));
+        write(BinaryFrames.encode(FrameType.DOWNLOAD, BinaryFrames.downloadPayload(id, attachment[0])));
+    }
+
+    /**
+     * Writes an ATTACHMENT or ATTACHMENTDATA frame's news to the download
+     * it belongs to, straight from the reader's buffer.
+     */
+    private void receiveAttachment(InboundFrame frame) {
+        int id = BinaryFrames.readInt(frame.buffer, frame.offset);
+        Incoming incoming = downloads.get(id);
+        if (incoming == null) {
+            return;
+        }
+        try {
+            if (frame.type() == FrameType.ATTACHMENT) {
+                incoming.size = BinaryFrames.readLong(frame.buffer, frame.offset + 4);
+                if (incoming.size < 0) {
+                    downloads.remove(id);
+                    incoming.discard();
+                    updates.line("!!! " + incoming.file.getName() + " is not available on this server");
+                }
+                return;
+            }
+            ByteBuffer data = ByteBuffer.wrap(frame.buffer, frame.offset + 4, frame.length - 4);
+            while (data.hasRemaining()) {
+                incoming.channel.write(data);
+            }
+            incoming.received += frame.length - 4;
+            incoming.shown = showProgress(incoming.received, incoming.size, incoming.shown);
+            if (incoming.received >= incoming.size) {
+                downloads.remove(id);
+                incoming.channel.close();
+                updates.line("--- Saved " + incoming.file + " ---");
+            }
+        } catch (IOException e) {
+            downloads.remove(id);
+            incoming.discard();
+            updates.line("!!! Cannot save to " + incoming.file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves the progress bar if the percentage done has changed since it
+     * was last shown, and returns the percentage.
+     */
+    private int showProgress(long done, long size, int shown) {
+        int percent = size <= 0 ? 100 : (int) (done * 100 / size);
+        if (percent != shown) {
+            SwingUtilities.invokeLater(() -> transferBar.setValue(percent));
+        }
+        return percent;
+    }
+
+    /**
+     * Tells the server that every message up to lastSequence has arrived.
+     */
+    void acknowledge() {
+        byte[] payload = new byte[8];
+        BinaryFrames.writeLong(payload, 0, lastSequence);
+        write(BinaryFrames.encode(FrameType.ACK, payload));
+        unacknowledged = 0;
+    }
+
+    /**
+     * Answers SUBMITNAME.  After a reconnect the client first tries to
+     * resume its session and then to take back its old name, and only
+     * asks the user if neither works.
+     */
+    private void submitName() {
+        if (binaryActive && resumeToken != null && !resuming && !nameResent) {
+            resuming = true;
+            write(BinaryFrames.encode(FrameType.RESUME, BinaryFrames.resumePayload(lastSequence, resumeToken)));
+            return;
+        }
+        if (resuming) {
+            // the server has forgotten the session
+            resuming = false;
+            resumeToken = null;
+        }
+        if (screenName != null && !nameResent) {
+            nameResent = true;
+            requestedName = screenName;
+            sendName(screenName);
+            return;
+        }
+        // Asked on the Swing thread, so that this one goes on reading
+        // and answers PING while the user makes up their mind.
+        nameResent = true;
+        SwingUtilities.invokeLater(() -> {
+            String name = getName();
+            if (name == null) {
+                // cancelled: stay offline rather than ask again forever
+                return;
+            }
+            requestedName = name;
+            sendName(name);
+        });
+    }
+
+    /**
+     * Writes one encoded line or frame.  Called from both the Swing
+     * thread and the reader thread, so writes are serialised.  Like the
+     * PrintWriter this replaces, a failed write is ignored; the reader
+     * thread finds out that the connection is gone.
+     */
+    private synchronized void write(byte[] bytes) {
+        try {
+            out.write(bytes);
+            out.flush();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Writes part of an encoded frame, but only if the client is still
+     * on the given connection.  Returns false if it is not, or if the
+     * write failed.
+     */
+    private synchronized boolean write(Socket connection, byte[] bytes, int offset, int length) {
+        if (socket != connection) {
+            return false;
+        }
+        try {
+            out.write(bytes, offset, length);
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Acts on one frame from the server, whichever protocol it came in.
+     */
+    private void handle(FrameType type, String payload) {
+        switch (type) {
+        case SUBMITNAME:
+            if (binaryProtocol && !binaryRequested) {
+                binaryRequested = true;
+                write((BinaryFrames.BINARY_REQUEST + "\n").getBytes(StandardCharsets.UTF_8));
+            } else {
+                submitName();
+            }
+            break;
+        case BINARY:
+            binaryActive = true;
+            break;
+        case NAMEACCEPTED:
+            if (!resuming) {
+                // a new session: the server numbers its messages from 1,
+                // and we are in no rooms
+                screenName = requestedName;
+                lastSequence = 0;
+                SwingUtilities.invokeLater(() -> {
+                    roomBox.removeAllItems();
+                    roomBox.addItem(EVERYONE);
+                });
+            }
+            resuming = false;
+            resumeToken = payload.isEmpty() ? null : payload;
+            backoffMillis = MIN_BACKOFF_MILLIS;
+            SwingUtilities.invokeLater(() -> textField.setEditable(true));
+            break;
+        case SEQUENCE:
+            break;
+        case PING: // the server is checking that we are still here
+            if (binaryActive) {
+                write(BinaryFrames.encode(FrameType.PONG, new byte[0]));
+            } else {
+                write((IdleTracker.PONG_COMMAND + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            break;
+        case MESSAGE:
+            long sequence = nextSequence;
+            nextSequence = 0;
+            if (sequence != 0) {
+                if (sequence <= lastSequence) {
+                    break; // already shown before the connection dropped
+                }
+                lastSequence = sequence;
+                if (++unacknowledged >= ACK_INTERVAL) {
+                    acknowledge();
+                }
+            }
+            updates.line(payload);
+            break;
+        case ERROR: // a private message could not be delivered
+            updates.line("!!! " + payload);
+            break;
+        case SEARCHRESULTS: // the answer to /search, a line per match follows
+            updates.line("--- " + payload + " ---");
+            break;
+        case SEARCHRESULT:
+            updates.line("  > " + payload);
+            break;
+        case NEW: // Added new protocol to handle refreshing the online user list
+            updates.newRoster();
+            break;
+        case ONLINEUSERS: // Added new protocol to handle viewing online users
+        case JOINED: // another user has come online since we got the list
+            updates.online(payload, true);
+            break;
+        case USERLEFT: // Added new protocol to handle removing offline users from the list
+            updates.online(payload, false);
+            break;
+        case ROOMJOINED: // typed messages go to the room we have just joined
+            SwingUtilities.invokeLater(() -> {
+                roomBox.addItem("#" + payload);
+                roomBox.setSelectedItem("#" + payload);
+            });
+            break;
+        case ROOMLEFT:
+            SwingUtilities.invokeLater(() -> roomBox.removeItem("#" + payload));
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Shows what the reader thread has received since the last UI frame.
+     * Runs on the Swing thread, from uiTimer.
+     */
+    private void applyUpdates() {
+        UiUpdates.Batch batch = updates.take();
+        if (batch == null) {
+            return;
+        }
+        if (batch.roster != null) {
+            // built before the list sees it, so it sends no events at all
+            DefaultListModel<String> roster = new DefaultListModel<String>();
+            roster.ensureCapacity(batch.roster.size());
+            for (String name : batch.roster) {
+                roster.addElement(name);
+            }
+            onlineUserListModel = roster;
+            onlineUserList.setModel(roster);
+        }
+        for (Map.Entry<String, Boolean> change : batch.online.entrySet()) {
+            if (!change.getValue()) {
+                onlineUserListModel.removeElement(change.getKey());
+            } else if (!onlineUserListModel.contains(change.getKey())) {
+                onlineUserListModel.addElement(change.getKey());
+            }
+        }
+        if (!batch.lines.isEmpty()) {
+            // follow new messages unless the user has scrolled up to read
+            JScrollBar bar = messageScroll.getVerticalScrollBar();
+            boolean following = bar.getValue() + bar.getVisibleAmount()
+                    >= bar.getMaximum() - messageList.getFixedCellHeight();
+            messages.addAll(batch.lines);
+            if (following) {
+                messageList.ensureIndexIsVisible(messages.getSize() - 1);
+            }
+        }
+    }
+
+    /**
+     * Messages and changes to the online user list that the reader
+     * thread has received and the Swing thread has not shown yet.  A new
+     * user list replaces whatever was pending, and several changes for
+     * the same user leave only the last one, so a burst costs the UI one
+     * update per frame whatever its size.
+     */
+    private final class UiUpdates {
+        private Batch pending = new Batch();
+
+        synchronized void line(String line) {
+            pending.lines.add(line);
+            // more than the scrollback holds would only be thrown away
+            int excess = pending.lines.size() - 2 * messages.limit();
+            if (excess > 0) {
+                pending.lines.subList(0, excess).clear();
+            }
+        }
+
+        synchronized void newRoster() {
+            pending.roster = new LinkedHashSet<String>();
+            pending.online.clear();
+        }
+
+        synchronized void online(String name, boolean online) {
+            if (pending.roster == null) {
+                pending.online.put(name, online);
+            } else if (online) {
+                pending.roster.add(name);
+            } else {
+                pending.roster.remove(name);
+            }
+        }
+
+        /**
+         * Returns everything pending, or null if there is nothing.
+         */
+        synchronized Batch take() {
+            if (pending.lines.isEmpty() && pending.roster == null && pending.online.isEmpty()) {
+                return null;
+            }
+            Batch taken = pending;
+            pending = new Batch();
+            return taken;
+        }
+
+        final class Batch {
+            final List<String> lines = new ArrayList<String>();
+            LinkedHashSet<String> roster;
+            final Map<String, Boolean> online = new LinkedHashMap<String, Boolean>();
+        }
+    }
+
+    /**
+     * A file being downloaded.  Only the reader thread uses it once the
+     * request has been sent.
+     */
+    private static final class Incoming {
+        final File file;
+        final FileChannel channel;
+        long size = -1;
+        long received;
+        int shown = -1;
+
+        Incoming(File file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        void discard() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Works out which server frame a text protocol line is from its
+     * keyword, or returns null for a line this client does not know.
+     */
+    private static FrameType textType(String line) {
+        for (FrameType type : FrameType.values()) {
+            String keyword = type.keyword;
+            if (keyword != null && line.startsWith(keyword)
+                    && (line.length() == keyword.length() || line.charAt(keyword.length()) == ' ')) {
+                return type;
+            }
+        }
+        return null;
+    }
+
     /**
      * Connects to the server then enters the processing loop.
      */
@@ -231,11 +955,7 @@ public class ChatClient {
         String serverAddress = getServerAddress();
         
         try {
-        	Socket socket = new Socket(serverAddress, 9001);
-        	in = new BufferedReader(new InputStreamReader(
-                    socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-                
+        	connect(serverAddress);
         }
         catch(Exception e) { // if the chat server is not running 
         	JOptionPane.showMessageDialog(
@@ -246,33 +966,137 @@ public class ChatClient {
         	
         	// close opened windows 
         	frame.setVisible(false);
+        	return;
         }
         
-        
-        
-        // Process all messages from server, according to the protocol.
         while (true) {
-        	
-            String line = in.readLine();
-            
-            if(line != null) {
-            	if (line.startsWith("SUBMITNAME")) {
-                    out.println(getName());
-                } else if (line.startsWith("NAMEACCEPTED")) {            
-                    textField.setEditable(true);
-                } else if (line.startsWith("MESSAGE")) {
-                    messageArea.append(line.substring(8) + "\n");
-                } else if (line.startsWith("ONLINEUSERS"))  { // Added new protocol to handle viewing online users
-                	onlineUserListModel.addElement(line.substring(12));
-    	        } else if (line.startsWith("USERLEFT"))  { // Added new protocol to handle removing offline users from the list 
-    	        	onlineUserListModel.removeElement(line.substring(9));	        
-    	        }  else if (line.startsWith("NEW"))  { // Added new protocol to handle refreshing the online user list
-    	        	onlineUserListModel.removeAllElements();
-    	        }
+            try {
+                receive();
+            } catch (IOException e) {
+                // Give up as before if we never got into the chat
+                if (screenName == null) {
+                    throw e;
+                }
             }
             
+            // Keep trying to get back in, backing off between attempts
+            SwingUtilities.invokeLater(() -> textField.setEditable(false));
+            updates.line("--- Connection lost, reconnecting ---");
+            while (true) {
+                try {
+                    long jitter = (long) (Math.random() * backoffMillis / 2);
+                    Thread.sleep(backoffMillis + jitter);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+                try {
+                    connect(serverAddress);
+                    break;
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a new connection, which starts again in the text protocol.
+     */
+    private synchronized void connect(String serverAddress) throws IOException {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+        socket = tls == null ? new Socket(serverAddress, PORT) : secureSocket(serverAddress);
+        for (Incoming incoming : downloads.values()) {
+            // the new connection knows nothing of them
+            incoming.discard();
+            updates.line("!!! Saving " + incoming.file.getName() + " was cut off by the connection dropping");
+        }
+        downloads.clear();
+        in = new FrameReader(socket.getInputStream());
+        out = socket.getOutputStream();
+        binaryActive = false;
+        binaryRequested = false;
+        nameResent = false;
+        resuming = false;
+        nextSequence = 0;
+        unacknowledged = 0;
+    }
+
+    /**
+     * Opens a TLS connection and checks that the certificate is the
+     * server's, by its name or address, as a browser would.
+     */
+    private Socket secureSocket(String serverAddress) throws IOException {
+        SSLSocket secure = (SSLSocket) tls.createSocket(serverAddress, PORT);
+        // the handshake is a few small writes each way, which Nagle would hold up
+        secure.setTcpNoDelay(true);
+        SSLParameters parameters = secure.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        secure.setSSLParameters(parameters);
+        secure.startHandshake();
+        return secure;
+    }
+
+    /**
+     * Returns the factory for TLS sockets that trust the certificates in
+     * the given store, or the JVM's if it is null.
+     */
+    private static SSLSocketFactory tlsFactory(String truststore, String password) throws Exception {
+        TrustManager[] trust = null;
+        if (truststore != null) {
+            KeyStore certificates = KeyStore.getInstance(truststore.endsWith(".jks") ? "JKS" : "PKCS12");
+            try (FileInputStream in = new FileInputStream(truststore)) {
+                certificates.load(in, password == null ? null : password.toCharArray());
+            }
+            TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            factory.init(certificates);
+            trust = factory.getTrustManagers();
+        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust, null);
+        return context.getSocketFactory();
+    }
+
+    /**
+     * Processes all messages from the server, according to the protocol,
+     * until the connection is lost.
+     */
+    private void receive() throws IOException {
+        while (true) {
+        	
+            if (binaryActive) {
+            	// The frame's type is read straight from its first byte, and
+            	// only the payload is decoded
+            	InboundFrame serverFrame = in.readFrame();
+            	if (serverFrame == null) {
+            		throw new IOException("Server closed the connection");
+            	}
+            	if (serverFrame.type() == FrameType.SEQUENCE) {
+            		nextSequence = BinaryFrames.readLong(serverFrame.buffer, serverFrame.offset);
+            		continue;
+            	}
+            	if (serverFrame.type() == FrameType.ATTACHMENT || serverFrame.type() == FrameType.ATTACHMENTDATA) {
+            		receiveAttachment(serverFrame);
+            		continue;
+            	}
+            	handle(serverFrame.type(), serverFrame.payloadString());
+            	continue;
+            }
             
+            String line = in.readLine();
             
+            if (line == null) {
+            	throw new IOException("Server closed the connection");
+            }
+            FrameType type = textType(line);
+            if (type != null) {
+            	int payloadStart = Math.min(line.length(), type.keyword.length() + 1);
+            	handle(type, line.substring(payloadStart));
+            }
         }
     }
 
@@ -281,6 +1105,23 @@ public class ChatClient {
      */
     public static void main(String[] args) throws Exception {
         ChatClient client = new ChatClient();
+        client.binaryProtocol = !Arrays.asList(args).contains("--text");
+        boolean tls = Arrays.asList(args).contains("--tls");
+        String truststore = null;
+        String truststorePassword = null;
+        for (String arg : args) {
+            if (arg.startsWith("--scrollback=")) {
+                client.messages.setLimit(Integer.parseInt(arg.substring("--scrollback=".length())));
+            } else if (arg.startsWith("--truststore=")) {
+                truststore = arg.substring("--truststore=".length());
+                tls = true;
+            } else if (arg.startsWith("--truststore-password=")) {
+                truststorePassword = arg.substring("--truststore-password=".length());
+            }
+        }
+        if (tls) {
+            client.tls = tlsFactory(truststore, truststorePassword);
+        }
         client.frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         client.frame.setVisible(true);
        
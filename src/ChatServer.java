@@ -3,15 +3,22 @@ import java.awt.Toolkit;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.StringTokenizer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 
 /**
  * A multithreaded chat room server.  When a client connects the
@@ -21,7 +28,23 @@ import java.util.StringTokenizer;
  * name, the server acknowledges with "NAMEACCEPTED".  Then
  * all messages from that client will be broadcast to all other
  * clients that have submitted a unique screen name.  The
- * broadcast messages are prefixed with "MESSAGE ".
+ * broadcast messages are prefixed with "MESSAGE ".  A new client
+ * is sent the list of online users as "NEW" followed by one
+ * "ONLINEUSERS " line per name, and afterwards "JOINED " and
+ * "USERLEFT " lines as users come and go.
+ *
+ * A client that has been quiet for a while is sent "PING", to which it
+ * answers "/pong"; one that does not answer is disconnected.  See
+ * IdleTracker.
+ *
+ * A client may answer the first "SUBMITNAME" with "/binary" instead of
+ * a name.  The server then replies "BINARY" and both sides switch to
+ * the length prefixed binary protocol described in BinaryFrames.
+ *
+ * With --tls-keystore the server only accepts TLS.  A handler already
+ * has a thread of its own to block in, so here the sockets come from
+ * the SSLContext's SSLServerSocketFactory; NioChatServer drives an
+ * SSLEngine per client instead.
  *
  * Because this is just a teaching example to illustrate a simple
  * chat server, there are a few features that have been left out.
@@ -35,24 +58,64 @@ import java.util.StringTokenizer;
 public class ChatServer {
 
     /**
-     * The port that the server listens on.
+     * The sessions of all clients in the chat room, by name.  Used to
+     * check that new clients are not registering a name already in use,
+     * to find the recipient of a private message and to broadcast.
      */
-    private static final int PORT = 9001;
+    private static final SessionRegistry sessions = new SessionRegistry();
 
     /**
-     * The set of all names of clients in the chat room.  Maintained
-     * so that we can check that new clients are not registering name
-     * already in use.
+     * Delivers each line a client sends, either to everybody or to the
+     * recipients named in front of ">>".
      */
-    private static HashSet<String> names = new HashSet<String>();
+    private static MessageRouter router;
+
+    /**
+     * Records every message so that new clients can be shown the latest
+     * ones, or null if the log is turned off.
+     */
+    private static MessageLog log;
+
+    /**
+     * Runs the tasks that write each client's queued lines to its
+     * socket, so that a client that reads slowly only holds up its own
+     * writer task and never the handler that is sending to it.
+     */
+    private static ExecutorService writerTasks;
+
+    /**
+     * Buffers in which a writer task gathers a client's queued frames
+     * into a single write, ServerConfig.writeBatchBytes each.  They are
+     * only held while a task is writing, so there are only ever as many
+     * as there are tasks writing at once, however many clients there
+     * are.
+     */
+    private static final Queue<byte[]> writeBuffers = new ConcurrentLinkedQueue<byte[]>();
+    private static int writeBatchBytes;
+    private static long writeLingerNanos;
 
-    private static Map<String,PrintWriter> clients = new HashMap<String,PrintWriter>();
-    
     /**
-     * The set of all the print writers for all the clients.  This
-     * set is kept so we can easily broadcast messages.
+     * Sends each new client the online user list and tells everybody
+     * else who has joined or left.
      */
-    private static HashSet<PrintWriter> writers = new HashSet<PrintWriter>();
+    private static Presence presence;
+
+    /**
+     * Keeps the session of a binary client whose connection dropped, so
+     * that it can pick up where it left off.
+     */
+    private static SessionResumer resumer;
+
+    /**
+     * Limits how fast each client may send and how fast each address
+     * may connect.
+     */
+    private static RateLimiter limiter;
+
+    /**
+     * Pings quiet clients and disconnects the ones that have gone.
+     */
+    private static IdleTracker idleTracker;
 
     Socket socket;
     static BufferedReader in;
@@ -60,45 +123,274 @@ public class ChatServer {
     
     /**
      * The application main method, which just listens on a port and
-     * spawns handler threads.
+     * spawns handler threads.  With --mode=virtual each handler runs on
+     * a virtual thread instead, and with --mode=nio the clients are
+     * served by the non-blocking NioChatServer.
      */
     public static void main(String[] args) throws Exception {
-        System.out.println("The chat server is running.");
+        ServerConfig config = ServerConfig.parse(args);
+        
+        if (config.mode == ServerConfig.Mode.NIO) {
+            System.out.println("The chat server is running with " + config.eventLoops + " event loops.");
+            new NioChatServer(config).run();
+            return;
+        }
         
-       ServerSocket listener = new ServerSocket(PORT);
+        ExecutorService virtualThreads = null;
+        if (config.mode == ServerConfig.Mode.VIRTUAL) {
+            virtualThreads = newVirtualThreadPerTaskExecutor();
+            writerTasks = virtualThreads;
+            System.out.println("The chat server is running on virtual threads.");
+        } else {
+            writerTasks = Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "client-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            System.out.println("The chat server is running.");
+        }
+        writeBatchBytes = config.writeBatchBytes;
+        writeLingerNanos = TimeUnit.MICROSECONDS.toNanos(config.writeLingerMicros);
+        log = config.openMessageLog();
+        router = new MessageRouter(sessions, log);
+        router.setAttachments(config.openAttachmentStore());
+        Mailbox mailbox = config.openMailbox();
+        router.setMailbox(mailbox);
+        router.setPipeline(config.newMessagePipeline(sessions, mailbox));
+        presence = new Presence(sessions, config.presenceWindowMillis);
+        resumer = config.newSessionResumer(sessions, presence);
+        limiter = config.newRateLimiter();
+        idleTracker = config.newIdleTracker();
+        HandlerStats.startReporter(config.statsInterval, sessions);
+        config.startCluster(sessions, router, presence);
+        Metrics.start(config.metricsPort, sessions);
+        
+        SSLContext tls = config.newTlsContext();
+        ServerSocket listener = tls == null ? new ServerSocket(config.port, config.backlog)
+                : tls.getServerSocketFactory().createServerSocket(config.port, config.backlog);
 
         try {
             while (true) {
             	Socket socket  = listener.accept();
-            	Handler handler = new Handler(socket);
-                Thread handlerThread = new Thread(handler);
-                handlerThread.start();
+            	if (!limiter.admitConnection(socket.getInetAddress())) {
+            		socket.close();
+            		continue;
+            	}
+            	// writes are batched in drain, so Nagle would only add delay
+            	socket.setTcpNoDelay(true);
+            	Handler handler = new Handler(socket, config.newOutboundQueue());
+            	if (virtualThreads != null) {
+            		virtualThreads.execute(handler);
+            	} else {
+                    Thread handlerThread = new Thread(handler);
+                    handlerThread.start();
+            	}
             }
         } finally {
             listener.close();
         }
     }
 
+    /**
+     * Returns Executors.newVirtualThreadPerTaskExecutor().  It is looked
+     * up reflectively because the project still compiles for Java 8; on
+     * an older runtime the server refuses to start in virtual mode.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("--mode=virtual needs Java 21 or later", e);
+        }
+    }
+
     /**
      * A handler thread class.  Handlers are spawned from the listening
      * loop and are responsible for a dealing with a single client
      * and broadcasting its messages.
      */
-    private static class Handler implements Runnable {
+    private static class Handler extends Session implements Runnable {
     	
     	private ThreadLocal<String> myThreadLocal = new ThreadLocal<String>();
         private String name;
         private Socket socket;
-        BufferedReader in;
-        PrintWriter out;
+        private boolean busy;
+        FrameReader in;
+        OutputStream out;
+        private WritableByteChannel outChannel;
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+        /**
+         * nanoTime of the last write.  Only the single running writer
+         * task uses it, and drainScheduled orders one task after the
+         * next.
+         */
+        private long lastWrite;
+
+        private final RateLimiter.Client rate;
+
+        private final IdleTracker.Entry idle;
 
         /**
          * Constructs a handler thread, squirreling away the socket.
          * All the interesting work is done in the run method.
          * 
          */
-        public Handler(Socket socket) {
+        public Handler(Socket socket, OutboundQueue outbound) {
+            super(outbound);
             this.socket = socket;
+            this.rate = limiter.newClient(socket.getInetAddress());
+            this.idle = idleTracker.track(this);
+        }
+
+        /**
+         * Applies the rate limit to what the client has just sent, and
+         * returns whether to handle it.  A delayed client simply is not
+         * read from while this thread sleeps, so the socket fills up and
+         * TCP holds the sender back without anybody else waiting.
+         */
+        private boolean admitted() throws IOException {
+            long wait = limiter.admit(rate);
+            if (wait == 0) {
+                return true;
+            }
+            Metrics.rateLimited.increment();
+            switch (limiter.action) {
+            case DELAY:
+                do {
+                    LockSupport.parkNanos(wait);
+                } while ((wait = limiter.admit(rate)) > 0);
+                return true;
+            case DROP:
+                if (!rate.warned) {
+                    rate.warned = true;
+                    send(Frame.of(FrameType.ERROR, "Slow down, messages are being dropped"));
+                }
+                return false;
+            default:
+                throw new IOException("Sending too fast");
+            }
+        }
+
+        /**
+         * Makes sure a writer task is on its way to drain the queue.
+         * Only one task per client runs at a time.
+         */
+        @Override
+        protected void outboundReady() {
+            if (drainScheduled.compareAndSet(false, true)) {
+                writerTasks.execute(this::drain);
+            }
+        }
+
+        /**
+         * Writes queued lines to the socket until the queue is empty,
+         * and whenever it is, a chunk of the file being downloaded, if
+         * any.  A failed write closes the socket, which in turn ends the
+         * read loop in run and cleans the client up.
+         */
+        private void drain() {
+            byte[] batch = writeBuffers.poll();
+            if (batch == null) {
+                batch = new byte[writeBatchBytes];
+            }
+            try {
+                while (true) {
+                    writeQueued(batch);
+                    AttachmentStore.Download download = currentDownload();
+                    if (download == null) {
+                        break;
+                    }
+                    writeChunk(download);
+                }
+            } catch (IOException e) {
+                close();
+            } finally {
+                writeBuffers.offer(batch);
+                drainScheduled.set(false);
+            }
+            // A line may have been queued after the last poll but before
+            // the flag was cleared; make sure it is not left behind.
+            if (!outbound.isEmpty() || currentDownload() != null) {
+                outboundReady();
+            }
+        }
+
+        /**
+         * Writes the queued frames, copying as many as fit into the batch
+         * buffer so that a burst of frames costs one system call rather
+         * than one each.
+         */
+        private void writeQueued(byte[] batch) throws IOException {
+            long written = 0;
+            try {
+                int length = 0;
+                boolean lingered = false;
+                while (true) {
+                    byte[] frame = outbound.poll();
+                    if (frame == null) {
+                        if (length > 0 && !lingered && System.nanoTime() - lastWrite < writeLingerNanos) {
+                            // busy client: give the frames on their way a moment to catch up
+                            lingered = true;
+                            LockSupport.parkNanos(writeLingerNanos);
+                            continue;
+                        }
+                        break;
+                    }
+                    if (length + frame.length > batch.length) {
+                        if (length > 0) {
+                            out.write(batch, 0, length);
+                            written += length;
+                            length = 0;
+                        }
+                        if (frame.length > batch.length) {
+                            out.write(frame);
+                            written += frame.length;
+                            continue;
+                        }
+                    }
+                    System.arraycopy(frame, 0, batch, length, frame.length);
+                    length += frame.length;
+                }
+                if (length > 0) {
+                    out.write(batch, 0, length);
+                    written += length;
+                    lastWrite = System.nanoTime();
+                }
+            } finally {
+                Metrics.bytesWritten.add(written);
+            }
+        }
+
+        /**
+         * Writes one chunk of a file.  A socket from a ServerSocket has no
+         * channel, so transferTo copies through a small buffer of its own
+         * rather than using sendfile, but the file is still never read
+         * onto the heap as a whole.
+         */
+        private void writeChunk(AttachmentStore.Download download) throws IOException {
+            byte[] header = download.startChunk();
+            out.write(header);
+            Metrics.bytesWritten.add(header.length);
+            if (outChannel == null) {
+                outChannel = Channels.newChannel(out);
+            }
+            while (download.chunkLeft() > 0) {
+                Metrics.bytesWritten.add(download.transfer(outChannel));
+            }
+            if (download.finished()) {
+                downloadFinished(download);
+            }
+        }
+
+        @Override
+        public void close() {
+            outbound.close();
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            closeTransfers();
         }
 
         /**
@@ -109,140 +401,147 @@ public class ChatServer {
          * broadcasts them.
          */
         public void run() {
+            HandlerStats.connected();
             try {
+                if (socket instanceof SSLSocket) {
+                    TlsChannel.handshake((SSLSocket) socket);
+                }
 
                 // Create character streams for the socket.
-                in = new BufferedReader(new InputStreamReader(
-                    socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+                in = new FrameReader(socket.getInputStream());
+                out = socket.getOutputStream();
 
                 // Request a name from this client.  Keep requesting until
-                // a name is submitted that is not already used.  Note that
-                // checking for the existence of a name and adding the name
-                // must be done while locking the set of names.
+                // a name is submitted that is not already used.  The
+                // registry claims the name atomically, so no lock is needed.
+                // Instead of a name the client may ask for the binary protocol,
+                // or once binary, to resume a session it lost.
+                boolean resumed = false;
+                boolean prompt = true;
                 while (true) {
-                    out.println("SUBMITNAME");
-                    
-                    name = in.readLine();
+                    if (prompt) {
+                        send(Frame.of(FrameType.SUBMITNAME));
+                    }
+                    prompt = true;
                     
-                    if (name == null) {
-                    	return;
+                    String requested;
+                    if (encoding() == Frame.Encoding.BINARY) {
+                    	InboundFrame frame = in.readFrame();
+                    	if (frame == null) {
+                    		return;
+                    	}
+                    	idle.touch();
+                    	if (frame.type() == FrameType.PONG) {
+                    		prompt = false;
+                    		continue;
+                    	}
+                    	if (!admitted()) {
+                    		continue;
+                    	}
+                    	if (frame.type() == FrameType.RESUME && resumer.resume(this, frame)) {
+                    		name = name();
+                    		resumed = true;
+                    		break;
+                    	}
+                    	requested = frame.type() == FrameType.NAME ? frame.payloadString() : "";
+                    } else {
+                    	requested = in.readLine();
+                    	if (requested == null) {
+                    		return;
+                    	}
+                    	idle.touch();
+                    	if (IdleTracker.isPong(requested)) {
+                    		prompt = false;
+                    		continue;
+                    	}
+                    	if (!admitted()) {
+                    		continue;
+                    	}
+                    	if (requested.equals(BinaryFrames.BINARY_REQUEST)) {
+                    		send(Frame.of(FrameType.BINARY));
+                    		useBinary();
+                    		continue;
+                    	}
                     }
                     
-                    // synchronized lock to ensure the thread safety of the shared variable 'names'
-					synchronized(names) {
-						try{  
-							if (!names.contains(name)) {
-	                            names.add(name);
-	                            clients.put(name, out);
-	                            break;
-	                        }
-							else {
-								Toolkit.getDefaultToolkit().beep();
-							}
-						}
-						catch(Exception e){
-							System.out.println(e);
-						}  
+                    if (MessageRouter.isValidName(requested) && sessions.register(requested, this)) {
+                    	name = requested;
+                    	break;
                     }
                     
-                     
+                    try {
+                    	Toolkit.getDefaultToolkit().beep();
+                    }
+                    catch(Exception e){
+                    	System.out.println(e);
+                    }
                  }
 
-                // Now that a successful name has been chosen, add the
-                // socket's print writer to the set of all writers so
-                // this client can receive broadcast messages.
-                out.println("NAMEACCEPTED");
-                writers.add(out);
-                
-                // Broadcast to all online clients that new user has joined the chat
-                for (PrintWriter writer : writers) {
-                    writer.println("MESSAGE <<< " + name + " has joined the conversation >>>");
+                // Now that a successful name has been chosen, the session
+                // is in the registry and receives broadcast messages.  A
+                // resumed session has already been brought up to date.
+                if (!resumed) {
+                    resumer.accepted(this);
                     
-                }
-                                           
-               
-                // TODO: You may have to add some code here to broadcast all clients the new
-                // client's name for the task 9 on the lab sheet. 
-                while(true) {
-                	
-                	// Iterating through names hash set using Iterator 
-                	Iterator<String> hashSetIterator = names.iterator();
-                	
-                	// Broadcast all clients that a new user has been joined to the chat
-                	// and clear the online user list for refresh the list
-                	for (PrintWriter writer : writers) {
-                		writer.println("NEW");
+                    // Show the new client what was said before it arrived.
+                    if (log != null) {
+                        log.replay(this);
                     }
-                	
-                	// Refresh the online user list 
-                	
-                	while (hashSetIterator.hasNext()) {
-                		
-                    	Object o = hashSetIterator.next();
-                          
-                    	// sending each active client name to every active client
-                    	// This process connected to a protocol named as ONLINEUSERS
-                        for (PrintWriter writer : writers) {
-                        	writer.println("ONLINEUSERS " + o);
-                        }
-                        
-                    }
-                	
-                	break;
-                	
+                    
+                    // And the private messages sent to it while it was away.
+                    router.deliverMail(this);
+                    
+                    // Send the new client the list of online users, and tell all
+                    // other clients that a new user has joined the chat.
+                    presence.joined(this);
                 }
                 
                 
                 // Accept messages from this client and broadcast them.
                 // Ignore other clients that cannot be broadcasted to.
                 while (true) {
-                    String input = in.readLine();
-                    
-                    if (input == null || input == "") {
-                        return;
+                    String input = null;
+                    InboundFrame frame = null;
+                    if (encoding() == Frame.Encoding.BINARY) {
+                    	frame = in.readFrame();
+                    	if (frame == null) {
+                    		return;
+                    	}
+                    	idle.touch();
+                    	if (frame.type() == FrameType.PONG) {
+                    		continue;
+                    	}
+                    } else {
+                    	input = in.readLine();
+                    	if (input == null || input == "") {
+                    		return;
+                    	}
+                    	idle.touch();
+                    	if (IdleTracker.isPong(input)) {
+                    		continue;
+                    	}
+                    }
+                    // uploads are limited by their size instead
+                    if ((frame == null || frame.type() != FrameType.UPLOADDATA) && !admitted()) {
+                    	continue;
                     }
                     
-                  
+                    HandlerStats.busy.incrementAndGet();
+                    busy = true;
                     
-                    // Added code to send a message to a specific client and not
-                    // all clients.
+                  
                     
-                    if(input.contains(">>")) {
-                    	
-                    	// break the string into message and recipient part
-        				StringTokenizer st = new StringTokenizer(input, ">>");
-        				
-        				// First part of the input string is recipient
-        				String receipent = st.nextToken();
-        				// Second part of the input string is message
-        				String MsgtoSend = st.nextToken();
-        				
-        				// Check the recipient name in the online users list
-        				if (names.contains(receipent)) {
-        					for (Entry<String, PrintWriter> entry : clients.entrySet()) {
-        						
-        						// Getting the Key from clients hash map 
-        						// and check it is available in  
-            					if(entry.getKey().equals(receipent)) {
-            						
-            						// Getting the Value from the hash map 
-            						// and write into recipient output stream to send message
-            						entry.getValue().println("MESSAGE " + name + ": " + MsgtoSend);
-            						writers.add(entry.getValue());
-            					}
-            				    
-            				}
-                        }
-        				
-                    }
-                    else { // This will handle the broadcasting feature of the chat application
-                    	for (PrintWriter writer : writers) {
-                            writer.println("MESSAGE " + name + ": " + input);
-                            
-                        }
+                    // Send the message to the specific clients named in it,
+                    // or broadcast it to all clients.
+                    if (frame != null) {
+                    	router.route(this, frame);
+                    } else {
+                    	router.route(this, input);
                     }
                     
+                    busy = false;
+                    HandlerStats.busy.decrementAndGet();
+                    
                  
     				
     				
@@ -257,27 +556,18 @@ public class ChatServer {
             catch (IOException e) {
             	System.out.println("<<< " + name + " has left the conversation >>>");
             } finally {
-                // This client is going down!  Remove its name and its print
-                // writer from the sets, and close its socket.
-                if (name != null) {
-                    names.remove(name);
-                    
-                    // Inform all clients if a user left the chat
-                    for (PrintWriter writer : writers) {
-                    	
-                    		// Sending message to client app to remove offline user from online user list
-                    		// This will handle by a protocol named USERLEFT
-                    		writer.println("USERLEFT " + name);
-                    		writer.println("MESSAGE <<< " + name + " has left the chat >>>");
-                    }
-                }
-                if (out != null) {
-                    writers.remove(out);
-                }
-                try {
-                    socket.close();
-                } catch (IOException e) {
+                // This client is going down!  Remove its session from the
+                // registry, or keep it for a while if it can be resumed,
+                // and close its socket.  The resumer informs all clients
+                // once the user has really left the chat, so they remove
+                // the offline user from their online user list.
+                close();
+                idle.cancel();
+                resumer.disconnected(this);
+                if (busy) {
+                    HandlerStats.busy.decrementAndGet();
                 }
+                HandlerStats.disconnected();
             }
         }
     }
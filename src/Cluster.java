@@ -0,0 +1,611 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Joins several chat server processes into one chat.  Every node is
+ * started with the same list of cluster addresses and its own position
+ * in it, for example
+ *
+ *     java ChatServer --port=9001 --cluster=localhost:7001,localhost:7002 --node-id=0
+ *     java ChatServer --port=9002 --cluster=localhost:7001,localhost:7002 --node-id=1
+ *
+ * and clients can then connect to any node, say through a TCP load
+ * balancer.
+ *
+ * Screen names stay unique across the cluster because each name has an
+ * owner, the node picked by the name's hash.  A node that wants a name
+ * for one of its clients asks the owner to CLAIM it, and the owner
+ * grants each name to one node at a time.  Once it has the name a node
+ * tells every other node that the user has JOINED, and later that it
+ * has LEFT, so every node knows where every user is; see
+ * SessionRegistry.
+ *
+ * Broadcasts go to every node, private messages to the node of the
+ * recipient, and room messages only to the nodes that have told the
+ * others they have members in the room (SUBSCRIBE).  Each node then
+ * delivers the message to its own clients.
+ *
+ * Each node has a link to every other node, and a writer thread per
+ * link sends whatever has queued up as one batch, deflated if it is
+ * large enough to be worth it.  Links that break are redialled with
+ * backoff, and when a link comes up the node resends its users and
+ * rooms, so a node that restarts learns the whole state again.  A node
+ * whose link to us breaks is taken to be down: its users are announced
+ * as having left and the names it held are freed.
+ */
+public class Cluster {
+
+    // Message types on a link.
+    private static final byte CLAIM = 1;
+    private static final byte CLAIMED = 2;
+    private static final byte JOINED = 3;
+    private static final byte LEFT = 4;
+    private static final byte SUBSCRIBE = 5;
+    private static final byte UNSUBSCRIBE = 6;
+    private static final byte BROADCAST = 7;
+    private static final byte DIRECT = 8;
+    private static final byte ROOM = 9;
+
+    private static final int LINK_QUEUE_CAPACITY = 65536;
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * Batches shorter than this are sent without compression.
+     */
+    private static final int COMPRESS_THRESHOLD = 512;
+
+    private static final long CLAIM_TIMEOUT_MILLIS = 2000;
+    private static final long MIN_REDIAL_MILLIS = 100;
+    private static final long MAX_REDIAL_MILLIS = 5000;
+
+    private final List<InetSocketAddress> nodes;
+    private final int self;
+    private final SessionRegistry sessions;
+    private final MessageRouter router;
+    private final Presence presence;
+
+    private final Link[] links;
+
+    /**
+     * The names this node owns, and the node each one is granted to.
+     */
+    private final Map<String, Integer> claims = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Claims sent to other owners, waiting for an answer.
+     */
+    private final Map<Long, CompletableFuture<Boolean>> pendingClaims =
+            new ConcurrentHashMap<Long, CompletableFuture<Boolean>>();
+    private final AtomicLong nextClaim = new AtomicLong();
+
+    /**
+     * The other nodes that have members in each room.
+     */
+    private final Map<String, Set<Integer>> subscribers = new ConcurrentHashMap<String, Set<Integer>>();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "cluster-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Cluster(List<InetSocketAddress> nodes, int self, SessionRegistry sessions, MessageRouter router,
+            Presence presence) {
+        if (self < 0 || self >= nodes.size()) {
+            throw new IllegalArgumentException("Node " + self + " is not in a cluster of " + nodes.size());
+        }
+        this.nodes = nodes;
+        this.self = self;
+        this.sessions = sessions;
+        this.router = router;
+        this.presence = presence;
+        this.links = new Link[nodes.size()];
+        for (int node = 0; node < nodes.size(); node++) {
+            if (node != self) {
+                links[node] = new Link(node);
+            }
+        }
+    }
+
+    /**
+     * Starts listening for the other nodes and dialling them, and hooks
+     * the cluster into the registry.
+     */
+    public void start() throws IOException {
+        final ServerSocket listener = new ServerSocket();
+        listener.bind(nodes.get(self));
+        sessions.setCluster(this);
+        daemon("cluster-listener", () -> {
+            while (true) {
+                try {
+                    final Socket socket = listener.accept();
+                    daemon("cluster-peer", () -> receive(socket));
+                } catch (IOException e) {
+                    System.out.println("Cluster listener failed: " + e);
+                    return;
+                }
+            }
+        });
+        for (Link link : links) {
+            if (link != null) {
+                daemon("cluster-link-" + link.node, link);
+            }
+        }
+        System.out.println("Cluster node " + self + " of " + nodes.size() + " listening on " + nodes.get(self));
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the node that owns a name.
+     */
+    int owner(String name) {
+        return (name.hashCode() & Integer.MAX_VALUE) % nodes.size();
+    }
+
+    /**
+     * Asks the owner for a name.  Completes with true once this node
+     * holds it, and tells the other nodes about the new user; completes
+     * with false if somebody else has the name or the owner cannot be
+     * reached.
+     */
+    public CompletableFuture<Boolean> claim(final String name) {
+        int owner = owner(name);
+        if (owner == self) {
+            boolean granted = claims.putIfAbsent(name, self) == null;
+            if (granted) {
+                toAll(new Message(JOINED, 0, name, null, null));
+            }
+            return CompletableFuture.completedFuture(granted);
+        }
+        Link link = links[owner];
+        if (!link.connected) {
+            return CompletableFuture.completedFuture(false);
+        }
+        final long id = nextClaim.incrementAndGet();
+        CompletableFuture<Boolean> claim = new CompletableFuture<Boolean>();
+        pendingClaims.put(id, claim);
+        link.send(new Message(CLAIM, id, name, null, null));
+        timer.schedule(() -> {
+            CompletableFuture<Boolean> expired = pendingClaims.remove(id);
+            if (expired != null) {
+                expired.complete(false);
+            }
+        }, CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        return claim.thenApply(granted -> {
+            if (granted) {
+                toAll(new Message(JOINED, 0, name, null, null));
+            }
+            return granted;
+        });
+    }
+
+    /**
+     * Gives up a name this node held and tells the other nodes that the
+     * user has left.
+     */
+    public void release(String name) {
+        if (owner(name) == self) {
+            claims.remove(name, self);
+        }
+        toAll(new Message(LEFT, 0, name, null, null));
+    }
+
+    /**
+     * Called when the first member on this node joins a room.
+     */
+    void subscribe(String room) {
+        toAll(new Message(SUBSCRIBE, 0, room, null, null));
+    }
+
+    /**
+     * Called when the last member on this node leaves a room.
+     */
+    void unsubscribe(String room) {
+        toAll(new Message(UNSUBSCRIBE, 0, room, null, null));
+    }
+
+    /**
+     * Sends a broadcast MESSAGE payload to the other nodes.
+     */
+    public void broadcast(byte[] payload) {
+        Message message = new Message(BROADCAST, 0, null, null, payload);
+        for (Link link : links) {
+            if (link != null) {
+                link.send(message);
+            }
+        }
+    }
+
+    /**
+     * Sends a private MESSAGE payload to the node a recipient is on.
+     */
+    public void direct(int node, String sender, String recipient, byte[] payload) {
+        Link link = links[node];
+        if (link != null) {
+            link.send(new Message(DIRECT, 0, sender, recipient, payload));
+        }
+    }
+
+    /**
+     * Sends a room MESSAGE payload to the nodes with members in the room.
+     */
+    public void room(String room, byte[] payload) {
+        Set<Integer> nodes = subscribers.get(room);
+        if (nodes == null) {
+            return;
+        }
+        Message message = new Message(ROOM, 0, room, null, payload);
+        for (int node : nodes) {
+            links[node].send(message);
+        }
+    }
+
+    /**
+     * Sends a change in what this node has to every other node.
+     */
+    private void toAll(Message message) {
+        for (Link link : links) {
+            if (link != null) {
+                link.sendState(message);
+            }
+        }
+    }
+
+    /**
+     * Reads batches from another node's link until it breaks, then treats
+     * the node as down.
+     */
+    private void receive(Socket socket) {
+        int node = -1;
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            node = in.readInt();
+            if (node < 0 || node >= nodes.size() || node == self) {
+                throw new IOException("Unknown cluster node " + node);
+            }
+            System.out.println("Cluster node " + node + " connected");
+            byte[] compressed = new byte[0];
+            while (true) {
+                int rawLength = in.readInt();
+                int compressedLength = in.readInt();
+                byte[] raw = new byte[rawLength];
+                if (compressedLength < 0) {
+                    in.readFully(raw);
+                } else {
+                    if (compressed.length < compressedLength) {
+                        compressed = new byte[compressedLength];
+                    }
+                    in.readFully(compressed, 0, compressedLength);
+                    inflater.reset();
+                    inflater.setInput(compressed, 0, compressedLength);
+                    if (inflater.inflate(raw) != rawLength) {
+                        throw new IOException("Corrupt batch from node " + node);
+                    }
+                }
+                DataInputStream batch = new DataInputStream(new ByteArrayInputStream(raw));
+                for (int count = batch.readInt(); count > 0; count--) {
+                    handle(node, batch);
+                }
+            }
+        } catch (IOException | DataFormatException e) {
+            if (node >= 0) {
+                System.out.println("Cluster node " + node + " lost: " + e);
+                down(node);
+            }
+        } finally {
+            inflater.end();
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void handle(int node, DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case CLAIM: {
+            long id = in.readLong();
+            String name = in.readUTF();
+            boolean granted = claims.putIfAbsent(name, node) == null;
+            links[node].send(new Message(CLAIMED, id, name, null, new byte[] { (byte) (granted ? 1 : 0) }));
+            break;
+        }
+        case CLAIMED: {
+            long id = in.readLong();
+            String name = in.readUTF();
+            boolean granted = readPayload(in)[0] == 1;
+            CompletableFuture<Boolean> claim = pendingClaims.remove(id);
+            if (claim != null) {
+                claim.complete(granted);
+            } else if (granted) {
+                // the claim timed out here, so the owner must forget it
+                links[node].send(new Message(LEFT, 0, name, null, null));
+            }
+            break;
+        }
+        case JOINED: {
+            String name = in.readUTF();
+            if (owner(name) == self) {
+                // re-establishes the claim after this node has restarted
+                claims.putIfAbsent(name, node);
+            }
+            if (sessions.remoteJoined(name, node)) {
+                presence.remoteJoined(name);
+            }
+            break;
+        }
+        case LEFT: {
+            String name = in.readUTF();
+            if (owner(name) == self) {
+                claims.remove(name, node);
+            }
+            if (sessions.remoteLeft(name, node)) {
+                presence.left(name);
+            }
+            break;
+        }
+        case SUBSCRIBE:
+            subscribers.computeIfAbsent(in.readUTF(), room -> ConcurrentHashMap.newKeySet()).add(node);
+            break;
+        case UNSUBSCRIBE: {
+            Set<Integer> nodes = subscribers.get(in.readUTF());
+            if (nodes != null) {
+                nodes.remove(node);
+            }
+            break;
+        }
+        case BROADCAST:
+            router.deliverBroadcast(readPayload(in));
+            break;
+        case DIRECT: {
+            String sender = in.readUTF();
+            String recipient = in.readUTF();
+            router.deliverDirect(sender, recipient, readPayload(in));
+            break;
+        }
+        case ROOM: {
+            String room = in.readUTF();
+            router.deliverRoom(room, readPayload(in));
+            break;
+        }
+        default:
+            throw new IOException("Unknown cluster message " + type);
+        }
+    }
+
+    private static byte[] readPayload(DataInputStream in) throws IOException {
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Forgets everything about a node whose link has broken.
+     */
+    private void down(int node) {
+        for (String name : sessions.remoteNodeDown(node)) {
+            presence.left(name);
+        }
+        claims.values().removeAll(Arrays.asList(node));
+        for (Set<Integer> nodes : subscribers.values()) {
+            nodes.remove(node);
+        }
+    }
+
+    /**
+     * One message waiting on a link.  Which fields are used depends on
+     * the type.
+     */
+    private static final class Message {
+        final byte type;
+        final long id;
+        final String first;
+        final String second;
+        final byte[] payload;
+
+        Message(byte type, long id, String first, String second, byte[] payload) {
+            this.type = type;
+            this.id = id;
+            this.first = first;
+            this.second = second;
+            this.payload = payload;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeByte(type);
+            if (type == CLAIM || type == CLAIMED) {
+                out.writeLong(id);
+            }
+            if (first != null) {
+                out.writeUTF(first);
+            }
+            if (second != null) {
+                out.writeUTF(second);
+            }
+            if (payload != null) {
+                out.writeInt(payload.length);
+                out.write(payload);
+            }
+        }
+    }
+
+    /**
+     * The link from this node to one other node, with the queue of
+     * messages waiting to go over it and the thread that sends them.
+     */
+    private final class Link implements Runnable {
+
+        final int node;
+        final BlockingQueue<Message> queue = new ArrayBlockingQueue<Message>(LINK_QUEUE_CAPACITY);
+        volatile boolean connected;
+        private volatile Socket socket;
+
+        Link(int node) {
+            this.node = node;
+        }
+
+        /**
+         * Queues a message.  While the link is down the message is
+         * dropped, and the state it carries is resent when the link comes
+         * back.  A link that has fallen a whole queue behind is closed, so
+         * that the other node takes this one to be down and the link
+         * starts again from a resync, rather than carrying on without the
+         * messages that did not fit.
+         */
+        void send(Message message) {
+            if (connected && !queue.offer(message)) {
+                fallenBehind();
+            }
+        }
+
+        /**
+         * Queues a JOINED, LEFT, SUBSCRIBE or UNSUBSCRIBE.  These are
+         * ordered against the resync when the link comes up, so that a
+         * user who leaves meanwhile is not announced after the LEFT.
+         */
+        synchronized void sendState(Message message) {
+            send(message);
+        }
+
+        private synchronized void fallenBehind() {
+            Socket current = socket;
+            if (connected && current != null) {
+                connected = false;
+                System.out.println("Cluster link to node " + node + " fell " + LINK_QUEUE_CAPACITY
+                        + " messages behind, reconnecting");
+                try {
+                    current.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            long redialMillis = MIN_REDIAL_MILLIS;
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(nodes.get(node));
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    out.writeInt(self);
+                    out.flush();
+                    this.socket = socket;
+                    synchronized (this) {
+                        queue.clear();
+                        connected = true;
+                        resync();
+                    }
+                    redialMillis = MIN_REDIAL_MILLIS;
+                    write(out);
+                } catch (IOException e) {
+                    // dial again below
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    this.socket = null;
+                }
+                try {
+                    Thread.sleep(redialMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                redialMillis = Math.min(redialMillis * 2, MAX_REDIAL_MILLIS);
+            }
+        }
+
+        /**
+         * Tells the node about every user and room on this one.  Called
+         * with the link locked, so that a LEFT for a user who goes away
+         * meanwhile either is dropped before the user drops out of the
+         * snapshot or queues behind the JOINED.
+         */
+        private void resync() {
+            for (String name : sessions.names()) {
+                send(new Message(JOINED, 0, name, null, null));
+            }
+            for (String room : sessions.rooms().names()) {
+                send(new Message(SUBSCRIBE, 0, room, null, null));
+            }
+        }
+
+        /**
+         * Sends whatever is queued as one batch at a time, until the link
+         * breaks.
+         */
+        private void write(DataOutputStream out) throws IOException, InterruptedException {
+            List<Message> batch = new ArrayList<Message>(MAX_BATCH);
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(raw);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            byte[] compressed = new byte[8192];
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    raw.reset();
+                    data.writeInt(batch.size());
+                    for (Message message : batch) {
+                        message.writeTo(data);
+                    }
+                    batch.clear();
+                    byte[] bytes = raw.toByteArray();
+
+                    out.writeInt(bytes.length);
+                    if (bytes.length < COMPRESS_THRESHOLD) {
+                        out.writeInt(-1);
+                        out.write(bytes);
+                    } else {
+                        deflater.reset();
+                        deflater.setInput(bytes);
+                        deflater.finish();
+                        int length = 0;
+                        while (!deflater.finished()) {
+                            if (length == compressed.length) {
+                                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                            }
+                            length += deflater.deflate(compressed, length, compressed.length - length);
+                        }
+                        out.writeInt(length);
+                        out.write(compressed, 0, length);
+                    }
+                    out.flush();
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+}
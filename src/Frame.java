@@ -0,0 +1,184 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One frame sent by the server (or a few frames that belong together),
+ * encoded once and then shared by every client it is sent to.  A
+ * broadcast to N clients builds the frame a single time and queues the
+ * same encoded bytes N times; nothing about a Frame changes after it has
+ * been created, so no copying or reference counting is needed to share
+ * it between writers.
+ *
+ * Clients may speak the text or the binary protocol, so a frame has two
+ * encodings.  Each is built the first time a client using it needs it
+ * and then kept, so a broadcast costs at most two encodes however many
+ * clients receive it.
+ *
+ * A frame may carry a coalescing key, which lets a slow client's queue
+ * replace an older frame with the same key; see OutboundQueue.
+ *
+ * Chat messages are marked as sequenced.  A client that can resume its
+ * session is sent a SEQUENCE frame, numbered for that client, in front
+ * of each of them; see Session.
+ */
+public final class Frame {
+
+    enum Encoding { TEXT, BINARY }
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final FrameType[] types;
+
+    /**
+     * UTF-8 payload of each part, NO_PAYLOAD for a bare keyword.
+     */
+    private final byte[][] payloads;
+
+    final String coalescingKey;
+
+    /**
+     * True for chat messages, which resumable clients get numbered.
+     */
+    final boolean sequenced;
+
+    private volatile byte[] text;
+    private volatile byte[] binary;
+
+    private Frame(FrameType[] types, byte[][] payloads, String coalescingKey, boolean sequenced) {
+        this.types = types;
+        this.payloads = payloads;
+        this.coalescingKey = coalescingKey;
+        this.sequenced = sequenced;
+    }
+
+    public static Frame of(FrameType type) {
+        return of(type, NO_PAYLOAD, null);
+    }
+
+    public static Frame of(FrameType type, String payload) {
+        return of(type, payload, null);
+    }
+
+    public static Frame of(FrameType type, String payload, String coalescingKey) {
+        return of(type, payload.getBytes(StandardCharsets.UTF_8), coalescingKey);
+    }
+
+    /**
+     * Creates a frame from an already encoded UTF-8 payload, which must
+     * not be modified afterwards.
+     */
+    public static Frame of(FrameType type, byte[] payload, String coalescingKey) {
+        return new Frame(new FrameType[] { type }, new byte[][] { payload }, coalescingKey, false);
+    }
+
+    /**
+     * Creates a sequenced frame from an already encoded UTF-8 payload,
+     * which must not be modified afterwards.
+     */
+    public static Frame sequenced(FrameType type, byte[] payload) {
+        return new Frame(new FrameType[] { type }, new byte[][] { payload }, null, true);
+    }
+
+    /**
+     * Returns the frame's bytes in the given encoding, building them on
+     * first use.  The array is shared and must not be modified.
+     */
+    public byte[] encoded(Encoding encoding) {
+        if (encoding == Encoding.BINARY) {
+            byte[] bytes = binary;
+            if (bytes == null) {
+                binary = bytes = encodeBinary();
+            }
+            return bytes;
+        }
+        byte[] bytes = text;
+        if (bytes == null) {
+            text = bytes = encodeText();
+        }
+        return bytes;
+    }
+
+    /**
+     * Each part becomes a line of its keyword, a space and the payload.
+     * Line breaks inside the payload, which a binary client may send,
+     * would end the line early, so they become spaces.
+     */
+    private byte[] encodeText() {
+        int length = 0;
+        for (int i = 0; i < types.length; i++) {
+            length += types[i].keyword.length() + 1;
+            if (payloads[i].length > 0) {
+                length += 1 + payloads[i].length;
+            }
+        }
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (int i = 0; i < types.length; i++) {
+            String keyword = types[i].keyword;
+            for (int c = 0; c < keyword.length(); c++) {
+                bytes[position++] = (byte) keyword.charAt(c);
+            }
+            byte[] payload = payloads[i];
+            if (payload.length > 0) {
+                bytes[position++] = ' ';
+                for (byte b : payload) {
+                    bytes[position++] = b == '\n' || b == '\r' ? (byte) ' ' : b;
+                }
+            }
+            bytes[position++] = '\n';
+        }
+        return bytes;
+    }
+
+    private byte[] encodeBinary() {
+        int length = 0;
+        for (byte[] payload : payloads) {
+            length += BinaryFrames.HEADER_LENGTH + payload.length;
+        }
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (int i = 0; i < types.length; i++) {
+            BinaryFrames.writeHeader(bytes, position, types[i], payloads[i].length);
+            position += BinaryFrames.HEADER_LENGTH;
+            System.arraycopy(payloads[i], 0, bytes, position, payloads[i].length);
+            position += payloads[i].length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Collects several parts into one frame, which is queued and written
+     * as a single unit.
+     */
+    static final class Builder {
+
+        private final List<FrameType> types = new ArrayList<FrameType>();
+        private final List<byte[]> payloads = new ArrayList<byte[]>();
+
+        Builder add(FrameType type) {
+            types.add(type);
+            payloads.add(NO_PAYLOAD);
+            return this;
+        }
+
+        Builder add(FrameType type, String payload) {
+            return add(type, payload.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Adds a part with an already encoded UTF-8 payload, which must
+         * not be modified afterwards.
+         */
+        Builder add(FrameType type, byte[] payload) {
+            types.add(type);
+            payloads.add(payload);
+            return this;
+        }
+
+        Frame build(String coalescingKey) {
+            return new Frame(types.toArray(new FrameType[types.size()]),
+                    payloads.toArray(new byte[payloads.size()][]), coalescingKey, false);
+        }
+    }
+}
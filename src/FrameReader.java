@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the chat protocol from a socket stream: newline terminated
+ * UTF-8 lines in the text protocol, and length prefixed frames once a
+ * connection has switched to the binary protocol.  Both share one
+ * buffer, so bytes that arrive right behind the switch are not lost.
+ *
+ * A BufferedReader over an InputStreamReader keeps two 8 KB buffers for
+ * the whole life of a connection, which adds up quickly with tens of
+ * thousands of mostly idle clients.  This reader starts with a small
+ * buffer, only grows it while a long line or frame is being read, and
+ * drops back to the small buffer once that has been consumed.
+ */
+public class FrameReader {
+
+    private static final int INITIAL_BUFFER_SIZE = 128;
+
+    /**
+     * Lines longer than this are treated as a misbehaving client.
+     */
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final InputStream in;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    /**
+     * Unread bytes are buffer[start..end).  Everything before scanned has
+     * already been checked for a newline.
+     */
+    private int start;
+    private int end;
+    private int scanned;
+
+    private final InboundFrame frame = new InboundFrame();
+
+    public FrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns the next line without its terminator, or null at the end
+     * of the stream, just like BufferedReader.readLine().
+     */
+    public String readLine() throws IOException {
+        while (true) {
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    String line = decode(start, i);
+                    start = i + 1;
+                    scanned = start;
+                    return line;
+                }
+            }
+            scanned = end;
+
+            if (end - start >= MAX_LINE_LENGTH) {
+                throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+            if (!fill(end - start + 1)) {
+                if (start == end) {
+                    return null;
+                }
+                String line = decode(start, end);
+                start = scanned = end;
+                return line;
+            }
+        }
+    }
+
+    /**
+     * Returns the next binary frame, or null at the end of the stream.
+     * The returned frame is reused and its payload is only valid until
+     * the next call to this reader.
+     */
+    public InboundFrame readFrame() throws IOException {
+        while (true) {
+            int available = end - start;
+            int length = BinaryFrames.completeLength(buffer, start, available);
+            if (length > 0) {
+                frame.wrap(buffer, start, length);
+                start += length;
+                scanned = start;
+                return frame;
+            }
+            int needed = available < BinaryFrames.HEADER_LENGTH ? BinaryFrames.HEADER_LENGTH
+                    : BinaryFrames.HEADER_LENGTH + BinaryFrames.payloadLength(buffer, start);
+            if (!fill(needed)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads from the stream until at least needed unread bytes are
+     * buffered or no more arrive at once, compacting or growing the
+     * buffer first if it cannot hold them.  Returns false at the end of
+     * the stream.
+     */
+    private boolean fill(int needed) throws IOException {
+        if (start == end) {
+            start = end = scanned = 0;
+            if (buffer.length > INITIAL_BUFFER_SIZE && needed <= INITIAL_BUFFER_SIZE) {
+                buffer = new byte[INITIAL_BUFFER_SIZE];
+            }
+        } else if (start > 0 && start + needed > buffer.length) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scanned -= start;
+            start = 0;
+        }
+        if (start + needed > buffer.length) {
+            int size = buffer.length;
+            while (size < start + needed) {
+                size *= 2;
+            }
+            buffer = Arrays.copyOf(buffer, size);
+        }
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    private String decode(int from, int to) {
+        if (to > from && buffer[to - 1] == '\r') {
+            to--;
+        }
+        return new String(buffer, from, to - from, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * The kinds of frame in the chat protocol.
+ *
+ * In the text protocol a server frame is a line starting with its
+ * keyword, and a client frame is simply the line the user typed.  In
+ * the binary protocol every frame starts with the one byte code below;
+ * see BinaryFrames for the layout.
+ */
+public enum FrameType {
+
+    // Server to client.
+    SUBMITNAME(1, "SUBMITNAME"),
+    NAMEACCEPTED(2, "NAMEACCEPTED"),
+    MESSAGE(3, "MESSAGE"),
+    ERROR(4, "ERROR"),
+    NEW(5, "NEW"),
+    ONLINEUSERS(6, "ONLINEUSERS"),
+    JOINED(7, "JOINED"),
+    USERLEFT(8, "USERLEFT"),
+
+    /**
+     * Acknowledges a client's "/binary" request.  Always sent as text;
+     * everything after it in both directions is binary.
+     */
+    BINARY(9, "BINARY"),
+
+    /**
+     * The sequence number of the MESSAGE that follows.  Only sent in the
+     * binary protocol, to clients that can resume their session.
+     */
+    SEQUENCE(10, "SEQUENCE"),
+
+    /**
+     * The client has joined, or left, the room named in the payload.
+     */
+    ROOMJOINED(11, "ROOMJOINED"),
+    ROOMLEFT(12, "ROOMLEFT"),
+
+    /**
+     * Asks a client that has been quiet for a while whether it is still
+     * there; see IdleTracker.
+     */
+    PING(13, "PING"),
+
+    /**
+     * Answers DOWNLOAD with the size of the attachment, and then carries
+     * it a chunk at a time.  Binary only; see AttachmentStore.
+     */
+    ATTACHMENT(14, "ATTACHMENT"),
+    ATTACHMENTDATA(15, "ATTACHMENTDATA"),
+
+    /**
+     * Answers a search: a line saying which page of how many this is,
+     * and then one SEARCHRESULT for each message on the page, with the
+     * time it was sent in front.  See SearchIndex.
+     */
+    SEARCHRESULTS(16, "SEARCHRESULTS"),
+    SEARCHRESULT(17, "SEARCHRESULT"),
+
+    // Client to server.  These have no keyword: in the text protocol
+    // the server tells them apart by looking at the line.
+    NAME(64, null),
+    TEXT(65, null),
+    DIRECT(66, null),
+
+    /**
+     * Tells the server that every message up to a sequence number has
+     * arrived, so it no longer needs to keep them for a resume.
+     */
+    ACK(67, null),
+
+    /**
+     * Sent instead of NAME by a client that is reconnecting, to take
+     * its old session back.
+     */
+    RESUME(68, null),
+
+    /**
+     * Joins or leaves the room named in the payload, like the text
+     * protocol's "/join room" and "/leave room".
+     */
+    JOIN(69, null),
+    LEAVE(70, null),
+
+    /**
+     * Answers PING.  In the text protocol it is the line "/pong".
+     */
+    PONG(71, null),
+
+    /**
+     * Starts sending a file, carries it a chunk at a time, and asks for
+     * one that has been announced.  Binary only.
+     */
+    UPLOAD(72, null),
+    UPLOADDATA(73, null),
+    DOWNLOAD(74, null),
+
+    /**
+     * Searches the message log; the payload is written as after
+     * "/search " in the text protocol.
+     */
+    SEARCH(75, null);
+
+    final byte code;
+    final String keyword;
+
+    private static final FrameType[] BY_CODE = new FrameType[128];
+
+    static {
+        for (FrameType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    FrameType(int code, String keyword) {
+        this.code = (byte) code;
+        this.keyword = keyword;
+    }
+
+    /**
+     * Returns the type with the given code, or null for an unknown code.
+     */
+    static FrameType forCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
@@ -0,0 +1,176 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection and scheduling counters for the per-client Handlers, with
+ * an optional reporter that prints them to the console at a fixed
+ * interval.
+ *
+ * When the Handlers run on virtual threads the reporter also samples
+ * the CPU time of the carrier threads underneath them.  Carrier
+ * utilisation is that CPU time divided by the wall clock time of the
+ * interval times the number of carriers, so a server full of idle
+ * clients shows a low figure however many sessions it holds.
+ *
+ * Finally the reporter sums up the outbound queues of all registered
+ * sessions and lists the few deepest ones by name, which is usually
+ * enough to spot the client that is holding things up.
+ */
+public class HandlerStats {
+
+    /**
+     * Handlers that are currently running, whether or not the client
+     * has picked a name yet.
+     */
+    static final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * The highest value connections has reached since startup.
+     */
+    static final AtomicInteger peakConnections = new AtomicInteger();
+
+    /**
+     * Handlers that are working on a line rather than waiting for one.
+     */
+    static final AtomicInteger busy = new AtomicInteger();
+
+    /**
+     * Clients disconnected because their outbound queue overflowed.
+     */
+    static final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * How many of the deepest outbound queues the reporter lists.
+     */
+    private static final int DEEPEST_QUEUES_SHOWN = 5;
+
+    private static final String CARRIER_THREAD_CLASS = "jdk.internal.misc.CarrierThread";
+
+    static void connected() {
+        int now = connections.incrementAndGet();
+        int peak;
+        while (now > (peak = peakConnections.get()) && !peakConnections.compareAndSet(peak, now)) {
+        }
+    }
+
+    static void disconnected() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Starts a daemon thread that prints the counters every
+     * intervalSeconds.  Does nothing when the interval is not positive.
+     */
+    static void startReporter(final int intervalSeconds, final SessionRegistry sessions) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        Thread reporter = new Thread(() -> {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            long lastCarrierCpu = carrierCpuTime(threads);
+            long lastSample = System.nanoTime();
+            while (true) {
+                try {
+                    Thread.sleep(intervalSeconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = System.nanoTime();
+                long carrierCpu = carrierCpuTime(threads);
+                int carriers = carrierCount();
+                double utilisation = carriers == 0 ? 0
+                        : 100.0 * Math.max(0, carrierCpu - lastCarrierCpu) / ((now - lastSample) * (double) carriers);
+                lastCarrierCpu = carrierCpu;
+                lastSample = now;
+
+                long heapUsed = memory.getHeapMemoryUsage().getUsed();
+                int connected = connections.get();
+                System.out.println(String.format(
+                        "connections=%d peak=%d busy=%d rooms=%d heap=%dMB (%d bytes/connection) carriers=%d carrier-utilisation=%.1f%%",
+                        connected, peakConnections.get(), busy.get(), sessions.rooms().size(), heapUsed >> 20,
+                        connected == 0 ? 0 : heapUsed / connected, carriers, utilisation));
+                reportQueues(sessions);
+            }
+        }, "handler-stats");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    private static void reportQueues(SessionRegistry sessions) {
+        long queuedLines = 0;
+        long queuedBytes = 0;
+        long dropped = 0;
+        long coalesced = 0;
+        List<Backlog> backlogged = new ArrayList<Backlog>();
+        for (Session session : sessions.sessions()) {
+            OutboundQueue queue = session.outbound();
+            queuedLines += queue.depth();
+            queuedBytes += queue.bytes();
+            dropped += queue.dropped();
+            coalesced += queue.coalesced();
+            int depth = queue.depth();
+            if (depth > 0) {
+                backlogged.add(new Backlog(session, depth));
+            }
+        }
+        System.out.println(String.format(
+                "outbound: queued=%d lines (%d bytes) backlogged-clients=%d dropped=%d coalesced=%d evicted=%d",
+                queuedLines, queuedBytes, backlogged.size(), dropped, coalesced, evictions.get()));
+
+        // Sort on the depths sampled above; the live depths keep changing.
+        Collections.sort(backlogged, (a, b) -> Integer.compare(b.depth, a.depth));
+        for (Backlog backlog : backlogged.subList(0, Math.min(DEEPEST_QUEUES_SHOWN, backlogged.size()))) {
+            OutboundQueue queue = backlog.session.outbound();
+            System.out.println(String.format("  %s: depth=%d bytes=%d high-water=%d dropped=%d coalesced=%d",
+                    backlog.session.name(), backlog.depth, queue.bytes(), queue.highWaterMark(),
+                    queue.dropped(), queue.coalesced()));
+        }
+    }
+
+    private static final class Backlog {
+        final Session session;
+        final int depth;
+
+        Backlog(Session session, int depth) {
+            this.session = session;
+            this.depth = depth;
+        }
+    }
+
+    private static int carrierCount() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getClass().getName().equals(CARRIER_THREAD_CLASS)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Total CPU time in nanoseconds used so far by the live carrier
+     * threads of the virtual thread scheduler.
+     */
+    private static long carrierCpuTime(ThreadMXBean threads) {
+        if (!threads.isThreadCpuTimeSupported()) {
+            return 0;
+        }
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getClass().getName().equals(CARRIER_THREAD_CLASS)) {
+                long cpu = threads.getThreadCpuTime(thread.getId());
+                if (cpu > 0) {
+                    total += cpu;
+                }
+            }
+        }
+        return total;
+    }
+}
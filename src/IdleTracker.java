@@ -0,0 +1,228 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds clients that have gone quiet and reaps the ones that are gone.
+ * A client that has sent nothing for the heartbeat interval is sent a
+ * PING, which a live client answers with PONG; one that still has not
+ * sent anything after the heartbeat timeout is closed, so that a client
+ * whose machine vanished without closing its TCP connection does not
+ * keep its name, its thread and a growing outbound queue forever.
+ *
+ * The clients are kept on a hashed timer wheel: a ring of slots, one
+ * per tick, each holding a linked list of the entries due in that
+ * tick.  A single thread advances the wheel and only looks at the
+ * entries that are due, so a hundred thousand clients cost one thread
+ * and a few fields each rather than a scheduled task per client.  An
+ * entry due further ahead than one turn of the wheel just stays in its
+ * slot until its own turn comes round.
+ *
+ * Reading from a client does not move its entry: touch() only copies
+ * the wheel's clock into the entry.  When the entry comes due the
+ * wheel looks at that time and puts the entry back where it belongs,
+ * so a busy client costs the wheel one look per heartbeat interval.
+ */
+public class IdleTracker implements Runnable {
+
+    /**
+     * What a client answers to PING in the text protocol.  Binary clients
+     * send a PONG frame.
+     */
+    static final String PONG_COMMAND = "/pong";
+
+    private static final int SLOTS = 512;
+
+    private static final Frame PING = Frame.of(FrameType.PING);
+
+    private final long intervalNanos;
+    private final long timeoutNanos;
+    private final long tickNanos;
+
+    private final Entry[] slots = new Entry[SLOTS];
+
+    /**
+     * Entries to be added to the wheel by its thread.
+     */
+    private final Queue<Entry> added = new ConcurrentLinkedQueue<Entry>();
+
+    /**
+     * nanoTime of the wheel's current tick, which is what touch() records.
+     */
+    private volatile long clock = System.nanoTime();
+
+    private long tick;
+
+    /**
+     * Pings clients that have been quiet for intervalMillis and closes
+     * those that are still quiet timeoutMillis later.  An interval of 0
+     * turns the heartbeat off.
+     */
+    IdleTracker(long intervalMillis, long timeoutMillis) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeoutMillis));
+        // fine enough that nobody is reaped much later than promised
+        this.tickNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(10),
+                Math.min(TimeUnit.SECONDS.toNanos(1), Math.min(intervalNanos, timeoutNanos) / 8));
+        if (intervalNanos > 0) {
+            Thread thread = new Thread(this, "idle-tracker");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Starts watching a newly connected client.  The entry must be
+     * touched whenever the client sends anything, and cancelled when
+     * the client has gone.
+     */
+    Entry track(Session session) {
+        Entry entry = new Entry(session, clock);
+        if (intervalNanos > 0) {
+            added.add(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns true if a text line from the client is the answer to PING
+     * rather than something to act on.
+     */
+    static boolean isPong(String line) {
+        return line.equals(PONG_COMMAND);
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime() + tickNanos;
+        while (true) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            clock = next;
+            next += tickNanos;
+            tick++;
+            try {
+                // taken first, since a new entry may be due a whole turn on
+                int slot = (int) (tick & (SLOTS - 1));
+                Entry due = slots[slot];
+                slots[slot] = null;
+                Entry entry;
+                while ((entry = added.poll()) != null) {
+                    schedule(entry, entry.lastActivity + intervalNanos);
+                }
+                expire(due);
+            } catch (RuntimeException e) {
+                // never let one bad client stop the heartbeat for all
+                System.out.println(e);
+            }
+        }
+    }
+
+    /**
+     * Deals with the entries that were in the current slot.
+     */
+    private void expire(Entry first) {
+        long now = clock;
+        Entry entry = first;
+        while (entry != null) {
+            Entry following = entry.next;
+            entry.next = null;
+            try {
+                expire(entry, now);
+            } catch (RuntimeException e) {
+                // the rest of the slot is still due
+                System.out.println(e);
+            }
+            entry = following;
+        }
+    }
+
+    private void expire(Entry entry, long now) {
+        if (entry.cancelled) {
+            // forgotten
+        } else if (entry.dueTick > tick) {
+            // due in a later turn of the wheel
+            put(entry);
+        } else if (entry.pinged ? entry.lastActivity - entry.pingedAt >= 0
+                : now - entry.lastActivity < intervalNanos) {
+            // heard from since it was pinged, or not quiet for long
+            entry.pinged = false;
+            schedule(entry, entry.lastActivity + intervalNanos);
+        } else if (!entry.pinged) {
+            entry.pinged = true;
+            entry.pingedAt = now;
+            // back on the wheel first, so that it is reaped even if this fails
+            schedule(entry, now + timeoutNanos);
+            entry.session.send(PING);
+        } else {
+            Metrics.idleReaped.increment();
+            if (entry.session.name() != null) {
+                System.out.println("<<< " + entry.session.name() + " stopped answering and was disconnected >>>");
+            }
+            entry.cancelled = true;
+            entry.session.close();
+        }
+    }
+
+    private void schedule(Entry entry, long due) {
+        long ticks = (due - clock + tickNanos - 1) / tickNanos;
+        entry.dueTick = tick + Math.max(1, ticks);
+        put(entry);
+    }
+
+    private void put(Entry entry) {
+        int slot = (int) (entry.dueTick & (SLOTS - 1));
+        entry.next = slots[slot];
+        slots[slot] = entry;
+    }
+
+    /**
+     * What the wheel keeps for one client.
+     */
+    final class Entry {
+        final Session session;
+
+        /**
+         * The wheel's clock when the client last sent something.
+         */
+        volatile long lastActivity;
+
+        volatile boolean cancelled;
+
+        // Only used by the wheel thread.
+        private Entry next;
+        private long dueTick;
+        private boolean pinged;
+        private long pingedAt;
+
+        private Entry(Session session, long now) {
+            this.session = session;
+            this.lastActivity = now;
+        }
+
+        /**
+         * Records that the client has sent something.
+         */
+        void touch() {
+            long now = clock;
+            if (lastActivity != now) {
+                lastActivity = now;
+            }
+        }
+
+        /**
+         * Stops watching the client; the wheel drops the entry the next
+         * time it comes due.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
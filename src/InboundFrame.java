@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A binary frame as it sits in a reader's buffer.  Nothing is copied or
+ * decoded when a frame is read: the type is looked up from its code and
+ * the payload is just an offset and length into the reader's buffer, so
+ * a message can be passed on without ever becoming a String.
+ *
+ * A reader reuses the same InboundFrame for every frame it reads, and
+ * the bytes it points at are only valid until the next read.
+ */
+public final class InboundFrame {
+
+    FrameType type;
+    byte[] buffer;
+    int offset;
+    int length;
+
+    /**
+     * Points this view at the complete frame whose header starts at
+     * frameOffset.
+     */
+    void wrap(byte[] buffer, int frameOffset, int frameLength) throws IOException {
+        this.type = FrameType.forCode(buffer[frameOffset]);
+        if (type == null) {
+            throw new IOException("Unknown frame type " + buffer[frameOffset]);
+        }
+        this.buffer = buffer;
+        this.offset = frameOffset + BinaryFrames.HEADER_LENGTH;
+        this.length = frameLength - BinaryFrames.HEADER_LENGTH;
+    }
+
+    public FrameType type() {
+        return type;
+    }
+
+    /**
+     * Decodes the whole payload.  Only call this where a String is
+     * really needed.
+     */
+    public String payloadString() {
+        return new String(buffer, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the recipient names of a DIRECT frame.  An empty name, or
+     * one longer than any screen name or "#room" can be, makes the frame
+     * bad.
+     */
+    public List<String> recipients() throws IOException {
+        int count = BinaryFrames.readShort(buffer, checked(offset, 2));
+        List<String> recipients = new ArrayList<String>(count);
+        int position = offset + 2;
+        for (int i = 0; i < count; i++) {
+            int nameLength = BinaryFrames.readShort(buffer, checked(position, 2));
+            String name = new String(buffer, checked(position + 2, nameLength), nameLength, StandardCharsets.UTF_8);
+            if (name.isEmpty() || name.length() > MessageRouter.MAX_NAME_LENGTH + 1) {
+                throw new IOException("Bad recipient name in DIRECT frame");
+            }
+            recipients.add(name);
+            position += 2 + nameLength;
+        }
+        return recipients;
+    }
+
+    /**
+     * Returns the offset in buffer at which a DIRECT frame's message
+     * text starts; the text runs to the end of the payload.
+     */
+    public int directTextOffset() throws IOException {
+        int count = BinaryFrames.readShort(buffer, checked(offset, 2));
+        int position = offset + 2;
+        for (int i = 0; i < count; i++) {
+            position += 2 + BinaryFrames.readShort(buffer, checked(position, 2));
+        }
+        return checked(position, 0);
+    }
+
+    public int end() {
+        return offset + length;
+    }
+
+    /**
+     * Makes sure a field of fieldLength bytes at position lies inside
+     * the payload, so a malformed frame cannot read past it.
+     */
+    private int checked(int position, int fieldLength) throws IOException {
+        if (position + fieldLength > offset + length) {
+            throw new IOException("Malformed " + type + " frame");
+        }
+        return position;
+    }
+}
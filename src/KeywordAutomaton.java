@@ -0,0 +1,215 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds every occurrence of a set of keywords in a message in one pass
+ * over its UTF-8 bytes, however many keywords there are.
+ *
+ * The keywords are compiled once into an Aho-Corasick automaton and then
+ * into a table of transitions, so scanning costs one table lookup per
+ * byte and allocates nothing.  The table is kept small by only giving
+ * the bytes that occur in some keyword a column of their own; every
+ * other byte shares column 0, which always leads back to the start.
+ * ASCII letters are matched without regard to case, other characters as
+ * they are.
+ *
+ * A keyword may have to start a word, as "@" for a mention does, or to
+ * be a whole word, so that filtering "ass" leaves "class" alone.  Letters,
+ * digits, '_' and every byte of a non-ASCII character count as word
+ * characters.
+ */
+public final class KeywordAutomaton {
+
+    /**
+     * Where a keyword has to be to count.
+     */
+    enum Boundary { ANYWHERE, WORD_START, WHOLE_WORD }
+
+    /**
+     * One thing to look for.
+     */
+    static final class Keyword {
+        final String text;
+        final Boundary boundary;
+
+        Keyword(String text, Boundary boundary) {
+            if (text.isEmpty()) {
+                throw new IllegalArgumentException("Empty keyword");
+            }
+            this.text = text;
+            this.boundary = boundary;
+        }
+    }
+
+    /**
+     * Receives the keywords found by scan().
+     */
+    interface Hits {
+        /**
+         * Called for keyword number keyword, found at text[start..end),
+         * in the order the keywords end.
+         */
+        void hit(int keyword, int start, int end);
+    }
+
+    private final Boundary[] boundaries;
+    private final int[] lengths;
+
+    /**
+     * The column of each byte value, and the number of columns.
+     */
+    private final int[] columns = new int[256];
+    private final int width;
+
+    /**
+     * The state after state s on a byte in column c is next[s * width + c].
+     */
+    private final int[] next;
+
+    /**
+     * The keywords that end in each state, or null for none.
+     */
+    private final int[][] output;
+
+    KeywordAutomaton(List<Keyword> keywords) {
+        int count = keywords.size();
+        boundaries = new Boundary[count];
+        lengths = new int[count];
+        byte[][] patterns = new byte[count][];
+        int columnCount = 1;
+        for (int k = 0; k < count; k++) {
+            boundaries[k] = keywords.get(k).boundary;
+            patterns[k] = keywords.get(k).text.getBytes(StandardCharsets.UTF_8);
+            lengths[k] = patterns[k].length;
+            for (int i = 0; i < patterns[k].length; i++) {
+                byte b = fold(patterns[k][i]);
+                patterns[k][i] = b;
+                if (columns[b & 0xff] == 0) {
+                    columns[b & 0xff] = columnCount++;
+                }
+            }
+        }
+        for (int b = 'A'; b <= 'Z'; b++) {
+            columns[b] = columns[b - 'A' + 'a'];
+        }
+        width = columnCount;
+
+        // the trie, with -1 for a missing edge
+        List<int[]> trie = new ArrayList<int[]>();
+        List<int[]> ends = new ArrayList<int[]>();
+        trie.add(newRow());
+        ends.add(null);
+        for (int k = 0; k < count; k++) {
+            int state = 0;
+            for (byte b : patterns[k]) {
+                int column = columns[b & 0xff];
+                if (trie.get(state)[column] < 0) {
+                    trie.get(state)[column] = trie.size();
+                    trie.add(newRow());
+                    ends.add(null);
+                }
+                state = trie.get(state)[column];
+            }
+            ends.set(state, append(ends.get(state), k));
+        }
+
+        // breadth first, so that a state's failure state is complete
+        // before the state itself is
+        int states = trie.size();
+        next = new int[states * width];
+        output = new int[states][];
+        int[] failure = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        for (int column = 0; column < width; column++) {
+            int child = trie.get(0)[column];
+            if (child > 0) {
+                failure[child] = 0;
+                next[column] = child;
+                queue.add(child);
+            }
+        }
+        output[0] = ends.get(0);
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] merged = ends.get(state);
+            if (output[failure[state]] != null) {
+                for (int keyword : output[failure[state]]) {
+                    merged = append(merged, keyword);
+                }
+            }
+            output[state] = merged;
+            for (int column = 0; column < width; column++) {
+                int child = trie.get(state)[column];
+                if (child > 0) {
+                    failure[child] = next[failure[state] * width + column];
+                    next[state * width + column] = child;
+                    queue.add(child);
+                } else {
+                    next[state * width + column] = next[failure[state] * width + column];
+                }
+            }
+        }
+        // column 0 is never in a keyword, so it always leads back to 0
+    }
+
+    private int[] newRow() {
+        int[] row = new int[width];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    private static int[] append(int[] keywords, int keyword) {
+        if (keywords == null) {
+            return new int[] { keyword };
+        }
+        int[] more = Arrays.copyOf(keywords, keywords.length + 1);
+        more[keywords.length] = keyword;
+        return more;
+    }
+
+    private static byte fold(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b - 'A' + 'a') : b;
+    }
+
+    int size() {
+        return lengths.length;
+    }
+
+    /**
+     * Reports every keyword in text[offset..offset + length) to hits.
+     */
+    void scan(byte[] text, int offset, int length, Hits hits) {
+        int state = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            state = next[state * width + columns[text[i] & 0xff]];
+            int[] found = output[state];
+            if (found == null) {
+                continue;
+            }
+            for (int keyword : found) {
+                int start = i + 1 - lengths[keyword];
+                if (fits(keyword, text, offset, end, start, i + 1)) {
+                    hits.hit(keyword, start, i + 1);
+                }
+            }
+        }
+    }
+
+    private boolean fits(int keyword, byte[] text, int offset, int end, int start, int stop) {
+        if (boundaries[keyword] == Boundary.ANYWHERE) {
+            return true;
+        }
+        if (start > offset && isWordByte(text[start - 1])) {
+            return false;
+        }
+        return boundaries[keyword] == Boundary.WORD_START || stop == end || !isWordByte(text[stop]);
+    }
+
+    static boolean isWordByte(byte b) {
+        return b < 0 || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+    }
+}
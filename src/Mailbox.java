@@ -0,0 +1,545 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Private messages kept on disk for users who are not online, and handed
+ * to them when they next sign in.
+ *
+ * Every user's mail is a file of its own, named after the SHA-256 of the
+ * screen name and spread over directories like the attachments, of
+ * records
+ *
+ *     [record length: 4 bytes][expiry time: 8 bytes][payload]
+ *
+ * where the payload is the MESSAGE payload as it would have been sent
+ * ("alice: hello").  Storing a message appends one record to the file,
+ * and taking the mail reads the file once and deletes it, so both only
+ * ever cost as much as that one user's mail, however many mailboxes
+ * there are.
+ *
+ * A mailbox holds at most maxMessages messages and maxBytes bytes of
+ * them; mail for a full one is refused, so that the sender can be told.
+ * A message expires ttlMillis after it was sent.  Expired messages are
+ * dropped when the mailbox is read, and a full mailbox is compacted
+ * before it refuses anything.  A mailbox nobody has written to for
+ * longer than the ttl can only hold expired mail, so a sweeper deletes
+ * such files by their modification time alone, without reading them.
+ *
+ * Mail is only kept for screen names that have signed in to this node
+ * within the ttl, so that messages to made up names or typos do not
+ * each leave a file behind.  Every sign in is appended to a file of its
+ * own in the directory, as the time and the name on a line, and read
+ * back when the server starts.  The sweeper forgets the names that have
+ * not signed in for longer than the ttl, and rewrites the file with
+ * only the latest sign in of each name it still knows.
+ *
+ * Over all users, at most maxBoxes mailboxes and maxTotalBytes bytes of
+ * files are kept, whatever each mailbox may hold.  Both limits are
+ * about: mail is stored both on the mailbox thread and on the thread of
+ * the mentions stage of the MessagePipeline, and each may overshoot
+ * them by a message.
+ *
+ * The router does its reads and writes of mail on the mailbox's own
+ * thread, with submit(), so that a routing thread, which may be an
+ * event loop, never waits for the disk.
+ */
+public class Mailbox {
+
+    private static final String SUFFIX = ".box";
+    private static final int RECORD_HEADER = 12;
+    private static final String NAMES = "names";
+
+    /**
+     * Tasks that may wait for the mailbox thread before more are
+     * refused.
+     */
+    private static final int QUEUE_LENGTH = 10000;
+
+    private final File directory;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final int maxBoxes;
+    private final long maxTotalBytes;
+
+    /**
+     * The mailbox files there are, and their size in bytes.
+     */
+    private final AtomicInteger boxCount = new AtomicInteger();
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    /**
+     * The screen names that have signed in, with the time each last did,
+     * and the file they are kept in.  Only written on the mailbox thread.
+     */
+    private final Map<String, Long> known = new ConcurrentHashMap<String, Long>();
+    private final File nameFile;
+    private Writer names;
+
+    /**
+     * Lines in the name file, which is rewritten once it holds twice as
+     * many as there are names.  Only used on the mailbox thread.
+     */
+    private int nameLines;
+
+    /**
+     * Mailboxes in use, by the hash of their owner's name.  Every read or
+     * write of a mailbox file happens holding its Box, and a Box is
+     * removed again once the file has been taken or swept.
+     */
+    private final ConcurrentHashMap<String, Box> boxes = new ConcurrentHashMap<String, Box>();
+
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "mailbox-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(QUEUE_LENGTH), task -> {
+                Thread thread = new Thread(task, "mailbox");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Opens the mailboxes in the given directory, creating it if need be,
+     * and starts sweeping out expired ones.
+     */
+    public Mailbox(File directory, int maxMessages, long maxBytes, long ttlMillis, int maxBoxes,
+            long maxTotalBytes) throws IOException {
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.maxBoxes = maxBoxes;
+        this.maxTotalBytes = maxTotalBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create mailbox directory " + directory);
+        }
+        nameFile = new File(directory, NAMES);
+        if (nameFile.isFile()) {
+            long now = System.currentTimeMillis();
+            for (String line : Files.readAllLines(nameFile.toPath(), StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                long time = now;
+                String name = line;
+                if (tab > 0) {
+                    try {
+                        time = Long.parseLong(line.substring(0, tab));
+                        name = line.substring(tab + 1);
+                    } catch (NumberFormatException e) {
+                        // a name from before sign ins were timed
+                    }
+                }
+                if (!name.isEmpty()) {
+                    known.merge(name, time, Math::max);
+                    nameLines++;
+                }
+            }
+        }
+        names = new OutputStreamWriter(new FileOutputStream(nameFile, true), StandardCharsets.UTF_8);
+        File[] parents = directory.listFiles(File::isDirectory);
+        for (File parent : parents == null ? new File[0] : parents) {
+            File[] files = parent.listFiles((dir, name) -> name.endsWith(SUFFIX));
+            for (File file : files == null ? new File[0] : files) {
+                boxCount.incrementAndGet();
+                totalBytes.addAndGet(file.length());
+            }
+        }
+        long period = Math.max(1000, Math.min(ttlMillis, TimeUnit.HOURS.toMillis(1)));
+        sweeper.scheduleWithFixedDelay(() -> {
+            sweep();
+            submit(this::forgetNames);
+        }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task on the mailbox thread, and returns false if too many
+     * are waiting already.
+     */
+    public boolean submit(Runnable task) {
+        try {
+            worker.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if a user has signed in to this node within the ttl,
+     * so that mail may be kept for them.
+     */
+    public boolean knows(String name) {
+        Long time = known.get(name);
+        return time != null && time >= System.currentTimeMillis() - ttlMillis;
+    }
+
+    /**
+     * Notes that a user has signed in, so that mail is kept for them for
+     * the ttl from now.  Called on the mailbox thread.
+     */
+    public void signedIn(String name) throws IOException {
+        long now = System.currentTimeMillis();
+        known.put(name, now);
+        names.write(now + "\t" + name + "\n");
+        names.flush();
+        nameLines++;
+    }
+
+    /**
+     * Forgets the names that have not signed in for longer than the ttl,
+     * and rewrites the name file if that or repeated sign ins have left
+     * it much longer than it needs to be.  Runs on the mailbox thread.
+     */
+    private void forgetNames() {
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        known.values().removeIf(time -> time < cutoff);
+        if (nameLines <= 2 * known.size()) {
+            return;
+        }
+        File rewritten = new File(directory, NAMES + ".tmp");
+        try {
+            names.close();
+            Writer out = new OutputStreamWriter(new FileOutputStream(rewritten), StandardCharsets.UTF_8);
+            try {
+                for (Map.Entry<String, Long> name : known.entrySet()) {
+                    out.write(name.getValue() + "\t" + name.getKey() + "\n");
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(rewritten.toPath(), nameFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            nameLines = known.size();
+        } catch (IOException e) {
+            System.out.println("Cannot rewrite " + nameFile + ": " + e);
+        }
+        try {
+            names = new OutputStreamWriter(new FileOutputStream(nameFile, true), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println("Cannot open " + nameFile + ": " + e);
+        }
+    }
+
+    /**
+     * Keeps a message for a user who is not online.  Returns false if the
+     * user's mailbox is full, or all of them together are.
+     */
+    public boolean store(String recipient, byte[] payload) throws IOException {
+        String hash = hash(recipient);
+        while (true) {
+            Box box = boxes.computeIfAbsent(hash, Box::new);
+            synchronized (box) {
+                if (box.removed) {
+                    continue;
+                }
+                box.load();
+                if (!box.file.isFile() && boxCount.get() >= maxBoxes) {
+                    return false;
+                }
+                if (!box.fits(payload.length)) {
+                    // the space may only be taken up by expired mail
+                    box.compact();
+                    if (!box.fits(payload.length)) {
+                        return false;
+                    }
+                }
+                box.append(System.currentTimeMillis() + ttlMillis, payload);
+                Metrics.mailStored.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns a user's mail that has not expired, oldest first, and
+     * empties their mailbox.
+     */
+    public List<byte[]> take(String name) throws IOException {
+        String hash = hash(name);
+        while (true) {
+            Box box = boxes.computeIfAbsent(hash, Box::new);
+            synchronized (box) {
+                if (box.removed) {
+                    continue;
+                }
+                try {
+                    if (!box.file.isFile()) {
+                        return new ArrayList<byte[]>(0);
+                    }
+                    List<byte[]> mail = box.read();
+                    long length = box.file.length();
+                    if (!box.file.delete()) {
+                        throw new IOException("Cannot delete " + box.file);
+                    }
+                    box.deleted(length);
+                    Metrics.mailDelivered.add(mail.size());
+                    return mail;
+                } finally {
+                    box.removed = true;
+                    boxes.remove(hash, box);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the mailboxes that have not been written to for longer than
+     * the ttl.
+     */
+    private void sweep() {
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        File[] parents = directory.listFiles();
+        if (parents == null) {
+            return;
+        }
+        int swept = 0;
+        for (File parent : parents) {
+            File[] files = parent.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String fileName = file.getName();
+                if (!fileName.endsWith(SUFFIX) || file.lastModified() >= cutoff) {
+                    continue;
+                }
+                if (sweep(fileName.substring(0, fileName.length() - SUFFIX.length()), file, cutoff)) {
+                    swept++;
+                }
+            }
+        }
+        if (swept > 0) {
+            System.out.println("Swept " + swept + " expired mailboxes");
+        }
+    }
+
+    private boolean sweep(String hash, File file, long cutoff) {
+        while (true) {
+            Box box = boxes.computeIfAbsent(hash, Box::new);
+            synchronized (box) {
+                if (box.removed) {
+                    continue;
+                }
+                box.removed = true;
+                boxes.remove(hash, box);
+                // a message may have arrived since the listing
+                long length = file.length();
+                if (file.lastModified() < cutoff && file.delete()) {
+                    box.deleted(length);
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    private static String hash(String name) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return AttachmentStore.hex(digest.digest(name.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * One user's mailbox file, and how much is in it.  The counts are
+     * only read from the file the first time mail is stored.
+     */
+    private final class Box {
+        final File file;
+        boolean loaded;
+        boolean removed;
+        int messages;
+        long bytes;
+
+        Box(String hash) {
+            this.file = new File(new File(directory, hash.substring(0, 2)), hash + SUFFIX);
+        }
+
+        /**
+         * Counts the messages in the file if that has not been done yet,
+         * cutting off a record that a crash left incomplete, so that the
+         * next one is appended where it can be read.
+         */
+        void load() throws IOException {
+            if (loaded) {
+                return;
+            }
+            messages = 0;
+            bytes = 0;
+            if (file.isFile()) {
+                for (Record record : records()) {
+                    messages++;
+                    bytes += record.payload.length;
+                }
+                long complete = bytes + (long) messages * RECORD_HEADER;
+                if (file.length() > complete) {
+                    totalBytes.addAndGet(complete - file.length());
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    try {
+                        raf.setLength(complete);
+                    } finally {
+                        raf.close();
+                    }
+                }
+            }
+            loaded = true;
+        }
+
+        boolean fits(int length) {
+            return messages < maxMessages && bytes + length <= maxBytes
+                    && totalBytes.get() + RECORD_HEADER + length <= maxTotalBytes;
+        }
+
+        /**
+         * Takes a file of the given length that has been deleted off the
+         * totals.
+         */
+        void deleted(long length) {
+            boxCount.decrementAndGet();
+            totalBytes.addAndGet(-length);
+        }
+
+        void append(long expires, byte[] payload) throws IOException {
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create " + parent);
+            }
+            byte[] record = new byte[RECORD_HEADER + payload.length];
+            BinaryFrames.writeInt(record, 0, record.length);
+            BinaryFrames.writeLong(record, 4, expires);
+            System.arraycopy(payload, 0, record, RECORD_HEADER, payload.length);
+            boolean created = !file.isFile();
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write(record);
+            } finally {
+                out.close();
+            }
+            if (created) {
+                boxCount.incrementAndGet();
+            }
+            totalBytes.addAndGet(record.length);
+            messages++;
+            bytes += payload.length;
+        }
+
+        /**
+         * Returns the payloads of the messages that have not expired.
+         */
+        List<byte[]> read() throws IOException {
+            long now = System.currentTimeMillis();
+            List<byte[]> mail = new ArrayList<byte[]>();
+            for (Record record : records()) {
+                if (record.expires > now) {
+                    mail.add(record.payload);
+                }
+            }
+            return mail;
+        }
+
+        /**
+         * Rewrites the file without its expired messages.
+         */
+        void compact() throws IOException {
+            if (!file.isFile()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            List<Record> kept = new ArrayList<Record>();
+            for (Record record : records()) {
+                if (record.expires > now) {
+                    kept.add(record);
+                }
+            }
+            if (kept.size() == messages) {
+                return;
+            }
+            File compacted = new File(file.getParentFile(), file.getName() + ".tmp");
+            FileOutputStream out = new FileOutputStream(compacted);
+            messages = 0;
+            bytes = 0;
+            try {
+                byte[] header = new byte[RECORD_HEADER];
+                for (Record record : kept) {
+                    BinaryFrames.writeInt(header, 0, RECORD_HEADER + record.payload.length);
+                    BinaryFrames.writeLong(header, 4, record.expires);
+                    out.write(header);
+                    out.write(record.payload);
+                    messages++;
+                    bytes += record.payload.length;
+                }
+            } finally {
+                out.close();
+            }
+            long before = file.length();
+            long after = compacted.length();
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            totalBytes.addAndGet(after - before);
+        }
+
+        /**
+         * Reads every record in the file.  A record cut short by a crash
+         * ends the file.
+         */
+        private List<Record> records() throws IOException {
+            List<Record> records = new ArrayList<Record>();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    if (length < RECORD_HEADER || length - RECORD_HEADER > BinaryFrames.MAX_PAYLOAD_LENGTH) {
+                        break;
+                    }
+                    long expires = in.readLong();
+                    byte[] payload = new byte[length - RECORD_HEADER];
+                    in.readFully(payload);
+                    records.add(new Record(expires, payload));
+                }
+            } catch (EOFException e) {
+                // the end of the file, or of the last complete record
+            } finally {
+                in.close();
+            }
+            return records;
+        }
+    }
+
+    private static final class Record {
+        final long expires;
+        final byte[] payload;
+
+        Record(long expires, byte[] payload) {
+            this.expires = expires;
+            this.payload = payload;
+        }
+    }
+}
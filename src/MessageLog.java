@@ -0,0 +1,744 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log on disk of every chat message, so that a client
+ * that has just joined can be shown what was said before it arrived.
+ *
+ * The log is a directory of fixed size segment files, named after
+ * their number, each of which is memory mapped and filled from the
+ * start.  A segment starts with a magic number and the version of the
+ * record format, and a log whose segments do not match is refused
+ * rather than read as damaged.  A record is
+ *
+ *     [record length: 4 bytes][CRC32 of the rest: 4 bytes]
+ *     [key count: 2 bytes][(key length: 2 bytes, key)*][payload]
+ *
+ * where the payload is the MESSAGE payload as sent ("alice: hello")
+ * and the keys name the conversations the message belongs to: PUBLIC
+ * for a broadcast, "#room" for a room message, and "@name" for the
+ * sender and each recipient of a private message.  A length of 0 marks the end of a segment, since a
+ * newly mapped file reads as zeros.  While recovering, a record that is
+ * cut short, does not match its CRC or whose keys do not fit in it, as
+ * a crash in the middle of a write leaves behind, ends its segment: the
+ * rest of the segment is zeroed, so that the writer carries on after
+ * the last good record.
+ *
+ * Only the latest maxSegments segments are kept.  When the writer
+ * starts a new one past that, the oldest is deleted and its messages
+ * are gone from history and search.  Its mapping is only released once
+ * the garbage collector has seen the last reader let go of it, since
+ * there is no safe way to unmap a buffer another thread may still read.
+ *
+ * Senders never touch the disk.  append() only hands the message to a
+ * queue, and a single writer thread copies whole batches into the
+ * mapped segment and forces it to disk at most once per fsync
+ * interval.  For every conversation the log remembers where its most
+ * recent messages are, which is all that replay needs; the index is
+ * rebuilt by scanning the segments when the server starts.
+ *
+ * The writer thread also adds every message to the SearchIndex, if
+ * there is one, which search() looks messages up in on a thread of its
+ * own, so that a slow search holds up nobody else.  A client is only
+ * shown matches from the conversations it could see now: broadcasts,
+ * the rooms it is in and its own private messages.
+ */
+public class MessageLog {
+
+    /**
+     * The conversation of broadcast messages.
+     */
+    static final String PUBLIC = "*";
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int BATCH_SIZE = 1024;
+    private static final String SUFFIX = ".log";
+
+    /**
+     * Searches that may wait for the search thread before more are
+     * turned away.
+     */
+    private static final int SEARCH_QUEUE_LENGTH = 64;
+
+    /**
+     * The start of every segment: MAGIC, then VERSION, which changes
+     * whenever the record format does.
+     */
+    private static final int MAGIC = 0x43484c47;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+
+    /**
+     * Where the CRC32 and the key count are in a record.
+     */
+    private static final int CRC_OFFSET = 4;
+    private static final int KEYS_OFFSET = 8;
+
+    private final File directory;
+    private final long segmentBytes;
+    private final long fsyncMillis;
+    private final int historyLength;
+    private final int maxSegments;
+
+    /**
+     * Where every message is indexed for search(), or null.
+     */
+    private final SearchIndex search;
+
+    private final ThreadPoolExecutor searcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(SEARCH_QUEUE_LENGTH), task -> {
+                Thread thread = new Thread(task, "search");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static final DateTimeFormatter SEARCH_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+            .withZone(ZoneId.systemDefault());
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+
+    /**
+     * Mapped segments by number.  Only the last one is written to.
+     */
+    private final Map<Long, MappedByteBuffer> segments = new ConcurrentHashMap<Long, MappedByteBuffer>();
+
+    /**
+     * Positions of the latest messages of each conversation, guarded by
+     * indexLock.  A position is the segment number times the segment
+     * size plus the offset within the segment.  A conversation whose
+     * messages have all been deleted is forgotten.
+     */
+    private final Map<String, Recent> index = new HashMap<String, Recent>();
+    private final ReentrantLock indexLock = new ReentrantLock();
+
+    /**
+     * The position of the oldest segment that is kept.  Positions before
+     * it are still in the index until they are pushed out, and are
+     * skipped.
+     */
+    private volatile long firstPosition;
+
+    /**
+     * Set once the writer thread has stopped, after which messages are
+     * no longer recorded.
+     */
+    private volatile boolean stopped;
+
+    // Written only by the writer thread, apart from recover().
+    private final CRC32 crc = new CRC32();
+    private long segment;
+    private volatile MappedByteBuffer current;
+    private long lastForce;
+    private boolean dirty;
+
+    /**
+     * Opens the log in the given directory, creating it if needed, and
+     * starts the writer thread.  historyLength is the number of recent
+     * messages kept for each conversation.  Every segment is kept.
+     */
+    public MessageLog(File directory, long segmentBytes, long fsyncMillis, int historyLength) throws IOException {
+        this(directory, segmentBytes, fsyncMillis, historyLength, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Opens the log as above, keeping only the latest maxSegments
+     * segments, and keeps search up to date with it.  The messages
+     * search has not sealed are indexed again while recovering.
+     */
+    public MessageLog(File directory, long segmentBytes, long fsyncMillis, int historyLength, int maxSegments,
+            SearchIndex search) throws IOException {
+        if (segmentBytes < BinaryFrames.MAX_PAYLOAD_LENGTH * 2L || segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Log segments must be between 2MB and 2GB");
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("At least one log segment must be kept");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncMillis = fsyncMillis;
+        this.historyLength = historyLength;
+        this.maxSegments = maxSegments;
+        this.search = search;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory " + directory);
+        }
+        recover();
+
+        Thread writer = new Thread(this::writeLoop, "message-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "message-log-shutdown"));
+    }
+
+    /**
+     * Records a message.  Only queues it, so that the caller is not held
+     * up by the disk; if the writer has fallen a whole queue behind the
+     * caller waits for it.  A message too big for a segment, or with keys
+     * too long for a record, is not recorded, nor is anything once the
+     * writer has stopped.
+     */
+    public void append(List<String> keys, byte[] payload) {
+        Entry entry = new Entry(keys, payload);
+        if (entry.length < 0 || entry.length > segmentBytes - HEADER_LENGTH) {
+            System.out.println("Message log refused a message of " + payload.length + " bytes with "
+                    + keys.size() + " keys");
+            return;
+        }
+        try {
+            while (!stopped && !queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                // the writer may have stopped meanwhile
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the payloads of the latest messages in any of the given
+     * conversations, oldest first.
+     */
+    public List<byte[]> history(String... conversations) {
+        long[] positions;
+        indexLock.lock();
+        try {
+            positions = merge(conversations);
+        } finally {
+            indexLock.unlock();
+        }
+        List<byte[]> payloads = new ArrayList<byte[]>(positions.length);
+        for (long position : positions) {
+            byte[] payload = read(position);
+            if (payload != null) {
+                payloads.add(payload);
+            }
+        }
+        return payloads;
+    }
+
+    /**
+     * Sends a newly accepted session the messages it missed, broadcasts
+     * and its own private messages, as one frame.
+     */
+    public void replay(Session session) {
+        replay(session, PUBLIC, userKey(session.name()));
+    }
+
+    /**
+     * Sends a session the latest messages of the given conversations, as
+     * one frame.
+     */
+    public void replay(Session session, String... conversations) {
+        List<byte[]> payloads = history(conversations);
+        if (payloads.isEmpty()) {
+            return;
+        }
+        Frame.Builder replay = new Frame.Builder();
+        for (byte[] payload : payloads) {
+            replay.add(FrameType.MESSAGE, payload);
+        }
+        session.send(replay.build(null));
+    }
+
+    /**
+     * Answers a search with one page of the matching messages the session
+     * may see, newest first, as one frame.  Only parses the search; it is
+     * done on the search thread.
+     */
+    public void search(Session session, String text) {
+        if (search == null) {
+            session.send(Frame.of(FrameType.ERROR, "Search is turned off"));
+            return;
+        }
+        SearchIndex.Query query;
+        try {
+            query = SearchIndex.Query.parse(text);
+        } catch (IllegalArgumentException e) {
+            session.send(Frame.of(FrameType.ERROR, e.getMessage()));
+            return;
+        }
+        try {
+            searcher.execute(() -> search(session, text, query));
+        } catch (RejectedExecutionException e) {
+            session.send(Frame.of(FrameType.ERROR, "The server is too busy to search, try again later"));
+        }
+    }
+
+    private void search(Session session, String text, SearchIndex.Query query) {
+        long[] candidates = search.candidates(query);
+        long[] visible = new long[candidates.length];
+        int matches = 0;
+        for (long position : candidates) {
+            if (visible(position, session)) {
+                visible[matches++] = position;
+            }
+        }
+        int pages = Math.max(1, (matches + SearchIndex.PAGE_SIZE - 1) / SearchIndex.PAGE_SIZE);
+        // in long, since the page is whatever the user asked for; a page
+        // past the end is empty
+        int from = (int) Math.min(matches, (query.page - 1L) * SearchIndex.PAGE_SIZE);
+        int to = Math.min(matches, from + SearchIndex.PAGE_SIZE);
+        String more = candidates.length == SearchIndex.MAX_CANDIDATES ? "+" : "";
+        Frame.Builder results = new Frame.Builder();
+        results.add(FrameType.SEARCHRESULTS, "Page " + query.page + " of " + pages + more + ", "
+                + matches + more + " matches for " + text.trim());
+        for (int i = from; i < to; i++) {
+            byte[] payload = read(visible[i]);
+            if (payload != null) {
+                String time = SEARCH_TIME.format(Instant.ofEpochMilli(search.time(visible[i])));
+                results.add(FrameType.SEARCHRESULT, time + " " + new String(payload, StandardCharsets.UTF_8));
+            }
+        }
+        session.send(results.build(null));
+    }
+
+    /**
+     * Returns true if the record at a position belongs to a conversation
+     * the session can see, and has not been deleted.
+     */
+    private boolean visible(long position, Session session) {
+        ByteBuffer buffer = segment(position);
+        if (buffer == null) {
+            return false;
+        }
+        buffer.position((int) (position % segmentBytes) + KEYS_OFFSET);
+        int keys = buffer.getShort() & 0xffff;
+        String self = userKey(session.name());
+        for (int i = 0; i < keys; i++) {
+            byte[] key = new byte[buffer.getShort() & 0xffff];
+            buffer.get(key);
+            String conversation = new String(key, StandardCharsets.UTF_8);
+            if (conversation.equals(PUBLIC) || conversation.equals(self)
+                    || (conversation.charAt(0) == Rooms.PREFIX && session.rooms().contains(conversation.substring(1)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String userKey(String name) {
+        return "@" + name;
+    }
+
+    /**
+     * Picks the latest historyLength positions out of some conversations.
+     * Called with indexLock held.
+     */
+    private long[] merge(String... conversations) {
+        long[] merged = new long[0];
+        for (String conversation : conversations) {
+            Recent recent = index.get(conversation);
+            if (recent != null) {
+                long[] positions = recent.positions(firstPosition);
+                int length = merged.length;
+                merged = Arrays.copyOf(merged, length + positions.length);
+                System.arraycopy(positions, 0, merged, length, positions.length);
+            }
+        }
+        Arrays.sort(merged);
+        // a private message to oneself is indexed under the same key twice
+        int distinct = 0;
+        for (int i = 0; i < merged.length; i++) {
+            if (i == 0 || merged[i] != merged[i - 1]) {
+                merged[distinct++] = merged[i];
+            }
+        }
+        int from = Math.max(0, distinct - historyLength);
+        return Arrays.copyOfRange(merged, from, distinct);
+    }
+
+    /**
+     * Returns the payload of the record at a position, or null if its
+     * segment has been deleted.
+     */
+    private byte[] read(long position) {
+        ByteBuffer buffer = segment(position);
+        if (buffer == null) {
+            return null;
+        }
+        buffer.position((int) (position % segmentBytes));
+        int end = buffer.position() + buffer.getInt();
+        buffer.position(buffer.position() + KEYS_OFFSET - CRC_OFFSET);
+        int keys = buffer.getShort() & 0xffff;
+        for (int i = 0; i < keys; i++) {
+            int length = buffer.getShort() & 0xffff;
+            buffer.position(buffer.position() + length);
+        }
+        byte[] payload = new byte[end - buffer.position()];
+        buffer.get(payload);
+        return payload;
+    }
+
+    /**
+     * Returns a view of the segment a position is in, or null if it has
+     * been deleted.
+     */
+    private ByteBuffer segment(long position) {
+        MappedByteBuffer buffer = position < firstPosition ? null : segments.get(position / segmentBytes);
+        return buffer == null ? null : buffer.duplicate();
+    }
+
+    /**
+     * Maps every existing segment, indexes its records and positions the
+     * writer after the last one.
+     */
+    private void recover() throws IOException {
+        List<Long> numbers = new ArrayList<Long>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.endsWith(SUFFIX)) {
+                    numbers.add(Long.parseLong(fileName.substring(0, fileName.length() - SUFFIX.length())));
+                }
+            }
+        }
+        if (numbers.isEmpty()) {
+            numbers.add(0L);
+        }
+        numbers.sort(null);
+        while (numbers.size() > maxSegments) {
+            delete(numbers.remove(0));
+        }
+        firstPosition = numbers.get(0) * segmentBytes;
+        if (search != null) {
+            search.drop(firstPosition);
+        }
+
+        long records = 0;
+        long reindexed = 0;
+        long unsealed = search == null ? Long.MAX_VALUE : search.indexedUpTo();
+        for (long number : numbers) {
+            MappedByteBuffer buffer = map(number);
+            header(number, buffer);
+            // the log keeps no times, so these are dated by their segment
+            long written = segmentFile(number).lastModified();
+            segments.put(number, buffer);
+            while (buffer.remaining() >= 4) {
+                int start = buffer.position();
+                int length = buffer.getInt(start);
+                if (length == 0) {
+                    break;
+                }
+                List<String> keys = keys(buffer, start, length);
+                if (keys == null) {
+                    System.out.println("Message log segment " + number + " is damaged at " + start
+                            + ", dropping the rest of it");
+                    for (int i = start; i < buffer.capacity(); i++) {
+                        buffer.put(i, (byte) 0);
+                    }
+                    buffer.force();
+                    buffer.position(start);
+                    break;
+                }
+                for (String key : keys) {
+                    recent(key).add(number * segmentBytes + start);
+                }
+                if (number * segmentBytes + start >= unsealed) {
+                    byte[] payload = new byte[start + length - buffer.position()];
+                    buffer.get(payload);
+                    search.add(number * segmentBytes + start, written, payload);
+                    reindexed++;
+                }
+                buffer.position(start + length);
+                records++;
+            }
+            segment = number;
+            current = buffer;
+        }
+        System.out.println("Message log " + directory + " has " + records + " messages in "
+                + numbers.size() + " segments");
+        if (reindexed > 0) {
+            System.out.println("Indexed " + reindexed + " messages for search again");
+        }
+    }
+
+    /**
+     * Checks the header of a segment, writing one if the segment is new,
+     * and leaves the buffer after it.
+     */
+    private void header(long number, MappedByteBuffer buffer) throws IOException {
+        if (buffer.getInt(0) == 0 && buffer.getInt(4) == 0 && buffer.getInt(HEADER_LENGTH) == 0) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Message log segment " + segmentFile(number)
+                    + " was written by another version of the server; move " + directory
+                    + " aside to start a new log");
+        }
+        buffer.position(HEADER_LENGTH);
+    }
+
+    /**
+     * Returns the keys of the record at start, leaving the buffer at its
+     * payload, or null if the record is cut short, does not match its
+     * CRC or does not hold its keys.
+     */
+    private List<String> keys(MappedByteBuffer buffer, int start, int length) {
+        if (length < KEYS_OFFSET + 2 || length > buffer.capacity() - start) {
+            return null;
+        }
+        ByteBuffer body = buffer.duplicate();
+        body.limit(start + length).position(start + KEYS_OFFSET);
+        crc.reset();
+        crc.update(body);
+        if ((int) crc.getValue() != buffer.getInt(start + CRC_OFFSET)) {
+            return null;
+        }
+        int end = start + length;
+        buffer.position(start + KEYS_OFFSET);
+        int count = buffer.getShort() & 0xffff;
+        List<String> keys = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            if (end - buffer.position() < 2) {
+                return null;
+            }
+            int keyLength = buffer.getShort() & 0xffff;
+            if (keyLength == 0 || end - buffer.position() < keyLength) {
+                return null;
+            }
+            byte[] key = new byte[keyLength];
+            buffer.get(key);
+            keys.add(new String(key, StandardCharsets.UTF_8));
+        }
+        return keys;
+    }
+
+    /**
+     * Forgets the oldest segment kept and deletes its file, and the
+     * conversations and search index parts that only had messages in it.
+     */
+    private void retire() {
+        long oldest = firstPosition / segmentBytes;
+        firstPosition = (oldest + 1) * segmentBytes;
+        segments.remove(oldest);
+        delete(oldest);
+        indexLock.lock();
+        try {
+            index.values().removeIf(recent -> recent.latest() < firstPosition);
+        } finally {
+            indexLock.unlock();
+        }
+        if (search != null) {
+            search.drop(firstPosition);
+        }
+    }
+
+    private void delete(long number) {
+        File file = segmentFile(number);
+        if (!file.delete()) {
+            System.out.println("Cannot delete log segment " + file);
+        }
+    }
+
+    private File segmentFile(long number) {
+        return new File(directory, String.format("%020d", number) + SUFFIX);
+    }
+
+    private MappedByteBuffer map(long number) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(segmentFile(number), "rw");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    private Recent recent(String key) {
+        Recent recent = index.get(key);
+        if (recent == null) {
+            recent = new Recent(historyLength);
+            index.put(key, recent);
+        }
+        return recent;
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+        long[] positions = new long[BATCH_SIZE];
+        while (true) {
+            try {
+                Entry first = queue.poll(fsyncMillis > 0 ? fsyncMillis : Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    for (int i = 0; i < batch.size(); i++) {
+                        positions[i] = write(batch.get(i));
+                    }
+                    indexLock.lock();
+                    try {
+                        for (int i = 0; i < batch.size(); i++) {
+                            for (String key : batch.get(i).keys) {
+                                recent(key).add(positions[i]);
+                            }
+                        }
+                    } finally {
+                        indexLock.unlock();
+                    }
+                    if (search != null) {
+                        long now = System.currentTimeMillis();
+                        for (int i = 0; i < batch.size(); i++) {
+                            search.add(positions[i], now, batch.get(i).payload);
+                        }
+                        if (search.full()) {
+                            search.seal();
+                        }
+                    }
+                    batch.clear();
+                    dirty = true;
+                }
+                long now = System.currentTimeMillis();
+                if (dirty && now - lastForce >= fsyncMillis) {
+                    current.force();
+                    dirty = false;
+                    lastForce = now;
+                }
+            } catch (InterruptedException e) {
+                stopped = true;
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Message log stopped: " + e);
+                stopped = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies one record into the current segment, starting a new segment
+     * if it does not fit, and returns its position.
+     */
+    private long write(Entry entry) throws IOException {
+        if (current.remaining() < entry.length) {
+            // whatever is left of the segment still reads as zeros
+            current.force();
+            segment++;
+            current = map(segment);
+            header(segment, current);
+            segments.put(segment, current);
+            while (segment - firstPosition / segmentBytes >= maxSegments) {
+                retire();
+            }
+        }
+        int start = current.position();
+        current.putInt(entry.length);
+        current.putInt(0);
+        current.putShort((short) entry.encodedKeys.length);
+        for (byte[] key : entry.encodedKeys) {
+            current.putShort((short) key.length);
+            current.put(key);
+        }
+        current.put(entry.payload);
+        ByteBuffer body = current.duplicate();
+        body.limit(current.position()).position(start + KEYS_OFFSET);
+        crc.reset();
+        crc.update(body);
+        current.putInt(start + CRC_OFFSET, (int) crc.getValue());
+        return segment * segmentBytes + start;
+    }
+
+    private void force() {
+        MappedByteBuffer buffer = current;
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Forces the log to disk and seals what search has in memory, so that
+     * the next start has nothing to index again.
+     */
+    private void shutdown() {
+        force();
+        if (search != null) {
+            try {
+                search.seal();
+            } catch (IOException e) {
+                System.out.println("Cannot seal the search index: " + e);
+            }
+        }
+    }
+
+    /**
+     * A message waiting for the writer, with its keys already encoded.
+     * length is that of its record, or -1 if the keys do not fit in one.
+     */
+    private static final class Entry {
+        final List<String> keys;
+        final byte[][] encodedKeys;
+        final byte[] payload;
+        final int length;
+
+        Entry(List<String> keys, byte[] payload) {
+            this.keys = keys;
+            this.payload = payload;
+            this.encodedKeys = new byte[keys.size()][];
+            long length = KEYS_OFFSET + 2 + payload.length;
+            boolean fits = encodedKeys.length <= 0xffff;
+            for (int i = 0; i < encodedKeys.length; i++) {
+                encodedKeys[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+                fits &= encodedKeys[i].length <= 0xffff;
+                length += 2 + encodedKeys[i].length;
+            }
+            this.length = fits && length <= Integer.MAX_VALUE ? (int) length : -1;
+        }
+    }
+
+    /**
+     * The positions of the latest messages of one conversation, in a ring.
+     */
+    private static final class Recent {
+        private final long[] ring;
+        private long count;
+
+        Recent(int capacity) {
+            ring = new long[Math.max(1, capacity)];
+        }
+
+        void add(long position) {
+            ring[(int) (count++ % ring.length)] = position;
+        }
+
+        long latest() {
+            return ring[(int) ((count - 1) % ring.length)];
+        }
+
+        /**
+         * Returns the positions, oldest first, leaving out those before
+         * first.
+         */
+        long[] positions(long first) {
+            int size = (int) Math.min(count, ring.length);
+            long[] positions = new long[size];
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                long position = ring[(int) ((count - size + i) % ring.length)];
+                if (position >= first) {
+                    positions[kept++] = position;
+                }
+            }
+            return kept == size ? positions : Arrays.copyOf(positions, kept);
+        }
+    }
+}
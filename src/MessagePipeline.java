@@ -0,0 +1,516 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The stages a chat message passes through after the router has decided
+ * where it goes and before it is delivered, in the order they were
+ * added: moderation, transformation, extraction or whatever else a
+ * server wants to do to every message.  See PipelineStages for the ones
+ * that come with the server.
+ *
+ * A Filter runs on the thread that routes the message and may change
+ * its text or stop it.  Filters are given the message's bytes where
+ * they are, in the client's read buffer, so a filter may only change
+ * them in place, byte for byte, as masking a word does.
+ *
+ * A stage that is too slow for that thread, because it writes to disk
+ * or calls out somewhere, is an AsyncStage instead.  It runs on a
+ * thread of its own and sees a copy of the messages it wants once the
+ * filters are done with them, and whether they were delivered; it
+ * cannot change them.  If it falls so far behind that its queue is
+ * full, messages are counted and left out rather than holding up the
+ * chat.
+ *
+ * Stages do not test their words one after another.  The keywords of
+ * every stage are compiled into one KeywordAutomaton when the pipeline
+ * is built, each message is scanned by it once, and every stage is
+ * handed the hits on its own keywords.  A message without any hits
+ * costs one pass over its bytes and a call to each stage.
+ *
+ * Nothing is allocated for a message on the common path: each routing
+ * thread reuses one Message and its arrays of hits, and a stage only
+ * allocates when it has something to do, such as copying a message for
+ * an AsyncStage.
+ *
+ * The time taken by the scan and by each stage is recorded, for one
+ * message in Metrics.SAMPLE_EVERY like the other latencies, and shown
+ * per stage in the Metrics, as are the messages each stage stopped.
+ */
+public class MessagePipeline {
+
+    /**
+     * A stage that runs on the routing thread.
+     */
+    interface Filter {
+        String name();
+
+        /**
+         * The words this stage wants to be told about.
+         */
+        List<KeywordAutomaton.Keyword> keywords();
+
+        /**
+         * Looks at a message, and changes it in place if need be.
+         * Returns false to stop the message, in which case the stage
+         * tells the sender why.  The message must not be kept, since it
+         * is reused for the next one.
+         */
+        boolean filter(Message message);
+    }
+
+    /**
+     * A stage that runs on a thread of its own.
+     */
+    interface AsyncStage {
+        String name();
+
+        List<KeywordAutomaton.Keyword> keywords();
+
+        /**
+         * Called on the routing thread, once the filters are done, to
+         * ask whether this stage wants to see the message.
+         */
+        boolean wants(Message message);
+
+        /**
+         * Handles a copy of a message this stage wanted.
+         */
+        void process(Snapshot message) throws Exception;
+    }
+
+    /**
+     * Messages an AsyncStage may have waiting before further ones are
+     * left out.
+     */
+    private static final int ASYNC_QUEUE_LENGTH = 10000;
+
+    private final Stage[] stages;
+    private final KeywordAutomaton automaton;
+
+    /**
+     * Nanoseconds taken by the scan for keywords.
+     */
+    final Metrics.Histogram matchNanos = new Metrics.Histogram();
+
+    private final ThreadLocal<Message> messages = new ThreadLocal<Message>() {
+        @Override
+        protected Message initialValue() {
+            return new Message(stages.length);
+        }
+    };
+
+    /**
+     * A stage with what it needs to run: its place among the keywords,
+     * its statistics, and the thread of an asynchronous one.
+     */
+    static final class Stage {
+        final String name;
+        final Filter filter;
+        final AsyncStage async;
+        final ThreadPoolExecutor executor;
+        final int firstKeyword;
+        final int keywordCount;
+
+        /**
+         * Nanoseconds the stage took on the routing thread for a
+         * message, in filter() or in wants() and copying the message,
+         * and for an asynchronous stage in process() on its own thread.
+         */
+        final Metrics.Histogram nanos = new Metrics.Histogram();
+        final Metrics.Histogram asyncNanos = new Metrics.Histogram();
+
+        /**
+         * Messages the filter stopped, or an asynchronous stage had to
+         * leave out.
+         */
+        final LongAdder stopped = new LongAdder();
+
+        Stage(Filter filter, AsyncStage async, int firstKeyword, int keywordCount) {
+            this.name = filter != null ? filter.name() : async.name();
+            this.filter = filter;
+            this.async = async;
+            this.firstKeyword = firstKeyword;
+            this.keywordCount = keywordCount;
+            if (async == null) {
+                executor = null;
+                return;
+            }
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(ASYNC_QUEUE_LENGTH), task -> {
+                        Thread thread = new Thread(task, "pipeline-" + name);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+    }
+
+    /**
+     * Collects the stages of a pipeline in order.
+     */
+    static final class Builder {
+        private final List<Object> stages = new ArrayList<Object>();
+
+        Builder add(Filter filter) {
+            stages.add(filter);
+            return this;
+        }
+
+        Builder add(AsyncStage stage) {
+            stages.add(stage);
+            return this;
+        }
+
+        /**
+         * Returns the pipeline, or null if there are no stages.
+         */
+        MessagePipeline build() {
+            return stages.isEmpty() ? null : new MessagePipeline(stages);
+        }
+    }
+
+    private MessagePipeline(List<Object> added) {
+        stages = new Stage[added.size()];
+        List<KeywordAutomaton.Keyword> keywords = new ArrayList<KeywordAutomaton.Keyword>();
+        for (int i = 0; i < stages.length; i++) {
+            Object stage = added.get(i);
+            Filter filter = stage instanceof Filter ? (Filter) stage : null;
+            AsyncStage async = stage instanceof AsyncStage ? (AsyncStage) stage : null;
+            List<KeywordAutomaton.Keyword> own = filter != null ? filter.keywords() : async.keywords();
+            stages[i] = new Stage(filter, async, keywords.size(), own.size());
+            keywords.addAll(own);
+        }
+        automaton = keywords.isEmpty() ? null : new KeywordAutomaton(keywords);
+    }
+
+    /**
+     * The stages in order, for the Metrics.
+     */
+    Stage[] stages() {
+        return stages;
+    }
+
+    /**
+     * Runs a message from a client through the pipeline, and returns
+     * false if a filter stopped it.  The text is text[offset..offset +
+     * length), and recipients is null for a message to everybody.
+     */
+    boolean process(Session from, List<String> recipients, byte[] text, int offset, int length) {
+        Message message = messages.get();
+        message.start(from, recipients, text, offset, length);
+        long start = Metrics.sampleStart();
+        try {
+            if (automaton != null) {
+                automaton.scan(text, offset, length, message);
+                message.sortHits(stages);
+            }
+            if (start != 0) {
+                long now = System.nanoTime();
+                matchNanos.record(now - start);
+                start = now;
+            }
+            boolean delivered = true;
+            for (int i = 0; i < stages.length && delivered; i++) {
+                Stage stage = stages[i];
+                if (stage.filter == null) {
+                    continue;
+                }
+                message.stage = i;
+                delivered = stage.filter.filter(message);
+                if (!delivered) {
+                    stage.stopped.increment();
+                }
+                if (start != 0) {
+                    long now = System.nanoTime();
+                    stage.nanos.record(now - start);
+                    start = now;
+                }
+            }
+            message.delivered = delivered;
+            for (int i = 0; i < stages.length; i++) {
+                Stage stage = stages[i];
+                if (stage.async == null) {
+                    continue;
+                }
+                message.stage = i;
+                if (stage.async.wants(message)) {
+                    submit(stage, message.snapshot());
+                }
+                if (start != 0) {
+                    long now = System.nanoTime();
+                    stage.nanos.record(now - start);
+                    start = now;
+                }
+            }
+            return delivered;
+        } finally {
+            message.finish();
+        }
+    }
+
+    /**
+     * Hands a copy of a message to an asynchronous stage, leaving it out
+     * if the stage is too far behind.
+     */
+    private static void submit(final Stage stage, final Snapshot snapshot) {
+        try {
+            stage.executor.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    stage.async.process(snapshot);
+                } catch (Exception e) {
+                    System.out.println("Pipeline stage " + stage.name + " failed: " + e);
+                }
+                stage.asyncNanos.record(System.nanoTime() - start);
+            });
+        } catch (RejectedExecutionException e) {
+            stage.stopped.increment();
+        }
+    }
+
+    /**
+     * A message going through the pipeline.  One is kept per routing
+     * thread and reused, so a stage may only look at it while it is
+     * being called.
+     */
+    static final class Message implements KeywordAutomaton.Hits {
+
+        Session from;
+
+        /**
+         * Screen names and rooms it is addressed to, or null for
+         * everybody.
+         */
+        List<String> recipients;
+
+        /**
+         * The UTF-8 text is text[offset..offset + length).
+         */
+        byte[] text;
+        int offset;
+        int length;
+
+        /**
+         * Whether the filters let it through; only meaningful to
+         * AsyncStage.wants().
+         */
+        boolean delivered;
+
+        int stage;
+
+        /**
+         * The hits of every stage, ordered by stage and then by where
+         * they end: hit i is keyword hitKeyword[i] of all the pipeline's
+         * keywords at text[hitStart[i]..hitEnd[i]).  The hits of stage s
+         * are firstHit[s] up to firstHit[s + 1].
+         */
+        private int[] hitKeyword = new int[16];
+        private int[] hitStart = new int[16];
+        private int[] hitEnd = new int[16];
+        private int hitCount;
+        private final int[] firstHit;
+
+        /**
+         * Scratch arrays for sorting the hits.
+         */
+        private int[] sortKeyword = new int[16];
+        private int[] sortStart = new int[16];
+        private int[] sortEnd = new int[16];
+
+        /**
+         * The text as the sender wrote it, copied before a filter first
+         * changes it, or null if it has not been changed.
+         */
+        private byte[] original;
+
+        /**
+         * Why filters took notice of the message, for an audit.
+         */
+        private String[] reasons = new String[4];
+        private int reasonCount;
+
+        Message(int stages) {
+            firstHit = new int[stages + 1];
+        }
+
+        void start(Session from, List<String> recipients, byte[] text, int offset, int length) {
+            this.from = from;
+            this.recipients = recipients;
+            this.text = text;
+            this.offset = offset;
+            this.length = length;
+            hitCount = 0;
+            Arrays.fill(firstHit, 0);
+        }
+
+        /**
+         * Lets go of the message, so that nothing is kept alive by the
+         * thread's Message until the next one.
+         */
+        void finish() {
+            from = null;
+            recipients = null;
+            text = null;
+            original = null;
+            Arrays.fill(reasons, 0, reasonCount, null);
+            reasonCount = 0;
+        }
+
+        @Override
+        public void hit(int keyword, int start, int end) {
+            if (hitCount == hitKeyword.length) {
+                int capacity = hitCount * 2;
+                hitKeyword = Arrays.copyOf(hitKeyword, capacity);
+                hitStart = Arrays.copyOf(hitStart, capacity);
+                hitEnd = Arrays.copyOf(hitEnd, capacity);
+            }
+            hitKeyword[hitCount] = keyword;
+            hitStart[hitCount] = start;
+            hitEnd[hitCount] = end;
+            hitCount++;
+        }
+
+        /**
+         * Groups the hits by stage, keeping their order within each.
+         */
+        void sortHits(Stage[] stages) {
+            if (hitCount == 0) {
+                return;
+            }
+            if (sortKeyword.length < hitCount) {
+                sortKeyword = new int[hitKeyword.length];
+                sortStart = new int[hitKeyword.length];
+                sortEnd = new int[hitKeyword.length];
+            }
+            int position = 0;
+            for (int s = 0; s < stages.length; s++) {
+                firstHit[s] = position;
+                int first = stages[s].firstKeyword;
+                int last = first + stages[s].keywordCount;
+                for (int i = 0; i < hitCount; i++) {
+                    if (hitKeyword[i] >= first && hitKeyword[i] < last) {
+                        sortKeyword[position] = hitKeyword[i] - first;
+                        sortStart[position] = hitStart[i];
+                        sortEnd[position] = hitEnd[i];
+                        position++;
+                    }
+                }
+            }
+            firstHit[stages.length] = position;
+            int[] swap = hitKeyword;
+            hitKeyword = sortKeyword;
+            sortKeyword = swap;
+            swap = hitStart;
+            hitStart = sortStart;
+            sortStart = swap;
+            swap = hitEnd;
+            hitEnd = sortEnd;
+            sortEnd = swap;
+        }
+
+        /**
+         * Returns the number of hits on the current stage's keywords.
+         */
+        int hits() {
+            return firstHit[stage + 1] - firstHit[stage];
+        }
+
+        /**
+         * Returns which of the current stage's keywords hit i is, in the
+         * order the stage listed them.
+         */
+        int hitKeyword(int i) {
+            return hitKeyword[firstHit[stage] + i];
+        }
+
+        int hitStart(int i) {
+            return hitStart[firstHit[stage] + i];
+        }
+
+        int hitEnd(int i) {
+            return hitEnd[firstHit[stage] + i];
+        }
+
+        /**
+         * Overwrites text[start..end) with the given byte, keeping the
+         * original text first.
+         */
+        void mask(int start, int end, byte with) {
+            keepOriginal();
+            Arrays.fill(text, start, end, with);
+        }
+
+        private void keepOriginal() {
+            if (original == null) {
+                original = Arrays.copyOfRange(text, offset, offset + length);
+            }
+        }
+
+        /**
+         * Notes why a filter took notice of the message.  The reason
+         * should be a constant, since the same ones come up again and
+         * again.
+         */
+        void flag(String reason) {
+            for (int i = 0; i < reasonCount; i++) {
+                if (reasons[i].equals(reason)) {
+                    return;
+                }
+            }
+            if (reasonCount == reasons.length) {
+                reasons = Arrays.copyOf(reasons, reasonCount * 2);
+            }
+            reasons[reasonCount++] = reason;
+        }
+
+        boolean flagged() {
+            return reasonCount > 0;
+        }
+
+        Snapshot snapshot() {
+            return new Snapshot(this);
+        }
+    }
+
+    /**
+     * A copy of a message for an AsyncStage.
+     */
+    static final class Snapshot {
+        final long time = System.currentTimeMillis();
+        final String from;
+
+        /**
+         * Screen names and rooms it was addressed to, or null for
+         * everybody.
+         */
+        final List<String> recipients;
+
+        /**
+         * The text as it was delivered, and as the sender wrote it,
+         * which is the same unless a filter changed it.
+         */
+        final String text;
+        final String original;
+
+        final List<String> reasons;
+        final boolean delivered;
+
+        Snapshot(Message message) {
+            from = message.from.name();
+            recipients = message.recipients == null ? null
+                    : Collections.unmodifiableList(new ArrayList<String>(message.recipients));
+            text = new String(message.text, message.offset, message.length, StandardCharsets.UTF_8);
+            original = message.original == null ? text : new String(message.original, StandardCharsets.UTF_8);
+            reasons = Collections.unmodifiableList(
+                    Arrays.asList(Arrays.copyOf(message.reasons, message.reasonCount)));
+            delivered = message.delivered;
+        }
+    }
+}
@@ -0,0 +1,538 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decides where a message from a client goes and delivers it.
+ *
+ * In the text protocol a line of the form "alice>>hello" is a private
+ * message for alice, and "alice,bob>>hello" is the same private message
+ * for both alice and bob.  A recipient starting with '#' is a room, so
+ * "#dev>>hello" goes to everybody in the dev room, as "#dev alice:
+ * hello".  Any other line is broadcast to everyone.  Lines starting
+ * with '/' are commands: "/join room", "/leave room" and "/search
+ * words", which looks through the MessageLog.  In the binary protocol
+ * the same cases arrive as DIRECT, TEXT, JOIN, LEAVE and SEARCH
+ * frames, and the message text is copied straight from the frame into
+ * the outgoing MESSAGE without ever being decoded.
+ *
+ * Every recipient is resolved with a single registry lookup, so a
+ * private message costs the same however many users are online, and a
+ * room message only touches the room's members.  Any
+ * recipient that is not online is reported back to the sender with an
+ * ERROR frame.
+ *
+ * Every message is counted in the Metrics, and for a sample of them the
+ * number of recipients and the time taken to queue it for all of them
+ * are recorded as well.
+ *
+ * Every message that is delivered is also appended to the MessageLog,
+ * if there is one, under the conversations it belongs to.
+ *
+ * Files sent in the binary protocol go to the AttachmentStore, and once
+ * one has arrived it is announced to its recipients as an ordinary
+ * message from the sender.
+ *
+ * In a Cluster every message is also passed to the other nodes that
+ * need it, already built, and the deliver methods below hand it to the
+ * clients of this node when it arrives at the other end.  A recipient
+ * is only reported as not online if no node has it.
+ *
+ * A private message for a user who is not online anywhere, but has
+ * signed in here before, is kept in this node's Mailbox, if there is
+ * one, and the whole of the user's mail is sent as one frame when they
+ * next sign in here.  The mailbox files are read and written on the
+ * mailbox's own thread, never on the routing thread.
+ *
+ * Chat messages from clients go through the MessagePipeline, if there
+ * is one, once their recipients are known and before anything is built
+ * from their text, so that its filters may change or stop them.
+ * Commands do not, and nor do messages from other nodes, which went
+ * through the pipeline of the node they were sent to.
+ *
+ * Because the recipient list is split on commas and ends at the first
+ * ">>", screen names may not contain ',' or '>'.  Names may not start
+ * with '/' either, since such lines are commands, nor with '#', which
+ * marks a room, and are at most MAX_NAME_LENGTH characters, like room
+ * names, so that they always fit in a Cluster message; see isValidName.
+ */
+public class MessageRouter {
+
+    /**
+     * Separates the recipient list from the message.
+     */
+    static final String DIRECT_MARKER = ">>";
+
+    static final char RECIPIENT_SEPARATOR = ',';
+
+    static final int MAX_NAME_LENGTH = Rooms.MAX_NAME_LENGTH;
+
+    /**
+     * Lines starting with this are commands to the server rather than
+     * names or messages.
+     */
+    static final char COMMAND_PREFIX = '/';
+
+    private final SessionRegistry sessions;
+
+    private final Rooms rooms;
+
+    /**
+     * Where delivered messages are recorded, or null to record nothing.
+     */
+    private final MessageLog log;
+
+    /**
+     * Where uploaded files are kept, or null if attachments are turned
+     * off.
+     */
+    private volatile AttachmentStore attachments;
+
+    /**
+     * Where private messages for offline users are kept, or null to
+     * report such users as not online.
+     */
+    private volatile Mailbox mailbox;
+
+    /**
+     * The stages every chat message goes through, or null for none.
+     */
+    private volatile MessagePipeline pipeline;
+
+    public MessageRouter(SessionRegistry sessions, MessageLog log) {
+        this.sessions = sessions;
+        this.rooms = sessions.rooms();
+        this.log = log;
+    }
+
+    /**
+     * Accepts uploads into the given store and serves downloads from it.
+     */
+    void setAttachments(AttachmentStore attachments) {
+        this.attachments = attachments;
+    }
+
+    /**
+     * Keeps private messages for offline users in the given mailbox.
+     */
+    void setMailbox(Mailbox mailbox) {
+        this.mailbox = mailbox;
+    }
+
+    /**
+     * Runs every chat message through the given pipeline.
+     */
+    void setPipeline(MessagePipeline pipeline) {
+        this.pipeline = pipeline;
+        Metrics.watch(pipeline);
+    }
+
+    /**
+     * Returns true if a screen name can be addressed by the private
+     * message syntax and cannot be mistaken for a command.
+     */
+    public static boolean isValidName(String name) {
+        return !name.isEmpty() && name.length() <= MAX_NAME_LENGTH && name.charAt(0) != COMMAND_PREFIX
+                && name.charAt(0) != Rooms.PREFIX && name.indexOf(RECIPIENT_SEPARATOR) < 0 && name.indexOf('>') < 0;
+    }
+
+    /**
+     * Delivers one text line received from a registered session.
+     */
+    public void route(Session from, String input) {
+        Metrics.messagesReceived.increment();
+        if (!input.isEmpty() && input.charAt(0) == COMMAND_PREFIX) {
+            command(from, input);
+            return;
+        }
+        int marker = input.indexOf(DIRECT_MARKER);
+        if (marker < 0) {
+            byte[] text = input.getBytes(StandardCharsets.UTF_8);
+            if (admitted(from, null, text, 0, text.length)) {
+                broadcast(from, text, 0, text.length);
+            }
+            return;
+        }
+
+        List<String> recipients = new ArrayList<String>();
+        int start = 0;
+        while (start <= marker) {
+            int end = input.indexOf(RECIPIENT_SEPARATOR, start);
+            if (end < 0 || end > marker) {
+                end = marker;
+            }
+            String recipient = input.substring(start, end).trim();
+            if (!recipient.isEmpty()) {
+                recipients.add(recipient);
+            }
+            start = end + 1;
+        }
+        byte[] text = input.substring(marker + DIRECT_MARKER.length()).getBytes(StandardCharsets.UTF_8);
+        if (admitted(from, recipients, text, 0, text.length)) {
+            deliver(from, recipients, text, 0, text.length);
+        }
+    }
+
+    /**
+     * Delivers one binary frame received from a registered session.
+     */
+    public void route(Session from, InboundFrame frame) throws IOException {
+        Metrics.messagesReceived.increment();
+        switch (frame.type()) {
+        case TEXT:
+            if (admitted(from, null, frame.buffer, frame.offset, frame.length)) {
+                broadcast(from, frame.buffer, frame.offset, frame.length);
+            }
+            break;
+        case DIRECT:
+            int textOffset = frame.directTextOffset();
+            List<String> recipients = frame.recipients();
+            if (admitted(from, recipients, frame.buffer, textOffset, frame.end() - textOffset)) {
+                deliver(from, recipients, frame.buffer, textOffset, frame.end() - textOffset);
+            }
+            break;
+        case ACK:
+            if (frame.length != 8) {
+                throw new IOException("Bad ACK frame");
+            }
+            from.acknowledge(BinaryFrames.readLong(frame.buffer, frame.offset));
+            break;
+        case JOIN:
+            join(from, frame.payloadString());
+            break;
+        case LEAVE:
+            leave(from, frame.payloadString());
+            break;
+        case SEARCH:
+            search(from, frame.payloadString());
+            break;
+        case UPLOAD:
+        case UPLOADDATA:
+        case DOWNLOAD:
+            attachment(from, frame);
+            break;
+        default:
+            from.send(Frame.of(FrameType.ERROR, "Unexpected " + frame.type() + " frame"));
+        }
+    }
+
+    /**
+     * Runs a chat message through the pipeline, if there is one, and
+     * returns whether it is to be delivered.  The pipeline may have
+     * changed text[offset..offset + length) in place.
+     */
+    private boolean admitted(Session from, List<String> recipients, byte[] text, int offset, int length) {
+        MessagePipeline stages = pipeline;
+        return stages == null || stages.process(from, recipients, text, offset, length);
+    }
+
+    /**
+     * Hands an attachment frame to the store.  A finished upload is
+     * announced, from the store's thread, as a message from the sender
+     * to the recipients it named.  A bad frame or a file that cannot be
+     * written costs the upload but not the connection.
+     */
+    private void attachment(Session from, InboundFrame frame) {
+        AttachmentStore store = attachments;
+        if (store == null) {
+            if (frame.type() != FrameType.UPLOADDATA) {
+                from.send(Frame.of(FrameType.ERROR, "Attachments are turned off"));
+            }
+            return;
+        }
+        try {
+            switch (frame.type()) {
+            case UPLOAD:
+                store.begin(from, frame);
+                break;
+            case UPLOADDATA:
+                store.write(from, frame, announcement -> route(from, announcement));
+                break;
+            default:
+                store.download(from, frame);
+            }
+        } catch (IOException e) {
+            store.abandon(from);
+            System.out.println("Attachment from or to " + from.name() + " failed: " + e);
+            from.send(Frame.of(FrameType.ERROR, "Attachment failed: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Carries out a text protocol command.
+     */
+    private void command(Session from, String input) {
+        int space = input.indexOf(' ');
+        String command = space < 0 ? input : input.substring(0, space);
+        String argument = space < 0 ? "" : input.substring(space + 1).trim();
+        if (command.equals("/join")) {
+            join(from, argument);
+        } else if (command.equals("/leave")) {
+            leave(from, argument);
+        } else if (command.equals("/search")) {
+            search(from, argument);
+        } else {
+            from.send(Frame.of(FrameType.ERROR, "Unknown command " + command));
+        }
+    }
+
+    private void join(Session from, String room) {
+        if (!Rooms.isValidName(room)) {
+            from.send(Frame.of(FrameType.ERROR, "Bad room name " + room));
+            return;
+        }
+        if (rooms.join(from, room)) {
+            from.send(Frame.of(FrameType.ROOMJOINED, room));
+            if (log != null) {
+                log.replay(from, roomKey(room));
+            }
+        }
+    }
+
+    private void search(Session from, String query) {
+        if (log == null) {
+            from.send(Frame.of(FrameType.ERROR, "There is no message log to search"));
+            return;
+        }
+        log.search(from, query);
+    }
+
+    private void leave(Session from, String room) {
+        if (rooms.leave(from, room)) {
+            from.send(Frame.of(FrameType.ROOMLEFT, room));
+        } else {
+            from.send(Frame.of(FrameType.ERROR, "You are not in " + Rooms.PREFIX + room));
+        }
+    }
+
+    /**
+     * Builds the MESSAGE payload "label name: text", with the label only
+     * for room messages, by copying the sender's prefix and the text
+     * bytes, text[offset..offset + length).
+     */
+    private static byte[] message(byte[] label, Session from, byte[] text, int offset, int length) {
+        byte[] prefix = from.messagePrefix();
+        int labelLength = label == null ? 0 : label.length;
+        byte[] payload = new byte[labelLength + prefix.length + length];
+        if (label != null) {
+            System.arraycopy(label, 0, payload, 0, labelLength);
+        }
+        System.arraycopy(prefix, 0, payload, labelLength, prefix.length);
+        System.arraycopy(text, offset, payload, labelLength + prefix.length, length);
+        return payload;
+    }
+
+    private static String roomKey(String room) {
+        return Rooms.PREFIX + room;
+    }
+
+    private void broadcast(Session from, byte[] text, int offset, int length) {
+        long start = Metrics.sampleStart();
+        byte[] payload = message(null, from, text, offset, length);
+        Cluster cluster = sessions.cluster();
+        if (cluster != null) {
+            cluster.broadcast(payload);
+        }
+        Metrics.delivered(start, deliverBroadcast(payload));
+    }
+
+    /**
+     * Delivers a broadcast to every client on this node, and returns how
+     * many there were.
+     */
+    public int deliverBroadcast(byte[] payload) {
+        int recipients = sessions.broadcast(Frame.sequenced(FrameType.MESSAGE, payload));
+        if (log != null) {
+            log.append(Collections.singletonList(MessageLog.PUBLIC), payload);
+        }
+        return recipients;
+    }
+
+    /**
+     * Delivers a private message from another node to its recipient on
+     * this node.
+     */
+    public void deliverDirect(String sender, String recipient, byte[] payload) {
+        Session target = sessions.lookup(recipient);
+        if (target != null) {
+            target.send(Frame.sequenced(FrameType.MESSAGE, payload));
+        } else {
+            // gone since the other node looked, so it waits in the mailbox
+            mail(null, recipient, payload);
+        }
+        if (log != null) {
+            log.append(target == null ? Collections.singletonList(MessageLog.userKey(sender))
+                    : Arrays.asList(MessageLog.userKey(sender), MessageLog.userKey(recipient)), payload);
+        }
+    }
+
+    /**
+     * Delivers a room message from another node to the room's members on
+     * this node.
+     */
+    public void deliverRoom(String name, byte[] payload) {
+        Rooms.Room room = rooms.lookup(name);
+        if (room != null) {
+            room.broadcast(Frame.sequenced(FrameType.MESSAGE, payload));
+        }
+        if (log != null) {
+            log.append(Collections.singletonList(roomKey(name)), payload);
+        }
+    }
+
+    private void deliver(Session from, List<String> recipients, byte[] text, int offset, int length) {
+        long start = Metrics.sampleStart();
+        byte[] payload = null;
+        Frame message = null;
+        List<String> conversations = new ArrayList<String>(recipients.size() + 1);
+        conversations.add(MessageLog.userKey(from.name()));
+        boolean mailed = false;
+        for (String recipient : recipients) {
+            if (recipient.charAt(0) == Rooms.PREFIX) {
+                toRoom(from, recipient.substring(1), text, offset, length);
+                continue;
+            }
+            Session target = sessions.lookup(recipient);
+            Integer node = target == null ? sessions.remoteNode(recipient) : null;
+            if (payload == null) {
+                payload = message(null, from, text, offset, length);
+            }
+            if (target == null && node == null) {
+                mailed |= mail(from, recipient, payload);
+                continue;
+            }
+            if (target != null) {
+                if (message == null) {
+                    message = Frame.sequenced(FrameType.MESSAGE, payload);
+                }
+                target.send(message);
+            } else {
+                sessions.cluster().direct(node, from.name(), recipient, payload);
+            }
+            String conversation = MessageLog.userKey(recipient);
+            if (!conversations.contains(conversation)) {
+                conversations.add(conversation);
+            }
+        }
+        if (log != null && (conversations.size() > 1 || mailed)) {
+            // kept mail is logged for the recipient when it is delivered
+            log.append(conversations, payload);
+        }
+        if (conversations.size() > 1) {
+            Metrics.delivered(start, conversations.size() - 1);
+        }
+    }
+
+    /**
+     * Keeps a private message for a recipient who is not online, if there
+     * is a mailbox and they have signed in here before, and returns
+     * whether it is to be kept.  The message is stored on the mailbox
+     * thread, and the sender, if it is on this node, is told from there
+     * whether it was.  A message from another node was sent to a user
+     * who was online there, so it is kept whether or not they are known
+     * here.
+     */
+    private boolean mail(Session from, String recipient, byte[] payload) {
+        Mailbox box = mailbox;
+        if (box == null || (from != null && !box.knows(recipient))
+                || !box.submit(() -> store(box, from, recipient, payload))) {
+            if (from != null) {
+                from.send(Frame.of(FrameType.ERROR, recipient + " is not online"));
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stores a private message in the mailbox.  Runs on the mailbox
+     * thread.
+     */
+    private void store(Mailbox box, Session from, String recipient, byte[] payload) {
+        String refusal = recipient + " is not online";
+        try {
+            if (box.store(recipient, payload)) {
+                refusal = null;
+            } else {
+                refusal = recipient + " is not online and their mailbox is full";
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot keep mail for " + recipient + ": " + e);
+        }
+        if (from != null) {
+            from.send(Frame.of(FrameType.ERROR, refusal != null ? refusal
+                    : recipient + " is not online, and will get the message when they sign in"));
+        }
+        if (refusal != null) {
+            return;
+        }
+        // they may have signed in while the message was waiting
+        Session target = sessions.lookup(recipient);
+        if (target != null) {
+            deliverMail(target);
+        }
+    }
+
+    /**
+     * Sends a client that has just signed in the private messages kept
+     * for it while it was offline, all of them as one frame, once the
+     * mailbox thread has read them.
+     */
+    public void deliverMail(Session to) {
+        Mailbox box = mailbox;
+        if (box != null && !box.submit(() -> takeMail(box, to))) {
+            System.out.println("Mail for " + to.name() + " is left until they next sign in");
+        }
+    }
+
+    /**
+     * Reads a client's mail and sends it.  Runs on the mailbox thread.
+     */
+    private void takeMail(Mailbox box, Session to) {
+        List<byte[]> mail;
+        try {
+            box.signedIn(to.name());
+            mail = box.take(to.name());
+        } catch (IOException e) {
+            System.out.println("Cannot read mail for " + to.name() + ": " + e);
+            return;
+        }
+        if (mail.isEmpty()) {
+            return;
+        }
+        Frame.Builder batch = new Frame.Builder();
+        for (byte[] payload : mail) {
+            batch.add(FrameType.MESSAGE, payload);
+            if (log != null) {
+                log.append(Collections.singletonList(MessageLog.userKey(to.name())), payload);
+            }
+        }
+        to.send(batch.build(null));
+    }
+
+    /**
+     * Sends a message to everybody in a room the sender is in.
+     */
+    private void toRoom(Session from, String name, byte[] text, int offset, int length) {
+        Rooms.Room room = rooms.lookup(name);
+        if (room == null || !room.members.contains(from)) {
+            from.send(Frame.of(FrameType.ERROR, "You are not in " + Rooms.PREFIX + name));
+            return;
+        }
+        byte[] label = (Rooms.PREFIX + name + " ").getBytes(StandardCharsets.UTF_8);
+        long start = Metrics.sampleStart();
+        byte[] payload = message(label, from, text, offset, length);
+        int recipients = room.broadcast(Frame.sequenced(FrameType.MESSAGE, payload));
+        Cluster cluster = sessions.cluster();
+        if (cluster != null) {
+            cluster.room(name, payload);
+        }
+        if (log != null) {
+            log.append(Collections.singletonList(roomKey(name)), payload);
+        }
+        Metrics.delivered(start, recipients);
+    }
+}
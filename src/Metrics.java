@@ -0,0 +1,624 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters and histograms of what the server is doing, for a monitoring
+ * system to scrape while it runs.  Everything is exposed in the
+ * Prometheus text format on http://localhost:<metrics-port>/metrics, and
+ * the main figures as the ChatServer:type=Metrics MBean for jconsole
+ * and other JMX clients.
+ *
+ * The hot paths only ever increment a LongAdder or one slot of a
+ * histogram's array: nothing is allocated, nothing is locked, and
+ * threads on different cores mostly touch different cells.  Reading
+ * the clock twice would cost more than routing a private message
+ * itself does, so the histograms of chat messages only record one
+ * message in SAMPLE_EVERY, picked at random.  Gauges
+ * such as the number of sessions or backlogged clients are not kept
+ * at all but worked out from the registry when somebody asks, so they
+ * cost nothing between scrapes.
+ *
+ * Histograms have one bucket per power of two, which is coarse but
+ * makes recording a single array increment; the percentiles shown over
+ * JMX are the upper bounds of their buckets.
+ */
+public class Metrics {
+
+    /**
+     * Messages and commands received from clients.
+     */
+    static final LongAdder messagesReceived = new LongAdder();
+
+    /**
+     * Frames queued for clients, one for every recipient of a message.
+     */
+    static final LongAdder messagesSent = new LongAdder();
+
+    /**
+     * Bytes written to client sockets.
+     */
+    static final LongAdder bytesWritten = new LongAdder();
+
+    /**
+     * Messages that were over a rate limit, and connections refused for
+     * coming too fast from one address; see RateLimiter.
+     */
+    static final LongAdder rateLimited = new LongAdder();
+    static final LongAdder connectionsRefused = new LongAdder();
+
+    /**
+     * Clients disconnected for not answering PING; see IdleTracker.
+     */
+    static final LongAdder idleReaped = new LongAdder();
+
+    /**
+     * Private messages kept for users who were offline, and kept messages
+     * handed over when they signed in; see Mailbox.
+     */
+    static final LongAdder mailStored = new LongAdder();
+    static final LongAdder mailDelivered = new LongAdder();
+
+    /**
+     * TLS handshakes completed, how many of them resumed an earlier
+     * session, and how many failed; see TlsChannel.
+     */
+    static final LongAdder tlsHandshakes = new LongAdder();
+    static final LongAdder tlsResumed = new LongAdder();
+    static final LongAdder tlsFailures = new LongAdder();
+
+    /**
+     * Recipients of each sampled chat message, on this node.
+     */
+    static final Histogram fanout = new Histogram();
+
+    /**
+     * Nanoseconds taken to route one sampled message and queue it for all
+     * of its recipients.
+     */
+    static final Histogram deliveryNanos = new Histogram();
+
+    /**
+     * One chat message in this many is sampled for fanout and
+     * deliveryNanos.
+     */
+    static final int SAMPLE_EVERY = 32;
+
+    /**
+     * Nanoseconds taken to claim and register a screen name, which is
+     * what used to be spent holding the lock on the set of names.
+     */
+    static final Histogram registrationNanos = new Histogram();
+
+    /**
+     * Nanoseconds from the start of a TLS handshake to its end, round
+     * trips included.
+     */
+    static final Histogram tlsHandshakeNanos = new Histogram();
+
+    /**
+     * Nanoseconds one TLS connection spent in its SSLEngine, handshake
+     * and encryption both, recorded when it closes.  Only the NIO server
+     * drives the SSLEngine itself and can measure this.
+     */
+    static final Histogram tlsCryptoNanos = new Histogram();
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /**
+     * Time histograms are written from about a microsecond to about
+     * half a minute.
+     */
+    private static final int FIRST_TIME_BUCKET = 10;
+    private static final int LAST_TIME_BUCKET = 35;
+
+    private static volatile SessionRegistry sessions;
+
+    /**
+     * The message pipeline whose stages are shown, or null for none.
+     */
+    private static volatile MessagePipeline pipeline;
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the current nanoTime for a message that is to be sampled,
+     * or 0 for one that is not.
+     */
+    static long sampleStart() {
+        return ThreadLocalRandom.current().nextInt(SAMPLE_EVERY) == 0 ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a message that has been queued for its recipients, if it
+     * was sampled.
+     */
+    static void delivered(long start, int recipients) {
+        if (start != 0) {
+            fanout.record(recipients);
+            deliveryNanos.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Registers the MBean and, if port is positive, starts the HTTP
+     * endpoint on the loopback interface.
+     */
+    static void start(int port, SessionRegistry registry) throws IOException {
+        sessions = registry;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new View(),
+                    new ObjectName("ChatServer:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Metrics MBean not registered: " + e);
+        }
+        if (port <= 0) {
+            return;
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", Metrics::serve);
+        server.start();
+        System.out.println("Metrics on http://localhost:" + port + "/metrics");
+    }
+
+    /**
+     * Shows the time taken and the messages stopped by each stage of
+     * the given pipeline.
+     */
+    static void watch(MessagePipeline stages) {
+        pipeline = stages;
+    }
+
+    private static void serve(HttpExchange exchange) throws IOException {
+        byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format.
+     */
+    static String prometheus() {
+        Backlog backlog = backlog();
+        StringBuilder text = new StringBuilder(4096);
+        gauge(text, "chat_connections", "Open client connections.", HandlerStats.connections.get());
+        gauge(text, "chat_sessions", "Clients with a screen name on this node.", registrySize());
+        gauge(text, "chat_rooms", "Rooms with members on this node.", roomCount());
+        counter(text, "chat_messages_received_total", "Messages and commands received from clients.",
+                messagesReceived.sum());
+        counter(text, "chat_messages_sent_total", "Frames queued for clients, one for every recipient.",
+                messagesSent.sum());
+        counter(text, "chat_bytes_written_total", "Bytes written to client sockets.", bytesWritten.sum());
+        counter(text, "chat_rate_limited_total", "Messages that were over a rate limit.", rateLimited.sum());
+        counter(text, "chat_connections_refused_total", "Connections refused for coming too fast from one address.",
+                connectionsRefused.sum());
+        counter(text, "chat_idle_reaped_total", "Clients disconnected for not answering PING.", idleReaped.sum());
+        counter(text, "chat_mail_stored_total", "Private messages kept for offline users.", mailStored.sum());
+        counter(text, "chat_mail_delivered_total", "Kept private messages delivered at sign in.",
+                mailDelivered.sum());
+        counter(text, "chat_tls_handshakes_total", "TLS handshakes completed.", tlsHandshakes.sum());
+        counter(text, "chat_tls_resumed_total", "TLS handshakes that resumed an earlier session.",
+                tlsResumed.sum());
+        counter(text, "chat_tls_failures_total", "TLS handshakes that failed.", tlsFailures.sum());
+        gauge(text, "chat_outbound_queued_frames", "Frames waiting in outbound queues.", backlog.frames);
+        gauge(text, "chat_backlogged_clients", "Clients with frames waiting to be written.", backlog.clients);
+        gauge(text, "chat_outbound_dropped", "Frames dropped from the outbound queues of connected clients.",
+                backlog.dropped);
+        counter(text, "chat_evictions_total", "Clients disconnected for falling too far behind.",
+                HandlerStats.evictions.get());
+        fanout.write(text, "chat_fanout_recipients", "Recipients of sampled chat messages.", 1, 0, 20);
+        deliveryNanos.write(text, "chat_delivery_seconds",
+                "Time to route a sampled message and queue it for every recipient.", NANOS_PER_SECOND,
+                FIRST_TIME_BUCKET, LAST_TIME_BUCKET);
+        registrationNanos.write(text, "chat_registration_seconds", "Time to claim and register a screen name.",
+                NANOS_PER_SECOND, FIRST_TIME_BUCKET, LAST_TIME_BUCKET);
+        tlsHandshakeNanos.write(text, "chat_tls_handshake_seconds",
+                "Time from the start of a TLS handshake to its end.", NANOS_PER_SECOND, FIRST_TIME_BUCKET,
+                LAST_TIME_BUCKET);
+        tlsCryptoNanos.write(text, "chat_tls_connection_crypto_seconds",
+                "Time spent on TLS handshake and encryption by each closed connection.", NANOS_PER_SECOND,
+                FIRST_TIME_BUCKET, LAST_TIME_BUCKET);
+        writePipeline(text);
+        return text.toString();
+    }
+
+    /**
+     * Writes the keyword scan and each stage of the pipeline, with the
+     * stage's name as a label.
+     */
+    private static void writePipeline(StringBuilder text) {
+        MessagePipeline watched = pipeline;
+        if (watched == null) {
+            return;
+        }
+        MessagePipeline.Stage[] stages = watched.stages();
+        watched.matchNanos.write(text, "chat_pipeline_match_seconds",
+                "Time to scan a sampled message for the keywords of every pipeline stage.", NANOS_PER_SECOND,
+                FIRST_TIME_BUCKET, LAST_TIME_BUCKET);
+        String name = "chat_pipeline_stage_seconds";
+        header(text, name, "Time a pipeline stage took on the routing thread for a sampled message.",
+                "histogram");
+        for (MessagePipeline.Stage stage : stages) {
+            stage.nanos.writeSeries(text, name, "stage=\"" + stage.name + "\"", NANOS_PER_SECOND,
+                    FIRST_TIME_BUCKET, LAST_TIME_BUCKET);
+        }
+        name = "chat_pipeline_async_seconds";
+        header(text, name, "Time an asynchronous pipeline stage took on its own thread for a message.",
+                "histogram");
+        for (MessagePipeline.Stage stage : stages) {
+            if (stage.async != null) {
+                stage.asyncNanos.writeSeries(text, name, "stage=\"" + stage.name + "\"", NANOS_PER_SECOND,
+                        FIRST_TIME_BUCKET, LAST_TIME_BUCKET);
+            }
+        }
+        name = "chat_pipeline_stopped_total";
+        header(text, name, "Messages a pipeline filter stopped, or an asynchronous stage was too far behind for.",
+                "counter");
+        for (MessagePipeline.Stage stage : stages) {
+            text.append(name).append("{stage=\"").append(stage.name).append("\"} ").append(stage.stopped.sum())
+                    .append('\n');
+        }
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static int registrySize() {
+        SessionRegistry registry = sessions;
+        return registry == null ? 0 : registry.size();
+    }
+
+    private static int roomCount() {
+        SessionRegistry registry = sessions;
+        return registry == null ? 0 : registry.rooms().size();
+    }
+
+    /**
+     * Sums up the outbound queues of every session.
+     */
+    private static Backlog backlog() {
+        Backlog backlog = new Backlog();
+        SessionRegistry registry = sessions;
+        if (registry != null) {
+            for (Session session : registry.sessions()) {
+                OutboundQueue queue = session.outbound();
+                int depth = queue.depth();
+                backlog.frames += depth;
+                if (depth > 0) {
+                    backlog.clients++;
+                }
+                backlog.dropped += queue.dropped();
+            }
+        }
+        return backlog;
+    }
+
+    private static final class Backlog {
+        long frames;
+        long clients;
+        long dropped;
+    }
+
+    /**
+     * Counts of values by power of two: bucket i holds the values that
+     * need i bits, so 0 is in bucket 0, 1 in bucket 1, 2 and 3 in bucket
+     * 2, and so on.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+            sum.add(value);
+        }
+
+        /**
+         * Returns the upper bound of the bucket that holds the given
+         * percentile, or 0 if nothing has been recorded.
+         */
+        long percentile(double percentile) {
+            long[] snapshot = snapshot();
+            long count = 0;
+            for (long bucket : snapshot) {
+                count += bucket;
+            }
+            long target = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= target && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private long[] snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            return snapshot;
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+
+        /**
+         * Writes the histogram with one cumulative bucket per power of
+         * two from bucket first to bucket last, dividing every value by
+         * scale.  The same buckets are written every time, as Prometheus
+         * expects, even when they are empty.
+         */
+        void write(StringBuilder text, String name, String help, double scale, int first, int last) {
+            header(text, name, help, "histogram");
+            writeSeries(text, name, "", scale, first, last);
+        }
+
+        /**
+         * Writes the histogram without its header, as one of several
+         * told apart by the given labels, such as stage="audit".
+         */
+        void writeSeries(StringBuilder text, String name, String labels, double scale, int first, int last) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+            long[] snapshot = snapshot();
+            long cumulative = 0;
+            for (int i = 0; i <= last; i++) {
+                cumulative += snapshot[i];
+                if (i >= first) {
+                    text.append(name).append("_bucket{").append(prefix).append("le=\"").append(upperBound(i) / scale)
+                            .append("\"} ").append(cumulative).append('\n');
+                }
+            }
+            long count = 0;
+            for (long bucket : snapshot) {
+                count += bucket;
+            }
+            text.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(count).append('\n');
+            text.append(name).append("_sum").append(suffix).append(sum.sum() / scale).append('\n');
+            text.append(name).append("_count").append(suffix).append(count).append('\n');
+        }
+    }
+
+    /**
+     * The attributes of the MBean.
+     */
+    public interface MetricsMXBean {
+        int getConnections();
+
+        int getSessions();
+
+        int getRooms();
+
+        long getMessagesReceived();
+
+        long getMessagesSent();
+
+        long getBytesWritten();
+
+        long getRateLimited();
+
+        long getConnectionsRefused();
+
+        long getIdleReaped();
+
+        long getMailStored();
+
+        long getMailDelivered();
+
+        long getTlsHandshakes();
+
+        long getTlsResumed();
+
+        long getTlsFailures();
+
+        long getTlsHandshakeP99Micros();
+
+        long getTlsConnectionCryptoP99Micros();
+
+        long getEvictions();
+
+        long getBackloggedClients();
+
+        long getDeliveryP50Micros();
+
+        long getDeliveryP99Micros();
+
+        long getDeliveryP999Micros();
+
+        long getFanoutP99();
+
+        long getRegistrationP99Micros();
+
+        long getPipelineMatchP99Micros();
+
+        Map<String, Long> getPipelineStageP99Micros();
+
+        Map<String, Long> getPipelineStopped();
+    }
+
+    private static final class View implements MetricsMXBean {
+        @Override
+        public int getConnections() {
+            return HandlerStats.connections.get();
+        }
+
+        @Override
+        public int getSessions() {
+            return registrySize();
+        }
+
+        @Override
+        public int getRooms() {
+            return roomCount();
+        }
+
+        @Override
+        public long getMessagesReceived() {
+            return messagesReceived.sum();
+        }
+
+        @Override
+        public long getMessagesSent() {
+            return messagesSent.sum();
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return bytesWritten.sum();
+        }
+
+        @Override
+        public long getRateLimited() {
+            return rateLimited.sum();
+        }
+
+        @Override
+        public long getConnectionsRefused() {
+            return connectionsRefused.sum();
+        }
+
+        @Override
+        public long getIdleReaped() {
+            return idleReaped.sum();
+        }
+
+        @Override
+        public long getMailStored() {
+            return mailStored.sum();
+        }
+
+        @Override
+        public long getMailDelivered() {
+            return mailDelivered.sum();
+        }
+
+        @Override
+        public long getTlsHandshakes() {
+            return tlsHandshakes.sum();
+        }
+
+        @Override
+        public long getTlsResumed() {
+            return tlsResumed.sum();
+        }
+
+        @Override
+        public long getTlsFailures() {
+            return tlsFailures.sum();
+        }
+
+        @Override
+        public long getTlsHandshakeP99Micros() {
+            return tlsHandshakeNanos.percentile(99) / 1000;
+        }
+
+        @Override
+        public long getTlsConnectionCryptoP99Micros() {
+            return tlsCryptoNanos.percentile(99) / 1000;
+        }
+
+        @Override
+        public long getEvictions() {
+            return HandlerStats.evictions.get();
+        }
+
+        @Override
+        public long getBackloggedClients() {
+            return backlog().clients;
+        }
+
+        @Override
+        public long getDeliveryP50Micros() {
+            return deliveryNanos.percentile(50) / 1000;
+        }
+
+        @Override
+        public long getDeliveryP99Micros() {
+            return deliveryNanos.percentile(99) / 1000;
+        }
+
+        @Override
+        public long getDeliveryP999Micros() {
+            return deliveryNanos.percentile(99.9) / 1000;
+        }
+
+        @Override
+        public long getFanoutP99() {
+            return fanout.percentile(99);
+        }
+
+        @Override
+        public long getRegistrationP99Micros() {
+            return registrationNanos.percentile(99) / 1000;
+        }
+
+        @Override
+        public long getPipelineMatchP99Micros() {
+            MessagePipeline watched = pipeline;
+            return watched == null ? 0 : watched.matchNanos.percentile(99) / 1000;
+        }
+
+        @Override
+        public Map<String, Long> getPipelineStageP99Micros() {
+            Map<String, Long> micros = new LinkedHashMap<String, Long>();
+            MessagePipeline watched = pipeline;
+            if (watched != null) {
+                for (MessagePipeline.Stage stage : watched.stages()) {
+                    micros.put(stage.name, stage.nanos.percentile(99) / 1000);
+                }
+            }
+            return micros;
+        }
+
+        @Override
+        public Map<String, Long> getPipelineStopped() {
+            Map<String, Long> stopped = new LinkedHashMap<String, Long>();
+            MessagePipeline watched = pipeline;
+            if (watched != null) {
+                for (MessagePipeline.Stage stage : watched.stages()) {
+                    stopped.put(stage.name, stage.stopped.sum());
+                }
+            }
+            return stopped;
+        }
+    }
+}
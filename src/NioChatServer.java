@@ -0,0 +1,851 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * A non-blocking version of the chat server.  Instead of one thread per
+ * client, the accepted sockets are spread over a small number of event
+ * loops, each of which owns a Selector and services all of its clients
+ * from a single thread.  An idle client therefore costs a socket and a
+ * few small objects rather than a whole thread stack.
+ *
+ * The server speaks exactly the same protocol as the threaded server,
+ * so the client works against either one.
+ *
+ * Every client is only ever read and written by the event loop that it
+ * was registered with.  Other loops that want to send it something add
+ * the encoded bytes to its outbound queue and ask its loop to flush.
+ *
+ * A loop does not write to a client as soon as something is queued for
+ * it, but once it has finished with everything it has just read, so
+ * that all the frames a client is sent in one turn of the loop go out
+ * in one gathering write.  Busy clients may also be left to linger for
+ * a moment; see ServerConfig.writeLingerMicros.
+ *
+ * With a keystore configured every connection is TLS.  Each client's
+ * SSLEngine is driven by its own event loop like the rest of its I/O,
+ * so encryption adds CPU time but no threads; see TlsChannel.
+ */
+public class NioChatServer {
+
+    /**
+     * Size of the buffer each event loop reads into.  It is shared by
+     * every client of the loop, so it costs nothing per connection.
+     */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * A client with more than this many bytes of an unfinished line or
+     * frame is treated as misbehaving.
+     */
+    private static final int MAX_PENDING = BinaryFrames.HEADER_LENGTH + BinaryFrames.MAX_PAYLOAD_LENGTH;
+
+    /**
+     * Most frames handed to a single gathering write.
+     */
+    private static final int MAX_GATHER = 64;
+
+    private final ServerConfig config;
+
+    private final EventLoop[] loops;
+
+    /**
+     * All clients that have submitted a unique screen name, by name.
+     */
+    private final SessionRegistry sessions = new SessionRegistry();
+
+    /**
+     * Records every message so that new clients can be shown the latest
+     * ones, or null if the log is turned off.
+     */
+    private final MessageLog log;
+
+    private final MessageRouter router;
+
+    private final Presence presence;
+
+    private final SessionResumer resumer;
+
+    private final RateLimiter limiter;
+
+    private final IdleTracker idleTracker;
+
+    /**
+     * The server's TLS context, or null for plain TCP.
+     */
+    private final SSLContext tls;
+
+    NioChatServer(ServerConfig config) throws IOException {
+        this.config = config;
+        this.log = config.openMessageLog();
+        this.router = new MessageRouter(sessions, log);
+        this.router.setAttachments(config.openAttachmentStore());
+        Mailbox mailbox = config.openMailbox();
+        this.router.setMailbox(mailbox);
+        this.router.setPipeline(config.newMessagePipeline(sessions, mailbox));
+        this.presence = new Presence(sessions, config.presenceWindowMillis);
+        this.resumer = config.newSessionResumer(sessions, presence);
+        this.limiter = config.newRateLimiter();
+        this.idleTracker = config.newIdleTracker();
+        this.tls = config.newTlsContext();
+        this.loops = new EventLoop[Math.max(1, config.eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Starts the event loops and then accepts connections forever,
+     * handing each new socket to the next loop in turn.
+     */
+    void run() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        HandlerStats.startReporter(config.statsInterval, sessions);
+        config.startCluster(sessions, router, presence);
+        Metrics.start(config.metricsPort, sessions);
+
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        try {
+            listener.bind(new InetSocketAddress(config.port), config.backlog);
+            int next = 0;
+            while (true) {
+                SocketChannel channel = listener.accept();
+                if (!limiter.admitConnection(channel.socket().getInetAddress())) {
+                    closeQuietly(channel);
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } finally {
+            listener.close();
+        }
+    }
+
+
+    /**
+     * A single selector thread together with the queue of work that
+     * other threads have handed to it.
+     */
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final ByteBuffer readBuffer;
+
+        /**
+         * Scratch buffers for encryption, shared like the read buffer,
+         * or null without TLS.
+         */
+        private final TlsChannel.Buffers tlsBuffers;
+
+        /**
+         * Scratch array for gathering writes, shared by every client of
+         * the loop since only the loop thread writes.
+         */
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private final Thread thread;
+
+        /**
+         * Clients with frames queued in this turn of the loop, which are
+         * written at the end of it.
+         */
+        private final List<Connection> dirty = new ArrayList<Connection>();
+
+        /**
+         * Busy clients held back for up to the linger time, in the order
+         * they are due.
+         */
+        private final ArrayDeque<Connection> lingering = new ArrayDeque<Connection>();
+        private final long lingerNanos = TimeUnit.MICROSECONDS.toNanos(config.writeLingerMicros);
+
+        /**
+         * Clients that are over their rate limit and not being read from
+         * until their resumeAt.
+         */
+        private final List<Connection> throttled = new ArrayList<Connection>();
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            tlsBuffers = tls == null ? null : new TlsChannel.Buffers(tls);
+            readBuffer = ByteBuffer.allocate(tlsBuffers == null ? READ_BUFFER_SIZE
+                    : Math.max(READ_BUFFER_SIZE, tlsBuffers.readBufferSize()));
+            thread = new Thread(this, "chat-event-loop-" + index);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Queues a task to run on this loop's thread and wakes the
+         * selector up so that it is picked up promptly.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (!inLoop()) {
+                selector.wakeup();
+            }
+        }
+
+        void register(final SocketChannel channel) {
+            execute(() -> {
+                try {
+                    TlsChannel secure = tls == null ? null : new TlsChannel(channel, tls.createSSLEngine(), tlsBuffers);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    Connection connection = new Connection(this, channel, secure, key, config.newOutboundQueue());
+                    key.attach(connection);
+                    HandlerStats.connected();
+                    connection.send(Frame.of(FrameType.SUBMITNAME));
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        /**
+         * Marks a client to be written at the end of this turn.
+         */
+        void markDirty(Connection connection) {
+            if (!connection.dirty) {
+                connection.dirty = true;
+                dirty.add(connection);
+            }
+        }
+
+        /**
+         * Writes the clients marked in this turn, apart from busy ones
+         * with less than a batch queued, which are held back until their
+         * linger time is up.
+         */
+        private void flushDirty() {
+            long now = lingerNanos > 0 ? System.nanoTime() : 0;
+            // by index, since a client that fails to write is closed, and
+            // announcing that may mark more clients
+            for (int i = 0; i < dirty.size(); i++) {
+                Connection connection = dirty.get(i);
+                if (lingerNanos > 0 && now - connection.lastWrite < lingerNanos
+                        && connection.outbound.bytes() < config.writeBatchBytes) {
+                    connection.flushDue = now + lingerNanos;
+                    lingering.add(connection);
+                } else {
+                    connection.dirty = false;
+                    connection.flush();
+                }
+            }
+            dirty.clear();
+            Connection next;
+            while ((next = lingering.peek()) != null
+                    && (next.flushDue <= now || next.outbound.bytes() >= config.writeBatchBytes)) {
+                lingering.poll();
+                next.dirty = false;
+                next.flush();
+            }
+        }
+
+        /**
+         * Stops reading from a client until the given nanoTime.
+         */
+        void throttle(Connection connection, long until) {
+            connection.resumeAt = until;
+            throttled.add(connection);
+        }
+
+        /**
+         * Reads again from the throttled clients whose time is up,
+         * starting with what they had already sent.
+         */
+        private void resumeThrottled() {
+            long now = System.nanoTime();
+            for (int i = throttled.size() - 1; i >= 0; i--) {
+                Connection connection = throttled.get(i);
+                if (connection.resumeAt - now <= 0) {
+                    throttled.remove(i);
+                    connection.resume();
+                }
+            }
+        }
+
+        /**
+         * Returns how many nanoseconds the selector may sleep before a
+         * lingering client is due to be written or a throttled one read.
+         */
+        private long untilDue() {
+            long now = System.nanoTime();
+            long wait = lingering.isEmpty() ? Long.MAX_VALUE : lingering.peek().flushDue - now;
+            for (Connection connection : throttled) {
+                wait = Math.min(wait, connection.resumeAt - now);
+            }
+            return wait;
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    } else if (!lingering.isEmpty() || !throttled.isEmpty()) {
+                        long wait = untilDue();
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999999)));
+                    } else {
+                        selector.select();
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            // the rest of its input cannot be made sense of
+                            System.out.println("Closing " + connection.name() + " after " + e);
+                            connection.close();
+                        }
+                    }
+                    if (!throttled.isEmpty()) {
+                        resumeThrottled();
+                    }
+                    flushDirty();
+                } catch (Exception e) {
+                    // Never let one bad client take the whole loop down.
+                    System.out.println(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The state kept for one client: its channel, the bytes of a line
+     * that has only partly arrived, and the bytes still waiting to be
+     * written to it.
+     */
+    private final class Connection extends Session {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+
+        /**
+         * The channel with TLS in between, which all reads and writes go
+         * through, or null for plain TCP.
+         */
+        private final TlsChannel tls;
+
+        private final SelectionKey key;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        /**
+         * Frames already taken off the outbound queue that the socket
+         * has not completely accepted yet, or null.  Only allocated when
+         * the socket is full.
+         */
+        private ByteBuffer[] unwritten;
+
+        /**
+         * The download a chunk is being sent of, and the header of that
+         * chunk, or null between chunks.
+         */
+        private AttachmentStore.Download sending;
+        private ByteBuffer chunkHeader;
+
+        /**
+         * Bytes of an incomplete line or frame carried over between
+         * reads, in pending[0..pendingLength).  Only allocated when a
+         * line or frame actually spans two reads.
+         */
+        private byte[] pending;
+        private int pendingLength;
+
+        private final InboundFrame inbound = new InboundFrame();
+
+        private volatile boolean closed;
+
+        /**
+         * True while a name is being claimed from the cluster.  Anything
+         * else the client sends meanwhile is ignored.
+         */
+        private boolean claiming;
+        private long claimStarted;
+
+        /**
+         * Set while the client is waiting in its loop's dirty or
+         * lingering list; flushDue is when a lingering client must be
+         * written, and lastWrite the nanoTime of the last write.
+         */
+        boolean dirty;
+        long flushDue;
+        long lastWrite;
+
+        private final RateLimiter.Client rate;
+
+        private final IdleTracker.Entry idle;
+
+        /**
+         * Set while reading is stopped because the client went over its
+         * rate limit, until resumeAt.  held is set while the message that
+         * went over waits at the front of pending, so that it is only
+         * counted once.
+         */
+        private boolean throttled;
+        private boolean held;
+        long resumeAt;
+
+        Connection(EventLoop loop, SocketChannel channel, TlsChannel tls, SelectionKey key, OutboundQueue outbound) {
+            super(outbound);
+            this.loop = loop;
+            this.channel = channel;
+            this.tls = tls;
+            this.key = key;
+            this.rate = limiter.newClient(channel.socket().getInetAddress());
+            this.idle = idleTracker.track(this);
+        }
+
+        /**
+         * Reads whatever is available and hands every complete line or
+         * frame to the protocol.  Whatever is left after the last
+         * complete one is kept until the rest of it arrives.  Over TLS,
+         * the handshake's answer, or what was queued while it went on,
+         * is written at the end of the turn.
+         */
+        void onReadable(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int read;
+            if (tls == null) {
+                read = channel.read(buffer);
+            } else {
+                boolean handshaking = tls.handshaking();
+                read = tls.read(buffer);
+                if (handshaking || tls.hasPendingOutput()) {
+                    loop.markDirty(this);
+                }
+            }
+            if (read < 0) {
+                close();
+                return;
+            }
+            idle.touch();
+
+            if (pending == null) {
+                int consumed = consume(buffer.array(), 0, read);
+                if (consumed < read && !closed) {
+                    pending = Arrays.copyOfRange(buffer.array(), consumed, read);
+                    pendingLength = read - consumed;
+                }
+                return;
+            }
+
+            if (pendingLength + read > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + read));
+            }
+            System.arraycopy(buffer.array(), 0, pending, pendingLength, read);
+            pendingLength += read;
+            consumePending();
+        }
+
+        private void consumePending() throws IOException {
+            int consumed = consume(pending, 0, pendingLength);
+            if (consumed == pendingLength) {
+                pending = null;
+                pendingLength = 0;
+            } else if (pendingLength - consumed > MAX_PENDING) {
+                close();
+            } else if (consumed > 0) {
+                System.arraycopy(pending, consumed, pending, 0, pendingLength - consumed);
+                pendingLength -= consumed;
+            }
+        }
+
+        /**
+         * Hands every complete line or binary frame in bytes[from..to) to
+         * the protocol and returns the offset of the first byte that was
+         * not used.  The connection may switch from text to binary half
+         * way through.
+         */
+        private int consume(byte[] bytes, int from, int to) throws IOException {
+            int position = from;
+            while (position < to && !closed) {
+                if (encoding() == Frame.Encoding.BINARY) {
+                    int length = BinaryFrames.completeLength(bytes, position, to - position);
+                    if (length < 0) {
+                        break;
+                    }
+                    // the chunks of an upload are not messages and are not limited
+                    if (bytes[position] != FrameType.UPLOADDATA.code && !admit()) {
+                        if (throttled) {
+                            break;
+                        }
+                        position += length;
+                        continue;
+                    }
+                    inbound.wrap(bytes, position, length);
+                    position += length;
+                    onFrame(inbound);
+                } else {
+                    int newline = position;
+                    while (newline < to && bytes[newline] != '\n') {
+                        newline++;
+                    }
+                    if (newline == to) {
+                        break;
+                    }
+                    if (!admit()) {
+                        if (throttled) {
+                            break;
+                        }
+                        position = newline + 1;
+                        continue;
+                    }
+                    String line = decodeLine(bytes, position, newline - position);
+                    position = newline + 1;
+                    onLine(line);
+                }
+            }
+            return position;
+        }
+
+        /**
+         * Applies the rate limit to the next line or frame, and returns
+         * whether to handle it.  A delayed client is not read from until
+         * it is within its limit again, and what it has already sent
+         * waits in pending, so TCP holds the sender back while the loop
+         * carries on serving everybody else.
+         */
+        private boolean admit() {
+            long wait = limiter.admit(rate);
+            if (wait == 0) {
+                held = false;
+                return true;
+            }
+            if (!held) {
+                Metrics.rateLimited.increment();
+            }
+            switch (limiter.action) {
+            case DELAY:
+                held = true;
+                throttled = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                loop.throttle(this, System.nanoTime() + wait);
+                return false;
+            case DROP:
+                if (!rate.warned) {
+                    rate.warned = true;
+                    send(Frame.of(FrameType.ERROR, "Slow down, messages are being dropped"));
+                }
+                return false;
+            default:
+                close();
+                return false;
+            }
+        }
+
+        /**
+         * Called by the loop once a throttled client may send again.
+         */
+        void resume() {
+            if (closed) {
+                return;
+            }
+            throttled = false;
+            try {
+                if (pending != null) {
+                    consumePending();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (!throttled && !closed) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * The interest in reading, unless the client is throttled.
+         */
+        private int readOps() {
+            return throttled ? 0 : SelectionKey.OP_READ;
+        }
+
+        /**
+         * Services one text line from the client.  Until a unique name
+         * has been accepted every line is a name request (or a request
+         * for the binary protocol), after that every line is handed to
+         * the router.  An answer to PING has done its job by arriving.
+         */
+        private void onLine(String line) {
+            if (IdleTracker.isPong(line)) {
+                return;
+            }
+            if (name() != null) {
+                router.route(this, line);
+            } else if (line.equals(BinaryFrames.BINARY_REQUEST)) {
+                send(Frame.of(FrameType.BINARY));
+                useBinary();
+                send(Frame.of(FrameType.SUBMITNAME));
+            } else {
+                requestName(line);
+            }
+        }
+
+        /**
+         * Services one binary frame from the client.
+         */
+        private void onFrame(InboundFrame frame) throws IOException {
+            if (frame.type() == FrameType.PONG) {
+                return;
+            }
+            if (name() != null) {
+                router.route(this, frame);
+            } else if (frame.type() == FrameType.RESUME) {
+                if (!resumer.resume(this, frame)) {
+                    send(Frame.of(FrameType.SUBMITNAME));
+                }
+            } else {
+                requestName(frame.type() == FrameType.NAME ? frame.payloadString() : "");
+            }
+        }
+
+        /**
+         * Claims the name without blocking the loop, since the node that
+         * owns it may be another one, and carries on in claimed().
+         */
+        private void requestName(final String requested) {
+            if (claiming) {
+                return;
+            }
+            if (!MessageRouter.isValidName(requested)) {
+                send(Frame.of(FrameType.SUBMITNAME));
+                return;
+            }
+            claiming = true;
+            claimStarted = System.nanoTime();
+            sessions.claim(requested).thenAccept(granted -> loop.execute(() -> claimed(requested, granted)));
+        }
+
+        private void claimed(String requested, boolean granted) {
+            claiming = false;
+            Metrics.registrationNanos.record(System.nanoTime() - claimStarted);
+            if (granted && closed) {
+                sessions.releaseClaim(requested);
+                return;
+            }
+            if (!granted || !sessions.registerClaimed(requested, this)) {
+                send(Frame.of(FrameType.SUBMITNAME));
+                return;
+            }
+            resumer.accepted(this);
+            if (log != null) {
+                log.replay(this);
+            }
+            router.deliverMail(this);
+            presence.joined(this);
+        }
+
+        /**
+         * Called from any thread once a line has been queued.  The actual
+         * write always happens on this client's event loop, at the end of
+         * its current turn.
+         */
+        @Override
+        protected void outboundReady() {
+            if (loop.inLoop()) {
+                loop.markDirty(this);
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    flushScheduled.set(false);
+                    loop.markDirty(this);
+                });
+            }
+        }
+
+        /**
+         * Writes as much of the outbound queue as the socket accepts,
+         * handing up to MAX_GATHER shared frames to each gathering write.
+         * If the socket is full, waits for OP_WRITE instead of spinning.
+         * Over TLS nothing is written until the handshake is over.
+         */
+        void flush() {
+            if (closed) {
+                return;
+            }
+            ByteBuffer[] gather = loop.gather;
+            try {
+                while (true) {
+                    if (tls != null && !tls.flush()) {
+                        key.interestOps(readOps() | (tls.hasPendingOutput() ? SelectionKey.OP_WRITE : 0));
+                        return;
+                    }
+                    if (sending != null && !sendChunk()) {
+                        key.interestOps(readOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    int count = 0;
+                    if (unwritten != null) {
+                        for (ByteBuffer buffer : unwritten) {
+                            gather[count++] = buffer;
+                        }
+                        unwritten = null;
+                    }
+                    byte[] frame;
+                    while (count < gather.length && (frame = outbound.poll()) != null) {
+                        gather[count++] = ByteBuffer.wrap(frame);
+                    }
+                    if (count == 0) {
+                        // nothing else to say: on with the file being downloaded, if any
+                        if (sending == null && (sending = currentDownload()) != null) {
+                            chunkHeader = ByteBuffer.wrap(sending.startChunk());
+                        }
+                        if (sending == null) {
+                            key.interestOps(readOps());
+                            return;
+                        }
+                        if (!sendChunk()) {
+                            key.interestOps(readOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        continue;
+                    }
+
+                    GatheringByteChannel target = tls == null ? channel : tls;
+                    Metrics.bytesWritten.add(target.write(gather, 0, count));
+                    if (loop.lingerNanos > 0) {
+                        lastWrite = System.nanoTime();
+                    }
+
+                    int first = 0;
+                    while (first < count && !gather[first].hasRemaining()) {
+                        first++;
+                    }
+                    if (first < count) {
+                        unwritten = Arrays.copyOfRange(gather, first, count);
+                        key.interestOps(readOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            } finally {
+                Arrays.fill(gather, null);
+            }
+        }
+
+        /**
+         * Sends the rest of the current chunk of a download, straight from
+         * the file to the socket, and returns false if the socket filled
+         * up first.  No frame may be written until the chunk is complete.
+         * Over TLS the file has to be encrypted on its way, so transferTo
+         * reads it through a buffer instead.
+         */
+        private boolean sendChunk() throws IOException {
+            WritableByteChannel target = tls == null ? channel : tls;
+            if (chunkHeader.hasRemaining()) {
+                Metrics.bytesWritten.add(target.write(chunkHeader));
+                if (chunkHeader.hasRemaining()) {
+                    return false;
+                }
+            }
+            while (sending.chunkLeft() > 0) {
+                long sent = sending.transfer(target);
+                if (sent == 0) {
+                    return false;
+                }
+                Metrics.bytesWritten.add(sent);
+            }
+            if (sending.finished()) {
+                downloadFinished(sending);
+            }
+            sending = null;
+            chunkHeader = null;
+            return true;
+        }
+
+        /**
+         * This client is going down!  Free its name and tell everybody
+         * else, then close the socket.  Called from another thread, for
+         * instance to evict a slow client, the work is handed to the
+         * client's own event loop.
+         */
+        @Override
+        public void close() {
+            if (!loop.inLoop()) {
+                loop.execute(this::close);
+                return;
+            }
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            closeQuietly(tls == null ? channel : tls);
+            outbound.close();
+            unwritten = null;
+            sending = null;
+            closeTransfers();
+            idle.cancel();
+            HandlerStats.disconnected();
+            if (name() != null && !superseded()) {
+                System.out.println("<<< " + name() + " has left the conversation >>>");
+            }
+            resumer.disconnected(this);
+        }
+    }
+
+    /**
+     * Decodes one line of UTF-8, dropping the carriage return that
+     * Windows clients send before the newline.
+     */
+    private static String decodeLine(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,260 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The bounded queue of encoded frames waiting to be written to one
+ * client.  Senders only ever add to the queue; a separate writer (a
+ * writer task for the threaded server, the event loop for NIO) takes
+ * lines off and writes them to the socket.  A client that reads slowly
+ * therefore only fills up its own queue instead of stalling whoever is
+ * sending to it.
+ *
+ * What happens when a queue reaches its limit depends on the policy:
+ *
+ *     DROP_OLDEST  the oldest queued lines are discarded to make room.
+ *
+ *     COALESCE     a line sent with a coalescing key replaces a line
+ *                  with the same key that is still queued, so a slow
+ *                  client gets the latest roster state rather than
+ *                  every intermediate step.  If the queue is still
+ *                  full the oldest lines are discarded.
+ *
+ *     DISCONNECT   the offer is refused and the caller is expected to
+ *                  evict the client.
+ *
+ * Lines that have already been taken by the writer are no longer in the
+ * queue, so a partly written line is never dropped or replaced.
+ *
+ * A frame may be queued with a short prefix of its own, such as the
+ * SEQUENCE frame numbering a shared message for this client.  The
+ * writer takes the prefix and the frame one after the other, and the
+ * two are never separated: nothing is written between them and neither
+ * is dropped without the other.
+ */
+public class OutboundQueue {
+
+    enum Policy { DROP_OLDEST, COALESCE, DISCONNECT }
+
+    /**
+     * Result of offering a line.  OVERFLOW is only returned under the
+     * DISCONNECT policy.
+     */
+    enum Offer { ACCEPTED, OVERFLOW, CLOSED }
+
+    /**
+     * One queued line in a doubly linked list, so that a coalesced line
+     * can be unlinked from the middle of the queue in constant time.
+     */
+    private static final class Node {
+        final byte[] prefix;
+        final byte[] bytes;
+        final String key;
+        Node previous;
+        Node next;
+
+        Node(byte[] prefix, byte[] bytes, String key) {
+            this.prefix = prefix;
+            this.bytes = bytes;
+            this.key = key;
+        }
+
+        int length() {
+            return prefix == null ? bytes.length : prefix.length + bytes.length;
+        }
+    }
+
+    private final Policy policy;
+    private final int maxMessages;
+    private final long maxBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Node> byKey = new HashMap<String, Node>();
+    private Node head;
+    private Node tail;
+    private boolean closed;
+
+    /**
+     * The frame whose prefix the writer has just taken, handed out by
+     * the next poll.
+     */
+    private volatile byte[] afterPrefix;
+
+    // Statistics, written under the lock and read without it.
+    private volatile int depth;
+    private volatile long bytes;
+    private volatile int highWaterMark;
+    private volatile long dropped;
+    private volatile long coalesced;
+
+    public OutboundQueue(Policy policy, int maxMessages, long maxBytes) {
+        this.policy = policy;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds an encoded frame to the end of the queue.  The bytes are
+     * shared with other queues and are never modified.  The key may be
+     * null for frames that must never be coalesced.
+     */
+    public Offer offer(byte[] frame, String key) {
+        return offer(null, frame, key);
+    }
+
+    /**
+     * Adds an encoded frame preceded by a prefix of its own, which may be
+     * null.
+     */
+    public Offer offer(byte[] prefix, byte[] frame, String key) {
+        int length = prefix == null ? frame.length : prefix.length + frame.length;
+        lock.lock();
+        try {
+            if (closed) {
+                return Offer.CLOSED;
+            }
+            if (policy == Policy.COALESCE && key != null) {
+                Node stale = byKey.remove(key);
+                if (stale != null) {
+                    unlink(stale);
+                    coalesced++;
+                }
+            }
+            if (depth + 1 > maxMessages || bytes + length > maxBytes) {
+                if (policy == Policy.DISCONNECT) {
+                    return Offer.OVERFLOW;
+                }
+                while (head != null && (depth + 1 > maxMessages || bytes + length > maxBytes)) {
+                    Node oldest = head;
+                    unlink(oldest);
+                    if (oldest.key != null) {
+                        byKey.remove(oldest.key, oldest);
+                    }
+                    dropped++;
+                }
+            }
+
+            Node node = new Node(prefix, frame, key);
+            if (tail == null) {
+                head = tail = node;
+            } else {
+                tail.next = node;
+                node.previous = tail;
+                tail = node;
+            }
+            if (policy == Policy.COALESCE && key != null) {
+                byKey.put(key, node);
+            }
+            depth++;
+            bytes += length;
+            if (depth > highWaterMark) {
+                highWaterMark = depth;
+            }
+            return Offer.ACCEPTED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the oldest frame off the queue, or returns null if the queue
+     * is empty.
+     */
+    public byte[] poll() {
+        lock.lock();
+        try {
+            byte[] held = afterPrefix;
+            if (held != null) {
+                afterPrefix = null;
+                return held;
+            }
+            Node oldest = head;
+            if (oldest == null) {
+                return null;
+            }
+            unlink(oldest);
+            if (oldest.key != null) {
+                byKey.remove(oldest.key, oldest);
+            }
+            if (oldest.prefix != null) {
+                afterPrefix = oldest.bytes;
+                return oldest.prefix;
+            }
+            return oldest.bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return depth == 0 && afterPrefix == null;
+    }
+
+    /**
+     * Discards everything queued and refuses further lines.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            head = tail = null;
+            afterPrefix = null;
+            byKey.clear();
+            depth = 0;
+            bytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void unlink(Node node) {
+        if (node.previous == null) {
+            head = node.next;
+        } else {
+            node.previous.next = node.next;
+        }
+        if (node.next == null) {
+            tail = node.previous;
+        } else {
+            node.next.previous = node.previous;
+        }
+        node.previous = node.next = null;
+        depth--;
+        bytes -= node.length();
+    }
+
+    /**
+     * Number of lines waiting to be written.
+     */
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * Number of bytes waiting to be written.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * The deepest the queue has been since the client connected.
+     */
+    public int highWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Lines discarded to stay within the limits.
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Lines replaced by a newer line with the same key.
+     */
+    public long coalesced() {
+        return coalesced;
+    }
+}
@@ -0,0 +1,276 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * The MessagePipeline stages that come with the server, chosen and put
+ * in order with --pipeline=profanity,links,mentions,audit.
+ */
+public final class PipelineStages {
+
+    private PipelineStages() {
+    }
+
+    /**
+     * Builds the pipeline named by a comma separated list of stages, or
+     * returns null for an empty list.
+     */
+    static MessagePipeline build(String names, ServerConfig config, SessionRegistry sessions, Mailbox mailbox)
+            throws IOException {
+        MessagePipeline.Builder pipeline = new MessagePipeline.Builder();
+        for (String name : names.split(",")) {
+            switch (name.trim()) {
+            case "":
+                break;
+            case "profanity":
+                if (config.profanityWords.isEmpty()) {
+                    throw new IllegalArgumentException("The profanity stage needs --profanity-words=file");
+                }
+                pipeline.add(new Profanity(new File(config.profanityWords)));
+                break;
+            case "links":
+                pipeline.add(new Links(config.blockLinks));
+                break;
+            case "mentions":
+                pipeline.add(new Mentions(sessions, mailbox));
+                break;
+            case "audit":
+                pipeline.add(new Audit(new File(config.auditLog)));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown pipeline stage " + name);
+            }
+        }
+        return pipeline.build();
+    }
+
+    /**
+     * Stars out the words in a list, one word per line, with lines
+     * starting with '#' left out.  Only whole words are masked, so that
+     * a short word does not spoil longer ones that contain it.
+     */
+    static final class Profanity implements MessagePipeline.Filter {
+        static final String REASON = "profanity";
+
+        private final List<KeywordAutomaton.Keyword> words = new ArrayList<KeywordAutomaton.Keyword>();
+
+        Profanity(File list) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(list),
+                    StandardCharsets.UTF_8));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && line.charAt(0) != '#') {
+                        words.add(new KeywordAutomaton.Keyword(line, KeywordAutomaton.Boundary.WHOLE_WORD));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public String name() {
+            return REASON;
+        }
+
+        @Override
+        public List<KeywordAutomaton.Keyword> keywords() {
+            return words;
+        }
+
+        @Override
+        public boolean filter(MessagePipeline.Message message) {
+            if (message.hits() == 0) {
+                return true;
+            }
+            for (int i = 0; i < message.hits(); i++) {
+                message.mask(message.hitStart(i), message.hitEnd(i), (byte) '*');
+            }
+            message.flag(REASON);
+            return true;
+        }
+    }
+
+    /**
+     * Notices web links, and stops messages with any in them if links
+     * are blocked.
+     */
+    static final class Links implements MessagePipeline.Filter {
+        static final String REASON = "link";
+
+        private static final Frame REFUSED = Frame.of(FrameType.ERROR, "Links are not allowed here");
+
+        private final boolean block;
+
+        Links(boolean block) {
+            this.block = block;
+        }
+
+        @Override
+        public String name() {
+            return "links";
+        }
+
+        @Override
+        public List<KeywordAutomaton.Keyword> keywords() {
+            List<KeywordAutomaton.Keyword> prefixes = new ArrayList<KeywordAutomaton.Keyword>();
+            for (String prefix : new String[] { "http://", "https://", "www." }) {
+                prefixes.add(new KeywordAutomaton.Keyword(prefix, KeywordAutomaton.Boundary.WORD_START));
+            }
+            return prefixes;
+        }
+
+        @Override
+        public boolean filter(MessagePipeline.Message message) {
+            if (message.hits() == 0) {
+                return true;
+            }
+            message.flag(REASON);
+            if (block) {
+                message.from.send(REFUSED);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Lets users who are not online anywhere know that they were
+     * mentioned, as "@name", in a message to everybody, by leaving a
+     * note in their Mailbox.  Only users the mailbox knows get one, and
+     * only the first MAX_NOTES of them in any message, so that a message
+     * full of made up names cannot fill the disk.  Storing it means
+     * writing a file, so this runs on a thread of its own.  Room and
+     * private messages are left alone: a user who is away is in no
+     * rooms, and a private message already waits for them.
+     */
+    static final class Mentions implements MessagePipeline.AsyncStage {
+        static final int MAX_NOTES = 10;
+
+        private final SessionRegistry sessions;
+        private final Mailbox mailbox;
+
+        Mentions(SessionRegistry sessions, Mailbox mailbox) {
+            this.sessions = sessions;
+            this.mailbox = mailbox;
+        }
+
+        @Override
+        public String name() {
+            return "mentions";
+        }
+
+        @Override
+        public List<KeywordAutomaton.Keyword> keywords() {
+            return Collections.singletonList(
+                    new KeywordAutomaton.Keyword("@", KeywordAutomaton.Boundary.WORD_START));
+        }
+
+        @Override
+        public boolean wants(MessagePipeline.Message message) {
+            return mailbox != null && message.delivered && message.recipients == null && message.hits() > 0;
+        }
+
+        @Override
+        public void process(MessagePipeline.Snapshot message) throws IOException {
+            byte[] note = null;
+            int notes = 0;
+            for (String name : mentioned(message.text)) {
+                if (name.equals(message.from) || !mailbox.knows(name)
+                        || sessions.lookup(name) != null || sessions.remoteNode(name) != null) {
+                    continue;
+                }
+                if (notes++ == MAX_NOTES) {
+                    break;
+                }
+                if (note == null) {
+                    note = (message.from + " mentioned you: " + message.text).getBytes(StandardCharsets.UTF_8);
+                }
+                mailbox.store(name, note);
+            }
+        }
+
+        /**
+         * Returns the names after '@' at the start of a word, as the
+         * KeywordAutomaton finds them, up to a space, and without
+         * punctuation at the end.
+         */
+        static Set<String> mentioned(String text) {
+            Set<String> names = new LinkedHashSet<String>();
+            int at = -1;
+            while ((at = text.indexOf('@', at + 1)) >= 0) {
+                if (at > 0 && (Character.isLetterOrDigit(text.charAt(at - 1)) || text.charAt(at - 1) == '_')) {
+                    continue;
+                }
+                int end = at + 1;
+                while (end < text.length() && !Character.isWhitespace(text.charAt(end))
+                        && text.charAt(end) != MessageRouter.RECIPIENT_SEPARATOR) {
+                    end++;
+                }
+                while (end > at + 1 && ".!?:;)'\"".indexOf(text.charAt(end - 1)) >= 0) {
+                    end--;
+                }
+                if (end > at + 1) {
+                    names.add(text.substring(at + 1, end));
+                }
+            }
+            return names;
+        }
+    }
+
+    /**
+     * Appends every message that a filter took notice of or stopped to a
+     * log file, one line each, with the text as the sender wrote it.
+     */
+    static final class Audit implements MessagePipeline.AsyncStage {
+        private final Writer out;
+        private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+        Audit(File file) throws IOException {
+            out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+
+        @Override
+        public String name() {
+            return "audit";
+        }
+
+        @Override
+        public List<KeywordAutomaton.Keyword> keywords() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean wants(MessagePipeline.Message message) {
+            return message.flagged() || !message.delivered;
+        }
+
+        @Override
+        public void process(MessagePipeline.Snapshot message) throws IOException {
+            StringBuilder line = new StringBuilder();
+            line.append(format.format(new Date(message.time))).append(' ').append(message.from).append(" -> ")
+                    .append(message.recipients == null ? "everybody" : String.join(",", message.recipients))
+                    .append(' ').append(message.reasons).append(message.delivered ? " delivered: " : " stopped: ")
+                    .append(message.original.replace('\n', ' ')).append('\n');
+            out.write(line.toString());
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps every client's list of online users up to date.
+ *
+ * A client that has just joined is sent the whole roster once, as NEW
+ * followed by one ONLINEUSERS line per name.  Everybody else is only
+ * told what changed, with a JOINED or USERLEFT line for that name, so a
+ * join costs O(N) lines in total rather than the O(N * N) of resending
+ * the roster to everybody.
+ *
+ * Changes are collected for a short window and then sent together.  If
+ * a name changes more than once within a window only its latest state
+ * is sent, and when many users join or leave at once (a mass reconnect
+ * after a restart, say) the individual "has joined" announcements are
+ * replaced by a single summary line.
+ *
+ * In a Cluster the roster includes the users on the other nodes, whose
+ * joins and leaves are passed on here as they arrive.
+ */
+public class Presence {
+
+    /**
+     * More joins or leaves than this in one window are announced with a
+     * single summary message instead of one message per name.
+     */
+    private static final int SUMMARY_THRESHOLD = 10;
+
+    private final SessionRegistry sessions;
+    private final long windowMillis;
+    private final ScheduledExecutorService timer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Latest state of every name that changed in the current window,
+     * true for online, in the order the names last changed.
+     */
+    private LinkedHashMap<String, Boolean> pending = new LinkedHashMap<String, Boolean>();
+    private boolean flushScheduled;
+
+    /**
+     * Creates the presence tracker.  With a window of 0 every change is
+     * sent as soon as it happens.
+     */
+    public Presence(SessionRegistry sessions, long windowMillis) {
+        this.sessions = sessions;
+        this.windowMillis = windowMillis;
+        if (windowMillis > 0) {
+            timer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "presence");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            timer = null;
+        }
+    }
+
+    /**
+     * Called once a session has been registered and acknowledged.  Sends
+     * it the full roster and schedules a JOINED for everybody else.
+     */
+    public void joined(Session session) {
+        roster(session);
+        changed(session.name(), true);
+    }
+
+    /**
+     * Sends one session the full roster without telling anybody else,
+     * for a client that has resumed its session.
+     */
+    public void roster(Session session) {
+        Frame.Builder roster = new Frame.Builder().add(FrameType.NEW);
+        for (String name : sessions.names()) {
+            roster.add(FrameType.ONLINEUSERS, name);
+        }
+        for (String name : sessions.remoteNames()) {
+            roster.add(FrameType.ONLINEUSERS, name);
+        }
+        session.send(roster.build("roster"));
+    }
+
+    /**
+     * Called when a user has joined on another node of the cluster.
+     */
+    public void remoteJoined(String name) {
+        changed(name, true);
+    }
+
+    /**
+     * Called once a session has been removed from the registry, or a
+     * user has left another node.
+     */
+    public void left(String name) {
+        changed(name, false);
+    }
+
+    private void changed(String name, boolean online) {
+        if (timer == null) {
+            LinkedHashMap<String, Boolean> change = new LinkedHashMap<String, Boolean>();
+            change.put(name, online);
+            publish(change);
+            return;
+        }
+        lock.lock();
+        try {
+            // Remove first so that the name moves to the end of the order.
+            pending.remove(name);
+            pending.put(name, online);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                timer.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flush() {
+        LinkedHashMap<String, Boolean> batch;
+        lock.lock();
+        try {
+            batch = pending;
+            pending = new LinkedHashMap<String, Boolean>();
+            flushScheduled = false;
+        } finally {
+            lock.unlock();
+        }
+        publish(batch);
+    }
+
+    /**
+     * Encodes one frame per changed name plus the announcements, then
+     * sends them to every registered session.  Each frame is keyed by
+     * name, so a slow client using the COALESCE policy keeps only the
+     * latest state of each user.
+     */
+    private void publish(Map<String, Boolean> batch) {
+        List<Frame> frames = new ArrayList<Frame>();
+        List<String> joined = new ArrayList<String>();
+        List<String> left = new ArrayList<String>();
+        for (Map.Entry<String, Boolean> change : batch.entrySet()) {
+            String name = change.getKey();
+            if (change.getValue()) {
+                frames.add(Frame.of(FrameType.JOINED, name, "presence " + name));
+                joined.add(name);
+            } else {
+                frames.add(Frame.of(FrameType.USERLEFT, name, "presence " + name));
+                left.add(name);
+            }
+        }
+        announce(frames, joined, "has joined the conversation", "users have joined the conversation");
+        announce(frames, left, "has left the chat", "users have left the chat");
+
+        for (Session session : sessions.sessions()) {
+            for (Frame frame : frames) {
+                session.send(frame);
+            }
+        }
+    }
+
+    private static void announce(List<Frame> frames, List<String> names, String one, String many) {
+        if (names.size() > SUMMARY_THRESHOLD) {
+            frames.add(Frame.of(FrameType.MESSAGE, "<<< " + names.size() + " " + many + " >>>"));
+            return;
+        }
+        for (String name : names) {
+            frames.add(Frame.of(FrameType.MESSAGE, "<<< " + name + " " + one + " >>>"));
+        }
+    }
+}
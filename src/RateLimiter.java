@@ -0,0 +1,316 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Flood protection: limits how fast each connection, and all the
+ * connections from one IP address together, may send messages, and
+ * how fast new connections are accepted from one address.
+ *
+ * Every limit is a token bucket that fills at a steady rate up to a
+ * burst, and every message or connection takes a token.  The bucket is
+ * kept in the equivalent "theoretical arrival time" form: a single
+ * long saying when the bucket would be full again, which is pushed one
+ * interval further by every message.  A message is over the limit if
+ * that time is more than burst intervals ahead of now, and the excess
+ * is exactly how long the sender would have to wait.
+ *
+ * A connection's own bucket lives in its Client and is only touched by
+ * the thread reading from it.  The buckets of addresses are shared, so
+ * they are kept in an open addressing table of longs, split into
+ * stripes with a lock each.  Nothing is allocated per message, and a
+ * stripe only reallocates when it grows past the number of addresses
+ * it has ever had to hold at once.
+ *
+ * What happens to a message that is over the limit is the Action.
+ * DELAY stops reading from the client until it is within its limit
+ * again, so TCP pushes back on the sender and the messages of everyone
+ * else are not held up behind it.
+ */
+public class RateLimiter {
+
+    /**
+     * What to do with a message that is over the limit.
+     */
+    enum Action { DELAY, DROP, DISCONNECT }
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int STRIPES = 64;
+
+    final Action action;
+
+    private final Rate perClient;
+    private final Rate perAddress;
+    private final Rate connections;
+
+    private final AddressBuckets addressMessages = new AddressBuckets();
+    private final AddressBuckets addressConnections = new AddressBuckets();
+
+    /**
+     * Limits of messages per second for each client and each address,
+     * and of connections per second for each address, each with the
+     * number that may come at once.  A rate of 0 turns that limit off.
+     */
+    RateLimiter(Action action, double clientRate, int clientBurst, double addressRate, int addressBurst,
+            double connectionRate, int connectionBurst) {
+        this.action = action;
+        this.perClient = Rate.of(clientRate, clientBurst);
+        this.perAddress = Rate.of(addressRate, addressBurst);
+        this.connections = Rate.of(connectionRate, connectionBurst);
+    }
+
+    /**
+     * Returns the state kept for a newly accepted connection.
+     */
+    Client newClient(InetAddress address) {
+        return new Client(key(address));
+    }
+
+    /**
+     * Takes a token for a new connection from the given address, and
+     * returns false if the address has been connecting too fast.
+     */
+    boolean admitConnection(InetAddress address) {
+        if (connections == null) {
+            return true;
+        }
+        if (addressConnections.take(key(address), connections, System.nanoTime()) == 0) {
+            return true;
+        }
+        Metrics.connectionsRefused.increment();
+        return false;
+    }
+
+    /**
+     * Takes a token for one message from the client, and returns 0 if the
+     * message may be handled now.  Otherwise returns how many nanoseconds
+     * the client is over its limit by and takes nothing, so that a
+     * delayed message can simply be admitted again later.  The caller
+     * counts the message in Metrics.rateLimited, once however often it
+     * asks.
+     */
+    long admit(Client client) {
+        if (perClient == null && perAddress == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long wait = perClient == null ? 0 : perClient.wait(client.full, now);
+        if (wait == 0 && perAddress != null) {
+            wait = addressMessages.take(client.address, perAddress, now);
+        }
+        if (wait == 0) {
+            if (perClient != null) {
+                client.full = perClient.take(client.full, now);
+            }
+            client.warned = false;
+        }
+        return wait;
+    }
+
+    /**
+     * Returns the key of an address in the shared tables: the address
+     * itself for IPv4, a hash of it for IPv6.  Two IPv6 addresses that
+     * hash alike share a bucket, which only makes them stricter.
+     */
+    private static long key(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            return ((bytes[0] & 0xffL) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8
+                    | (bytes[3] & 0xff)) + 1;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * What the limiter keeps for one connection.  Only the thread reading
+     * from the connection uses it.
+     */
+    static final class Client {
+
+        final long address;
+
+        /**
+         * nanoTime at which this client's bucket is full again.
+         */
+        long full;
+
+        /**
+         * Set once the client has been told that a message was dropped,
+         * until a message gets through again.
+         */
+        boolean warned;
+
+        Client(long address) {
+            this.address = address;
+            this.full = System.nanoTime();
+        }
+    }
+
+    /**
+     * One limit: a token every interval nanoseconds, and up to burst
+     * tokens saved up, which is tolerance nanoseconds of credit on top of
+     * the token being taken.
+     */
+    private static final class Rate {
+        final long interval;
+        final long tolerance;
+
+        private Rate(long interval, long tolerance) {
+            this.interval = interval;
+            this.tolerance = tolerance;
+        }
+
+        static Rate of(double perSecond, int burst) {
+            if (perSecond <= 0) {
+                return null;
+            }
+            long interval = Math.max(1, (long) (NANOS_PER_SECOND / perSecond));
+            return new Rate(interval, interval * (Math.max(1, burst) - 1));
+        }
+
+        /**
+         * Returns how long a bucket that is full at the given time would
+         * have to wait for a token, 0 if it has one now.
+         */
+        long wait(long full, long now) {
+            return Math.max(0, full - now - tolerance);
+        }
+
+        /**
+         * Returns when the bucket is full again once a token is taken.
+         */
+        long take(long full, long now) {
+            return (full - now > 0 ? full : now) + interval;
+        }
+    }
+
+    /**
+     * The buckets of many addresses, by key.  Each stripe is an open
+     * addressing table with linear probing, where key 0 marks a free
+     * slot.  A bucket that has filled up again is the same as no bucket
+     * at all, so when a stripe gets crowded the full ones are left out as
+     * it is rebuilt, into a spare pair of arrays kept for the purpose.
+     */
+    private static final class AddressBuckets {
+        private final Stripe[] stripes = new Stripe[STRIPES];
+
+        AddressBuckets() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe();
+            }
+        }
+
+        /**
+         * Takes a token from the address's bucket and returns 0, or
+         * returns how long it would have to wait without taking one.
+         */
+        long take(long key, Rate rate, long now) {
+            long hash = key * 0x9e3779b97f4a7c15L;
+            Stripe stripe = stripes[(int) (hash >>> 58)];
+            stripe.lock.lock();
+            try {
+                int slot = stripe.find(key, (int) hash);
+                long full = slot < 0 ? now : stripe.full[slot];
+                long wait = rate.wait(full, now);
+                if (wait == 0) {
+                    if (slot < 0) {
+                        slot = stripe.insert(key, (int) hash, now);
+                    }
+                    stripe.full[slot] = rate.take(full, now);
+                }
+                return wait;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    private static final class Stripe {
+        private static final int INITIAL_CAPACITY = 64;
+
+        final ReentrantLock lock = new ReentrantLock();
+        long[] keys = new long[INITIAL_CAPACITY];
+        long[] full = new long[INITIAL_CAPACITY];
+        long[] spareKeys = new long[INITIAL_CAPACITY];
+        long[] spareFull = new long[INITIAL_CAPACITY];
+        int size;
+
+        /**
+         * Returns the slot holding the key, or -1.
+         */
+        int find(long key, int hash) {
+            int mask = keys.length - 1;
+            for (int slot = hash & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Adds a key that is not in the table yet and returns its slot.
+         * Once the table is half full the buckets that are full by now
+         * are dropped, and if that does not free a quarter of it, it
+         * doubles.
+         */
+        int insert(long key, int hash, long now) {
+            if (size + 1 > keys.length / 2) {
+                rebuild(now);
+            }
+            size++;
+            return place(keys, key, hash);
+        }
+
+        private void rebuild(long now) {
+            int live = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0 && full[i] - now > 0) {
+                    live++;
+                }
+            }
+            if (live + 1 > keys.length / 4) {
+                spareKeys = new long[keys.length * 2];
+                spareFull = new long[keys.length * 2];
+            }
+            long[] oldKeys = keys;
+            long[] oldFull = full;
+            keys = spareKeys;
+            full = spareFull;
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0 && oldFull[i] - now > 0) {
+                    long hash = oldKeys[i] * 0x9e3779b97f4a7c15L;
+                    int slot = place(keys, oldKeys[i], (int) hash);
+                    full[slot] = oldFull[i];
+                    size++;
+                }
+            }
+            Arrays.fill(oldKeys, 0);
+            if (oldKeys.length == keys.length) {
+                spareKeys = oldKeys;
+                spareFull = oldFull;
+            } else {
+                spareKeys = new long[keys.length];
+                spareFull = new long[keys.length];
+            }
+        }
+
+        private static int place(long[] keys, long key, int hash) {
+            int mask = keys.length - 1;
+            int slot = hash & mask;
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            return slot;
+        }
+    }
+}
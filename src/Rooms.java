@@ -0,0 +1,175 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The chat rooms and who is in each of them.
+ *
+ * Every room has its own concurrent set of members, so a message to a
+ * room is only queued for the room's members and never looks at
+ * anybody else, whether the room has two members or twenty thousand.
+ * Joining or leaving adds or removes one entry in the room's set and
+ * one in the session's own set of room names.  A room exists while it
+ * has members: the first member to join creates it and the last one to
+ * leave removes it, both atomically with the membership change, so that
+ * a hundred thousand short lived rooms leave nothing behind.
+ *
+ * In a Cluster the other nodes are told when a room gets its first
+ * member on this node and when it loses its last one, so that room
+ * messages are only passed to the nodes that have somebody to deliver
+ * them to.  The notice is queued inside the same atomic update that
+ * creates or removes the room, so the notices for one room cannot
+ * overtake each other.
+ *
+ * The whole server is still one big room as well; a message that is
+ * not addressed to anybody in particular goes to everyone, as before.
+ */
+public class Rooms {
+
+    /**
+     * Marks a room among the recipients of a message, as in "#dev>>hi".
+     */
+    static final char PREFIX = '#';
+
+    static final int MAX_NAME_LENGTH = 64;
+
+    /**
+     * One room and its members.
+     */
+    static final class Room {
+        final String name;
+        final Set<Session> members = ConcurrentHashMap.newKeySet();
+
+        Room(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Sends a frame to every member and returns how many there were.
+         * The frame is encoded once and the same bytes are queued for
+         * everybody.
+         */
+        int broadcast(Frame frame) {
+            int recipients = 0;
+            for (Session member : members) {
+                member.send(frame);
+                recipients++;
+            }
+            return recipients;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+
+    private volatile Cluster cluster;
+
+    void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Returns true if a room name, without its '#', can be addressed in
+     * a recipient list.
+     */
+    static boolean isValidName(String room) {
+        if (room.isEmpty() || room.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < room.length(); i++) {
+            char c = room.charAt(i);
+            if (Character.isWhitespace(c) || c == MessageRouter.RECIPIENT_SEPARATOR || c == '>') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the room with the given name, or null if nobody is in it.
+     */
+    public Room lookup(String room) {
+        return rooms.get(room);
+    }
+
+    /**
+     * Adds a session to a room, creating the room if need be.  Returns
+     * false if the session was already a member.
+     */
+    public boolean join(final Session session, String room) {
+        final boolean[] added = new boolean[1];
+        rooms.compute(room, (name, existing) -> {
+            Room joined = existing;
+            if (joined == null) {
+                joined = new Room(name);
+                Cluster current = cluster;
+                if (current != null) {
+                    current.subscribe(name);
+                }
+            }
+            added[0] = joined.members.add(session);
+            return joined;
+        });
+        if (added[0]) {
+            session.rooms().add(room);
+        }
+        return added[0];
+    }
+
+    /**
+     * Removes a session from a room, removing the room once it is empty.
+     * Returns false if the session was not a member.
+     */
+    public boolean leave(final Session session, String room) {
+        final boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (name, existing) -> {
+            removed[0] = existing.members.remove(session);
+            if (!existing.members.isEmpty()) {
+                return existing;
+            }
+            Cluster current = cluster;
+            if (current != null) {
+                current.unsubscribe(name);
+            }
+            return null;
+        });
+        session.rooms().remove(room);
+        return removed[0];
+    }
+
+    /**
+     * Takes a session out of every room it is in, once it has left the
+     * server.
+     */
+    public void leaveAll(Session session) {
+        for (String room : session.rooms()) {
+            leave(session, room);
+        }
+    }
+
+    /**
+     * Puts next in place of previous in every room previous is in, for a
+     * client that has resumed its session from a new connection.
+     */
+    public void transfer(final Session previous, final Session next) {
+        for (String room : previous.rooms()) {
+            rooms.computeIfPresent(room, (name, existing) -> {
+                if (existing.members.remove(previous)) {
+                    existing.members.add(next);
+                    next.rooms().add(name);
+                }
+                return existing;
+            });
+        }
+        previous.rooms().clear();
+    }
+
+    /**
+     * Returns the names of the rooms that have members on this node.
+     */
+    public Set<String> names() {
+        return rooms.keySet();
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+}
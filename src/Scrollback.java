@@ -0,0 +1,90 @@
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * The lines shown in ChatClient's message view: a list model over a ring
+ * buffer that keeps only the latest limit lines, so a client left
+ * running in a busy room does not grow without bound.  Adding a line
+ * when the buffer is full overwrites the oldest one, and a JList shows
+ * the model by painting only the rows that are visible, so neither
+ * adding nor painting costs more as the scrollback fills up.
+ *
+ * Like every Swing model it is only used on the event dispatch thread.
+ */
+public class Scrollback extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private String[] lines;
+
+    /**
+     * Index in lines of the oldest line, and the number of lines kept.
+     */
+    private int first;
+    private int size;
+
+    Scrollback(int limit) {
+        lines = new String[Math.max(1, limit)];
+    }
+
+    int limit() {
+        return lines.length;
+    }
+
+    /**
+     * Changes the number of lines kept, keeping the latest ones.
+     */
+    void setLimit(int limit) {
+        String[] resized = new String[Math.max(1, limit)];
+        int kept = Math.min(size, resized.length);
+        for (int i = 0; i < kept; i++) {
+            resized[i] = getElementAt(size - kept + i);
+        }
+        int removed = size - kept;
+        lines = resized;
+        first = 0;
+        size = kept;
+        if (removed > 0) {
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return lines[(first + index) % lines.length];
+    }
+
+    /**
+     * Appends a batch of lines, dropping as many of the oldest as needed,
+     * with one event for the lines dropped and one for those added.
+     */
+    void addAll(List<String> added) {
+        // lines that would be overwritten within this batch are skipped
+        int from = Math.max(0, added.size() - lines.length);
+        int count = added.size() - from;
+        if (count == 0) {
+            return;
+        }
+        int removed = Math.max(0, size + count - lines.length);
+        if (removed > 0) {
+            for (int i = 0; i < removed; i++) {
+                lines[(first + i) % lines.length] = null;
+            }
+            first = (first + removed) % lines.length;
+            size -= removed;
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+        int start = size;
+        for (int i = from; i < added.size(); i++) {
+            lines[(first + size) % lines.length] = added.get(i);
+            size++;
+        }
+        fireIntervalAdded(this, start, size - 1);
+    }
+}
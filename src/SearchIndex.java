@@ -0,0 +1,694 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An inverted index over the MessageLog, for finding what was said by
+ * whom and when.  Every word of a message, lower cased, and "from:"
+ * followed by the sender's name, lower cased, is a term, and each term
+ * has a postings list of the log positions of the messages that contain
+ * it.  The log's writer thread feeds the index as it writes, so clients
+ * sending messages never wait for it.
+ *
+ * Postings are kept as the differences between successive positions,
+ * each as a variable length number, which is a byte or two for a busy
+ * conversation.  The messages written most recently are indexed in
+ * memory; once that part takes up memoryBytes it is sealed, that is,
+ * written to a file of its own with its terms sorted, and searched from
+ * then on through a read only mapping of the file.  So the heap only
+ * ever holds one part, and a restart only has to index the messages
+ * that came after the last sealed part.  The log seals the part in
+ * memory on a normal shutdown, so that only a crash leaves any
+ * messages to index again.
+ *
+ * A sealed part's file is
+ *
+ *     [magic: 4 bytes][start: 8][end: 8]
+ *     [checkpoint count: 4][(time: 8, position: 8)*]
+ *     [term count: 4][(entry offset: 4)*]
+ *     [(term length: 2, term, posting count: 4, postings length: 4,
+ *       postings)*]
+ *
+ * with the entries in term order, so that a term is found by a binary
+ * search of the offsets.  The log itself keeps no times, so each part
+ * notes the time and position of the first message of every second, and
+ * a time range is turned into a range of positions with those.
+ *
+ * A search is a few words, all of which a message must contain, and
+ * optionally "from:name", "after:2024-01-31", "before:2024-01-31" and
+ * "page:2".  Matches are returned newest first, part by part, and the
+ * postings of the terms are walked together, each skipping ahead to the
+ * next position the others could match, so a common word costs little
+ * more than the rarest word searched with it.  The parts whose
+ * messages the log has deleted are dropped with their files.
+ */
+public class SearchIndex {
+
+    /**
+     * Matches returned at a time.
+     */
+    static final int PAGE_SIZE = 20;
+
+    /**
+     * Most candidates looked at for one search, which bounds the work a
+     * search for a common word can cause.
+     */
+    static final int MAX_CANDIDATES = 10000;
+
+    static final String FROM = "from:";
+
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int MAGIC = 0x43534931;
+    private static final String SUFFIX = ".idx";
+
+    /**
+     * Rough heap cost of a term in the part in memory, over and above its
+     * characters and postings.
+     */
+    private static final int TERM_OVERHEAD = 96;
+
+    private final File directory;
+    private final long memoryBytes;
+
+    /**
+     * Readers search the part in memory under the read lock; the writer
+     * only takes the write lock to add a message or swap a sealed part
+     * in.  Sealed parts never change, so readers search them after
+     * letting go of the lock, in the list as it was: the list is
+     * replaced, not changed, when a part is sealed or dropped.  Only one
+     * thread at a time adds, seals or drops, which the methods doing so
+     * are synchronized for.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile List<Sealed> sealed;
+    private Part current;
+
+    /**
+     * Opens the index in the given directory, creating it if need be, and
+     * maps every part sealed before.  memoryBytes is about as much heap
+     * as the part in memory may take before it is sealed.
+     */
+    public SearchIndex(File directory, long memoryBytes) throws IOException {
+        this.directory = directory;
+        this.memoryBytes = memoryBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create search index directory " + directory);
+        }
+        List<Sealed> sealed = new ArrayList<Sealed>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX)) {
+                    sealed.add(new Sealed(file));
+                } else {
+                    // a part being sealed when the server stopped
+                    file.delete();
+                }
+            }
+        }
+        sealed.sort((a, b) -> Long.compare(a.start, b.start));
+        this.sealed = sealed;
+        current = new Part(sealed.isEmpty() ? 0 : sealed.get(sealed.size() - 1).end);
+    }
+
+    /**
+     * The log position from which messages are not in a sealed part, and
+     * so have to be indexed again after a restart.
+     */
+    long indexedUpTo() {
+        lock.readLock().lock();
+        try {
+            return current.start;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes the message at a log position, written at the given time.
+     * Messages must be added in the order of their positions.
+     */
+    synchronized void add(long position, long time, byte[] payload) {
+        Set<String> terms = terms(new String(payload, StandardCharsets.UTF_8));
+        lock.writeLock().lock();
+        try {
+            current.add(position, time, terms);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns true once the part in memory should be sealed.
+     */
+    synchronized boolean full() {
+        return current.memory >= memoryBytes;
+    }
+
+    /**
+     * Writes the part in memory to a file, maps it and starts a new part.
+     */
+    synchronized void seal() throws IOException {
+        Part part = current;
+        if (part.terms.isEmpty()) {
+            return;
+        }
+        // only this thread changes the part, so it can be read unlocked
+        Sealed written = new Sealed(part.write(directory));
+        List<Sealed> next = new ArrayList<Sealed>(sealed);
+        next.add(written);
+        lock.writeLock().lock();
+        try {
+            sealed = next;
+            current = new Part(written.end);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the sealed parts that only cover positions before first,
+     * whose messages the log no longer has, and deletes their files.  A
+     * search still reading one keeps its mapping until it is done.
+     */
+    synchronized void drop(long first) {
+        List<Sealed> kept = new ArrayList<Sealed>(sealed.size());
+        for (Sealed part : sealed) {
+            if (part.end > first) {
+                kept.add(part);
+            } else if (!part.file.delete()) {
+                System.out.println("Cannot delete search index part " + part.file);
+            }
+        }
+        if (kept.size() < sealed.size()) {
+            sealed = kept;
+        }
+    }
+
+    /**
+     * Returns the positions of the messages matching a query, newest
+     * first, at most MAX_CANDIDATES of them.  Whether the client may see
+     * each one is up to the caller.  The sealed parts are searched
+     * without the lock, so that the writer is not held up, and only
+     * until enough candidates are found.
+     */
+    long[] candidates(Query query) {
+        List<String> terms = new ArrayList<String>(query.words);
+        if (query.from != null) {
+            terms.add(FROM + query.from);
+        }
+        long[] found = new long[0];
+        List<Sealed> older;
+        lock.readLock().lock();
+        try {
+            found = append(found, current.match(terms, query.after, query.before, MAX_CANDIDATES));
+            older = sealed;
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (int i = older.size() - 1; i >= 0 && found.length < MAX_CANDIDATES; i--) {
+            found = append(found, older.get(i).match(terms, query.after, query.before,
+                    MAX_CANDIDATES - found.length));
+        }
+        return found;
+    }
+
+    /**
+     * Returns about when the message at a log position was written.
+     */
+    long time(long position) {
+        List<Sealed> older;
+        lock.readLock().lock();
+        try {
+            if (position >= current.start) {
+                return current.time(position);
+            }
+            older = sealed;
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (int i = older.size() - 1; i >= 0; i--) {
+            if (position >= older.get(i).start) {
+                return older.get(i).time(position);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds positions found in an older part, given in ascending order, to
+     * the end of those found so far.
+     */
+    private static long[] append(long[] found, long[] older) {
+        long[] joined = Arrays.copyOf(found, found.length + older.length);
+        for (int i = 0; i < older.length; i++) {
+            joined[found.length + i] = older[older.length - 1 - i];
+        }
+        return joined;
+    }
+
+    /**
+     * The terms of a message: the sender, and the distinct words of the
+     * text.
+     */
+    static Set<String> terms(String message) {
+        int start = 0;
+        if (!message.isEmpty() && message.charAt(0) == Rooms.PREFIX) {
+            // a room message starts with the room's name
+            start = message.indexOf(' ') + 1;
+        }
+        int colon = message.indexOf(": ", start);
+        Set<String> terms = new LinkedHashSet<String>();
+        if (colon > start) {
+            terms.add(FROM + message.substring(start, colon).toLowerCase());
+            start = colon + 2;
+        }
+        terms.addAll(words(message.substring(start)));
+        return terms;
+    }
+
+    /**
+     * Splits text into lower case words of letters and digits.
+     */
+    static Set<String> words(String text) {
+        Set<String> words = new LinkedHashSet<String>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                if (word.length() <= MAX_TERM_LENGTH) {
+                    words.add(word.toString());
+                }
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * What a part of the index has in common, in memory or sealed: it
+     * covers the log positions from start, and finds the postings of a
+     * term.
+     */
+    private abstract static class Searchable {
+        long start;
+        long[] checkpointTimes = new long[16];
+        long[] checkpointPositions = new long[16];
+        int checkpoints;
+
+        /**
+         * Returns the positions of the term, or null if no message in the
+         * part has it.
+         */
+        abstract Cursor postings(String term);
+
+        /**
+         * Returns the positions in this part, in ascending order, of the
+         * latest messages, at most limit of them, that have every term
+         * and were written in the time range.
+         */
+        long[] match(List<String> terms, long after, long before, int limit) {
+            if (checkpoints == 0 || (before > 0 && checkpointTimes[0] >= before)
+                    || checkpointTimes[checkpoints - 1] / 1000 < after / 1000) {
+                return new long[0];
+            }
+            List<Cursor> lists = new ArrayList<Cursor>(terms.size());
+            for (String term : terms) {
+                Cursor positions = postings(term);
+                if (positions == null) {
+                    return new long[0];
+                }
+                lists.add(positions);
+            }
+            long low = after > 0 ? firstAt(after) : 0;
+            long high = before > 0 ? firstAt(before) : Long.MAX_VALUE;
+            if (low == Long.MAX_VALUE) {
+                return new long[0];
+            }
+            // the rarest term leads, and the others skip to its positions
+            lists.sort((a, b) -> Integer.compare(a.count, b.count));
+            Cursor rarest = lists.get(0);
+            long[] latest = new long[Math.min(limit, rarest.count)];
+            long matched = 0;
+            long position = rarest.seek(low);
+            candidates:
+            while (position < high) {
+                for (int i = 1; i < lists.size(); i++) {
+                    long other = lists.get(i).seek(position);
+                    if (other != position) {
+                        position = rarest.seek(other);
+                        continue candidates;
+                    }
+                }
+                latest[(int) (matched++ % latest.length)] = position;
+                position = rarest.next();
+            }
+            int size = (int) Math.min(matched, latest.length);
+            long[] found = new long[size];
+            int oldest = matched > latest.length ? (int) (matched % latest.length) : 0;
+            for (int i = 0; i < size; i++) {
+                found[i] = latest[(oldest + i) % latest.length];
+            }
+            return found;
+        }
+
+        /**
+         * Returns the position of the first message written at or after
+         * a time, or Long.MAX_VALUE if there is none in this part.
+         */
+        long firstAt(long time) {
+            int low = 0;
+            int high = checkpoints;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (checkpointTimes[middle] < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low < checkpoints ? checkpointPositions[low] : Long.MAX_VALUE;
+        }
+
+        long time(long position) {
+            int low = 0;
+            int high = checkpoints;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (checkpointPositions[middle] <= position) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low == 0 ? 0 : checkpointTimes[low - 1];
+        }
+
+        void checkpoint(long time, long position) {
+            if (checkpoints == checkpointTimes.length) {
+                checkpointTimes = Arrays.copyOf(checkpointTimes, checkpoints * 2);
+                checkpointPositions = Arrays.copyOf(checkpointPositions, checkpoints * 2);
+            }
+            checkpointTimes[checkpoints] = time;
+            checkpointPositions[checkpoints] = position;
+            checkpoints++;
+        }
+    }
+
+    /**
+     * The part being added to, in memory.
+     */
+    private static final class Part extends Searchable {
+        final Map<String, Postings> terms = new HashMap<String, Postings>();
+        long last = -1;
+        long memory;
+
+        Part(long start) {
+            this.start = start;
+        }
+
+        void add(long position, long time, Set<String> words) {
+            if (checkpoints == 0 || time / 1000 != checkpointTimes[checkpoints - 1] / 1000) {
+                checkpoint(Math.max(time, checkpoints == 0 ? 0 : checkpointTimes[checkpoints - 1]), position);
+            }
+            for (String word : words) {
+                Postings postings = terms.get(word);
+                if (postings == null) {
+                    postings = new Postings();
+                    terms.put(word, postings);
+                    memory += TERM_OVERHEAD + 2 * word.length();
+                }
+                int capacity = postings.bytes.length;
+                postings.add(position);
+                memory += postings.bytes.length - capacity;
+            }
+            last = position;
+        }
+
+        @Override
+        Cursor postings(String term) {
+            Postings postings = terms.get(term);
+            return postings == null ? null : new Cursor(ByteBuffer.wrap(postings.bytes), 0, postings.count);
+        }
+
+        /**
+         * Writes the part to a new file and returns it.
+         */
+        File write(File directory) throws IOException {
+            List<String> sorted = new ArrayList<String>(terms.keySet());
+            Collections.sort(sorted);
+            byte[][] names = new byte[sorted.size()][];
+            int offset = 4 + 8 + 8 + 4 + 16 * checkpoints + 4 + 4 * sorted.size();
+            int[] offsets = new int[sorted.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = sorted.get(i).getBytes(StandardCharsets.UTF_8);
+                offsets[i] = offset;
+                offset += 2 + names[i].length + 4 + 4 + terms.get(sorted.get(i)).length;
+            }
+            File file = new File(directory, String.format("%020d", start) + SUFFIX);
+            File written = new File(directory, file.getName() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(written)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeLong(start);
+                out.writeLong(last + 1);
+                out.writeInt(checkpoints);
+                for (int i = 0; i < checkpoints; i++) {
+                    out.writeLong(checkpointTimes[i]);
+                    out.writeLong(checkpointPositions[i]);
+                }
+                out.writeInt(names.length);
+                for (int entryOffset : offsets) {
+                    out.writeInt(entryOffset);
+                }
+                for (int i = 0; i < names.length; i++) {
+                    Postings postings = terms.get(sorted.get(i));
+                    out.writeShort(names[i].length);
+                    out.write(names[i]);
+                    out.writeInt(postings.count);
+                    out.writeInt(postings.length);
+                    out.write(postings.bytes, 0, postings.length);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(written.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return file;
+        }
+    }
+
+    /**
+     * One term's postings in the part in memory.
+     */
+    private static final class Postings {
+        byte[] bytes = new byte[4];
+        int length;
+        int count;
+        long last;
+
+        /**
+         * Appends the distance from the last position, seven bits to a
+         * byte, with the top bit set on all but the last byte.
+         */
+        void add(long position) {
+            long delta = position - last;
+            while ((delta & ~0x7fL) != 0) {
+                put((byte) ((delta & 0x7f) | 0x80));
+                delta >>>= 7;
+            }
+            put((byte) delta);
+            last = position;
+            count++;
+        }
+
+        private void put(byte b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[length++] = b;
+        }
+    }
+
+    /**
+     * A sealed part, searched through a read only mapping of its file.
+     * Only the checkpoints are copied onto the heap.
+     */
+    private static final class Sealed extends Searchable {
+        final File file;
+        final long end;
+        private final MappedByteBuffer buffer;
+        private final int terms;
+        private final int offsets;
+
+        Sealed(File file) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a search index");
+            }
+            start = buffer.getLong(4);
+            end = buffer.getLong(12);
+            int count = buffer.getInt(20);
+            checkpointTimes = new long[Math.max(1, count)];
+            checkpointPositions = new long[Math.max(1, count)];
+            int position = 24;
+            for (int i = 0; i < count; i++) {
+                checkpoint(buffer.getLong(position), buffer.getLong(position + 8));
+                position += 16;
+            }
+            terms = buffer.getInt(position);
+            offsets = position + 4;
+        }
+
+        @Override
+        Cursor postings(String term) {
+            int low = 0;
+            int high = terms - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int entry = buffer.getInt(offsets + 4 * middle);
+                byte[] name = new byte[buffer.getShort(entry) & 0xffff];
+                for (int i = 0; i < name.length; i++) {
+                    name[i] = buffer.get(entry + 2 + i);
+                }
+                int compared = new String(name, StandardCharsets.UTF_8).compareTo(term);
+                if (compared < 0) {
+                    low = middle + 1;
+                } else if (compared > 0) {
+                    high = middle - 1;
+                } else {
+                    int at = entry + 2 + name.length;
+                    return new Cursor(buffer, at + 8, buffer.getInt(at));
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Decodes one term's postings as it goes, in ascending order, straight
+     * from where they are kept.  Reading never changes the buffer, so a
+     * mapped part can be read by several searches at once.
+     */
+    private static final class Cursor {
+        final int count;
+        private final ByteBuffer bytes;
+        private int offset;
+        private int read;
+        private long position;
+
+        Cursor(ByteBuffer bytes, int offset, int count) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.count = count;
+            next();
+        }
+
+        /**
+         * Moves on to the next position and returns it, or Long.MAX_VALUE
+         * once past the last.
+         */
+        long next() {
+            if (read == count) {
+                position = Long.MAX_VALUE;
+                return position;
+            }
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes.get(offset++);
+                delta |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            position += delta;
+            read++;
+            return position;
+        }
+
+        /**
+         * Moves on to the first position at or after target, if not there
+         * yet, and returns it.
+         */
+        long seek(long target) {
+            while (position < target) {
+                next();
+            }
+            return position;
+        }
+    }
+
+    /**
+     * A parsed search.  after and before are times in milliseconds, 0 if
+     * not given, and page counts from 1.
+     */
+    static final class Query {
+        final Set<String> words = new LinkedHashSet<String>();
+        String from;
+        long after;
+        long before;
+        int page = 1;
+
+        static Query parse(String text) {
+            Query query = new Query();
+            for (String token : text.trim().split("\\s+")) {
+                int colon = token.indexOf(':');
+                String option = colon < 0 ? "" : token.substring(0, colon + 1).toLowerCase();
+                String value = token.substring(colon + 1);
+                try {
+                    if (option.equals(FROM)) {
+                        query.from = value.toLowerCase();
+                    } else if (option.equals("after:")) {
+                        query.after = startOf(value);
+                    } else if (option.equals("before:")) {
+                        query.before = startOf(value);
+                    } else if (option.equals("page:")) {
+                        query.page = Math.max(1, Integer.parseInt(value));
+                    } else {
+                        query.words.addAll(words(token));
+                    }
+                } catch (DateTimeParseException e) {
+                    throw new IllegalArgumentException("Dates are written like 2024-01-31, not " + value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad page number " + value);
+                }
+            }
+            if (query.words.isEmpty() && (query.from == null || query.from.isEmpty())) {
+                throw new IllegalArgumentException("Search for at least one word, or from:name");
+            }
+            return query;
+        }
+
+        private static long startOf(String date) {
+            return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+    }
+}
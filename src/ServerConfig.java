@@ -0,0 +1,398 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Startup options for the chat server.  Options are passed on the
+ * command line as name=value pairs, for example
+ *
+ *     java ChatServer --mode=nio --event-loops=4
+ *
+ * Any option that is not given keeps the default shown below, so
+ * running the server without arguments behaves exactly as before.
+ */
+public class ServerConfig {
+
+    /**
+     * How connections are serviced.  THREADS starts one platform thread
+     * per client, VIRTUAL runs the same Handler on a virtual thread per
+     * client (Java 21 or later), and NIO multiplexes all clients over a
+     * few selector threads.
+     */
+    enum Mode { THREADS, VIRTUAL, NIO }
+
+    /**
+     * The port that the server listens on.
+     */
+    int port = 9001;
+
+    Mode mode = Mode.THREADS;
+
+    /**
+     * Number of selector threads used in NIO mode.
+     */
+    int eventLoops = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Length of the pending connection queue handed to bind().
+     */
+    int backlog = 1024;
+
+    /**
+     * Seconds between printed connection statistics, 0 to disable.
+     */
+    int statsInterval = 0;
+
+    /**
+     * What to do when a client's outbound queue is full, and how many
+     * lines or bytes it may hold; see OutboundQueue.
+     */
+    OutboundQueue.Policy outboundPolicy = OutboundQueue.Policy.DISCONNECT;
+    int outboundMaxMessages = 10000;
+    long outboundMaxBytes = 8L * 1024 * 1024;
+
+    /**
+     * How long join and leave notifications are collected before they
+     * are sent out together; see Presence.
+     */
+    long presenceWindowMillis = 50;
+
+    /**
+     * Directory of the message log, or empty to keep no log; see
+     * MessageLog.  Each segment file is logSegmentBytes long, only the
+     * latest logMaxSegments are kept, and the log is forced to disk at
+     * most every logFsyncMillis.
+     */
+    String logDir = "chat-log";
+    long logSegmentBytes = 64L * 1024 * 1024;
+    int logMaxSegments = 16;
+    long logFsyncMillis = 100;
+
+    /**
+     * Number of earlier messages replayed to a client that has just
+     * joined.
+     */
+    int historyLength = 50;
+
+    /**
+     * Whether the message log is indexed for /search, and about how much
+     * heap the index of the latest messages may take before it is
+     * written out; see SearchIndex.
+     */
+    boolean search = true;
+    long searchMemoryBytes = 16L * 1024 * 1024;
+
+    /**
+     * How long a disconnected binary client's session is kept for it to
+     * resume, 0 to free the name straight away; see SessionResumer.
+     */
+    long resumeGraceMillis = 30000;
+
+    /**
+     * The cluster addresses of every node, the same list on each node,
+     * or empty to run on its own; see Cluster.  nodeId is this node's
+     * position in the list.
+     */
+    List<InetSocketAddress> cluster = new ArrayList<InetSocketAddress>();
+    int nodeId = 0;
+
+    /**
+     * Port of the local HTTP endpoint that serves the Metrics for
+     * Prometheus, 0 to serve them over JMX only.
+     */
+    int metricsPort = 0;
+
+    /**
+     * Frames queued for one client are written together, up to
+     * writeBatchBytes at a time.  A client that was last written to
+     * less than writeLingerMicros ago is busy, and its next write waits
+     * up to that long for more frames to join it; an idle client is
+     * written to at once.  In NIO mode the wait is rounded up to whole
+     * milliseconds.  0 never waits.
+     */
+    int writeBatchBytes = 64 * 1024;
+    long writeLingerMicros = 0;
+
+    /**
+     * How many messages a second each client may send, with rateBurst
+     * allowed at once, and what happens to the ones over the limit; see
+     * RateLimiter.  addressRate and addressBurst limit all the clients
+     * from one IP address together, and connectRate and connectBurst how
+     * fast one address may open connections.  A rate of 0 is no limit.
+     * The address limits are off by default, since a load generator or
+     * a NAT puts many honest clients behind one address.
+     */
+    double rateLimit = 20;
+    int rateBurst = 50;
+    RateLimiter.Action rateAction = RateLimiter.Action.DELAY;
+    double addressRate = 0;
+    int addressBurst = 200;
+    double connectRate = 0;
+    int connectBurst = 20;
+
+    /**
+     * A client that has sent nothing for heartbeatIntervalMillis is sent
+     * PING, and one that has not answered heartbeatTimeoutMillis later is
+     * disconnected; see IdleTracker.  An interval of 0 never pings.
+     */
+    long heartbeatIntervalMillis = 30000;
+    long heartbeatTimeoutMillis = 10000;
+
+    /**
+     * Directory that uploaded files are kept in, or empty to turn
+     * attachments off, and the largest file accepted; see
+     * AttachmentStore.
+     */
+    String attachmentDir = "attachments";
+    long attachmentMaxBytes = 100L * 1024 * 1024;
+
+    /**
+     * Directory of the mailboxes that private messages for offline users
+     * are kept in, or empty to refuse such messages as before, how much
+     * each user's mailbox holds, how long a message is kept, and how many
+     * mailboxes and bytes of mail there may be in all; see Mailbox.
+     */
+    String mailboxDir = "mailbox";
+    int mailboxMaxMessages = 1000;
+    long mailboxMaxBytes = 4L * 1024 * 1024;
+    long mailboxTtlMillis = 7L * 24 * 60 * 60 * 1000;
+    int mailboxMaxBoxes = 100000;
+    long mailboxMaxTotalBytes = 1024L * 1024 * 1024;
+
+    /**
+     * Keystore with the server's certificate and key, or empty to talk
+     * plain TCP as before, and its password, which may be given in the
+     * CHAT_TLS_PASSWORD environment variable instead of on the command
+     * line.  Up to tlsSessionCacheSize sessions are kept for
+     * tlsSessionTimeoutSeconds so that reconnecting clients can resume
+     * them; see TlsChannel.
+     */
+    String tlsKeystore = "";
+    String tlsPassword = "";
+    int tlsSessionCacheSize = 20000;
+    int tlsSessionTimeoutSeconds = 3600;
+
+    /**
+     * The stages every chat message goes through, in order, or empty for
+     * none: profanity, which stars out the words listed one per line in
+     * profanityWords, links, which notices links and stops messages with
+     * any if blockLinks is set, mentions, which leaves a note in the
+     * mailbox of users away when they are mentioned, and audit, which
+     * writes the messages the others took notice of to auditLog; see
+     * MessagePipeline and PipelineStages.
+     */
+    String pipeline = "";
+    String profanityWords = "";
+    boolean blockLinks = false;
+    String auditLog = "audit.log";
+
+    /**
+     * Parses the command line arguments into a configuration.  Unknown
+     * options are rejected so that typos do not silently fall back to
+     * the defaults.
+     */
+    static ServerConfig parse(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            int split = arg.indexOf('=');
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+
+        ServerConfig config = new ServerConfig();
+        config.port = intOption(options, "port", config.port);
+        config.mode = Mode.valueOf(stringOption(options, "mode", config.mode.name()).toUpperCase());
+        config.eventLoops = intOption(options, "event-loops", config.eventLoops);
+        config.backlog = intOption(options, "backlog", config.backlog);
+        config.statsInterval = intOption(options, "stats-interval", config.statsInterval);
+        config.outboundPolicy = OutboundQueue.Policy.valueOf(stringOption(options, "outbound-policy",
+                config.outboundPolicy.name()).toUpperCase().replace('-', '_'));
+        config.outboundMaxMessages = intOption(options, "outbound-max-messages", config.outboundMaxMessages);
+        config.outboundMaxBytes = longOption(options, "outbound-max-bytes", config.outboundMaxBytes);
+        config.presenceWindowMillis = longOption(options, "presence-window-ms", config.presenceWindowMillis);
+        config.logDir = stringOption(options, "log-dir", config.logDir);
+        config.logSegmentBytes = longOption(options, "log-segment-bytes", config.logSegmentBytes);
+        config.logMaxSegments = intOption(options, "log-max-segments", config.logMaxSegments);
+        config.logFsyncMillis = longOption(options, "log-fsync-ms", config.logFsyncMillis);
+        config.historyLength = intOption(options, "history-length", config.historyLength);
+        config.search = Boolean.parseBoolean(stringOption(options, "search", String.valueOf(config.search)));
+        config.searchMemoryBytes = longOption(options, "search-memory-bytes", config.searchMemoryBytes);
+        config.resumeGraceMillis = longOption(options, "resume-grace-ms", config.resumeGraceMillis);
+        for (String node : stringOption(options, "cluster", "").split(",")) {
+            if (!node.trim().isEmpty()) {
+                int colon = node.lastIndexOf(':');
+                config.cluster.add(new InetSocketAddress(node.substring(0, colon).trim(),
+                        Integer.parseInt(node.substring(colon + 1).trim())));
+            }
+        }
+        config.nodeId = intOption(options, "node-id", config.nodeId);
+        config.metricsPort = intOption(options, "metrics-port", config.metricsPort);
+        config.writeBatchBytes = intOption(options, "write-batch-bytes", config.writeBatchBytes);
+        config.writeLingerMicros = longOption(options, "write-linger-us", config.writeLingerMicros);
+        config.rateLimit = doubleOption(options, "rate-limit", config.rateLimit);
+        config.rateBurst = intOption(options, "rate-burst", config.rateBurst);
+        config.rateAction = RateLimiter.Action.valueOf(stringOption(options, "rate-action",
+                config.rateAction.name()).toUpperCase());
+        config.addressRate = doubleOption(options, "address-rate-limit", config.addressRate);
+        config.addressBurst = intOption(options, "address-rate-burst", config.addressBurst);
+        config.connectRate = doubleOption(options, "connect-rate-limit", config.connectRate);
+        config.connectBurst = intOption(options, "connect-rate-burst", config.connectBurst);
+        config.heartbeatIntervalMillis = longOption(options, "heartbeat-interval-ms",
+                config.heartbeatIntervalMillis);
+        config.heartbeatTimeoutMillis = longOption(options, "heartbeat-timeout-ms", config.heartbeatTimeoutMillis);
+        config.attachmentDir = stringOption(options, "attachment-dir", config.attachmentDir);
+        config.attachmentMaxBytes = longOption(options, "attachment-max-bytes", config.attachmentMaxBytes);
+        config.mailboxDir = stringOption(options, "mailbox-dir", config.mailboxDir);
+        config.mailboxMaxMessages = intOption(options, "mailbox-max-messages", config.mailboxMaxMessages);
+        config.mailboxMaxBytes = longOption(options, "mailbox-max-bytes", config.mailboxMaxBytes);
+        config.mailboxTtlMillis = longOption(options, "mailbox-ttl-ms", config.mailboxTtlMillis);
+        config.mailboxMaxBoxes = intOption(options, "mailbox-max-boxes", config.mailboxMaxBoxes);
+        config.mailboxMaxTotalBytes = longOption(options, "mailbox-max-total-bytes", config.mailboxMaxTotalBytes);
+        config.pipeline = stringOption(options, "pipeline", config.pipeline);
+        config.profanityWords = stringOption(options, "profanity-words", config.profanityWords);
+        config.blockLinks = Boolean.parseBoolean(stringOption(options, "block-links",
+                String.valueOf(config.blockLinks)));
+        config.auditLog = stringOption(options, "audit-log", config.auditLog);
+        config.tlsKeystore = stringOption(options, "tls-keystore", config.tlsKeystore);
+        String environmentPassword = System.getenv("CHAT_TLS_PASSWORD");
+        config.tlsPassword = stringOption(options, "tls-password",
+                environmentPassword != null ? environmentPassword : config.tlsPassword);
+        config.tlsSessionCacheSize = intOption(options, "tls-session-cache-size", config.tlsSessionCacheSize);
+        config.tlsSessionTimeoutSeconds = intOption(options, "tls-session-timeout-s",
+                config.tlsSessionTimeoutSeconds);
+
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + options.keySet());
+        }
+        return config;
+    }
+
+    /**
+     * Creates the outbound queue for a newly connected client.
+     */
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundPolicy, outboundMaxMessages, outboundMaxBytes);
+    }
+
+    /**
+     * Opens the message log, with its search index unless search is
+     * turned off, or returns null if logging is turned off.
+     */
+    MessageLog openMessageLog() throws IOException {
+        if (logDir.isEmpty()) {
+            return null;
+        }
+        SearchIndex index = search ? new SearchIndex(new File(logDir, "search"), searchMemoryBytes) : null;
+        return new MessageLog(new File(logDir), logSegmentBytes, logFsyncMillis, historyLength, logMaxSegments,
+                index);
+    }
+
+    /**
+     * Opens the attachment store, or returns null if attachments are
+     * turned off.
+     */
+    AttachmentStore openAttachmentStore() throws IOException {
+        if (attachmentDir.isEmpty()) {
+            return null;
+        }
+        return new AttachmentStore(new File(attachmentDir), attachmentMaxBytes);
+    }
+
+    /**
+     * Opens the mailboxes, or returns null if messages for offline users
+     * are not kept.
+     */
+    Mailbox openMailbox() throws IOException {
+        if (mailboxDir.isEmpty()) {
+            return null;
+        }
+        if (mailboxTtlMillis <= 0) {
+            throw new IllegalArgumentException("mailbox-ttl-ms must be positive");
+        }
+        return new Mailbox(new File(mailboxDir), mailboxMaxMessages, mailboxMaxBytes, mailboxTtlMillis,
+                mailboxMaxBoxes, mailboxMaxTotalBytes);
+    }
+
+    /**
+     * Builds the message pipeline, or returns null if there are no
+     * stages.  The mentions stage leaves its notes in the given mailbox.
+     */
+    MessagePipeline newMessagePipeline(SessionRegistry sessions, Mailbox mailbox) throws IOException {
+        return PipelineStages.build(pipeline, this, sessions, mailbox);
+    }
+
+    /**
+     * Loads the server's TLS certificate, or returns null if connections
+     * are not encrypted.
+     */
+    SSLContext newTlsContext() throws IOException {
+        if (tlsKeystore.isEmpty()) {
+            return null;
+        }
+        return TlsChannel.serverContext(new File(tlsKeystore), tlsPassword.toCharArray(), tlsSessionCacheSize,
+                tlsSessionTimeoutSeconds);
+    }
+
+    /**
+     * Creates the resumer, which keeps as many unacknowledged messages
+     * for each session as its outbound queue may hold.
+     */
+    SessionResumer newSessionResumer(SessionRegistry sessions, Presence presence) {
+        return new SessionResumer(sessions, presence, resumeGraceMillis, outboundMaxMessages);
+    }
+
+    /**
+     * Creates the limiter shared by every connection.
+     */
+    RateLimiter newRateLimiter() {
+        return new RateLimiter(rateAction, rateLimit, rateBurst, addressRate, addressBurst, connectRate,
+                connectBurst);
+    }
+
+    /**
+     * Creates the tracker that pings quiet clients and reaps dead ones.
+     */
+    IdleTracker newIdleTracker() {
+        return new IdleTracker(heartbeatIntervalMillis, heartbeatTimeoutMillis);
+    }
+
+    /**
+     * Joins the cluster, or returns null if this server runs on its own.
+     */
+    Cluster startCluster(SessionRegistry sessions, MessageRouter router, Presence presence) throws IOException {
+        if (cluster.isEmpty()) {
+            return null;
+        }
+        Cluster joined = new Cluster(cluster, nodeId, sessions, router, presence);
+        joined.start();
+        return joined;
+    }
+
+    private static String stringOption(Map<String, String> options, String name, String defaultValue) {
+        String value = options.remove(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.remove(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static double doubleOption(Map<String, String> options, String name, double defaultValue) {
+        String value = options.remove(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private static long longOption(Map<String, String> options, String name, long defaultValue) {
+        String value = options.remove(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+}
@@ -0,0 +1,351 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One connected client as seen by the rest of the server.  The
+ * threaded Handler and the NIO connection both extend this, so that
+ * registration, broadcasting and private messages work the same way
+ * whichever way the client is being serviced.
+ *
+ * Sending never writes to the socket directly.  The encoded Frame is
+ * added to the session's OutboundQueue, and the subclass is told that
+ * there is something to write.  A client whose queue overflows under
+ * the DISCONNECT policy is evicted.
+ *
+ * A session that has been given a resume token numbers every chat
+ * message it is sent, with a SEQUENCE frame in front of the shared
+ * message bytes, and keeps the message until the client acknowledges
+ * it.  A client that lost its connection can then take the session
+ * over from a new one and be sent just what it missed; see
+ * SessionResumer.
+ */
+public abstract class Session {
+
+    /**
+     * The screen name, or null until the registry has accepted one.
+     */
+    private volatile String name;
+
+    protected final OutboundQueue outbound;
+
+    /**
+     * The protocol this client speaks.  Every client starts with text
+     * and may switch to binary before it has a name.
+     */
+    private volatile Frame.Encoding encoding = Frame.Encoding.TEXT;
+
+    /**
+     * "name: " in UTF-8, put in front of every message this client sends.
+     */
+    private volatile byte[] messagePrefix;
+
+    /**
+     * Names of the rooms this session is in; see Rooms.
+     */
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Token a reconnecting client presents to take this session over,
+     * or null if the session cannot be resumed.
+     */
+    private volatile String resumeToken;
+
+    /**
+     * The session that has taken this one over, to which everything
+     * still sent here is passed on.
+     */
+    private volatile Session successor;
+
+    /**
+     * The file this client is in the middle of uploading, or null.  Only
+     * the thread reading from the client uses it.
+     */
+    AttachmentStore.Upload upload;
+
+    /**
+     * Files waiting to be sent to this client, the first one being sent
+     * now.  Guarded by itself.
+     */
+    private final ArrayDeque<AttachmentStore.Download> downloads = new ArrayDeque<AttachmentStore.Download>();
+
+    // Guarded by resumeLock.
+    private final ReentrantLock resumeLock = new ReentrantLock();
+    private final ArrayDeque<Retained> retained = new ArrayDeque<Retained>();
+    private int retainLimit;
+    private long sequence;
+    private boolean expired;
+
+    protected Session(OutboundQueue outbound) {
+        this.outbound = outbound;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    void setName(String name) {
+        this.name = name;
+        this.messagePrefix = (name + ": ").getBytes(StandardCharsets.UTF_8);
+    }
+
+    byte[] messagePrefix() {
+        return messagePrefix;
+    }
+
+    Set<String> rooms() {
+        return rooms;
+    }
+
+    public Frame.Encoding encoding() {
+        return encoding;
+    }
+
+    /**
+     * Switches this client to the binary protocol.  Frames queued from
+     * now on are encoded as binary; anything already queued keeps the
+     * encoding it was queued with.
+     */
+    void useBinary() {
+        encoding = Frame.Encoding.BINARY;
+    }
+
+    public OutboundQueue outbound() {
+        return outbound;
+    }
+
+    String resumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * Makes the session resumable with the given token, keeping at most
+     * retainLimit unacknowledged messages.
+     */
+    void enableResume(String token, int retainLimit) {
+        resumeLock.lock();
+        try {
+            this.resumeToken = token;
+            this.retainLimit = retainLimit;
+        } finally {
+            resumeLock.unlock();
+        }
+    }
+
+    boolean superseded() {
+        return successor != null;
+    }
+
+    /**
+     * Forgets the retained messages up to and including a sequence
+     * number the client has acknowledged.
+     */
+    void acknowledge(long sequence) {
+        resumeLock.lock();
+        try {
+            while (!retained.isEmpty() && retained.peek().sequence <= sequence) {
+                retained.poll();
+            }
+        } finally {
+            resumeLock.unlock();
+        }
+    }
+
+    /**
+     * Hands this session over to next: next takes on the name and the
+     * token, is sent accepted and then every retained message after
+     * lastSequence, and from then on anything sent here goes to next.
+     * Returns false if the session has already expired or been taken
+     * over.
+     */
+    boolean handOver(Session next, long lastSequence, Frame accepted) {
+        resumeLock.lock();
+        try {
+            if (expired || successor != null) {
+                return false;
+            }
+            next.setName(name);
+            next.enableResume(resumeToken, retainLimit);
+            next.send(accepted);
+            next.resumeLock.lock();
+            try {
+                for (Retained message : retained) {
+                    if (message.sequence > lastSequence) {
+                        next.queueNumbered(message.sequence, message.bytes);
+                    }
+                }
+                next.sequence = sequence;
+            } finally {
+                next.resumeLock.unlock();
+            }
+            retained.clear();
+            successor = next;
+            return true;
+        } finally {
+            resumeLock.unlock();
+        }
+    }
+
+    /**
+     * Marks a disconnected session as no longer resumable.  Returns false
+     * if it has been taken over in the meantime.
+     */
+    boolean expire() {
+        resumeLock.lock();
+        try {
+            if (successor != null) {
+                return false;
+            }
+            expired = true;
+            retained.clear();
+            return true;
+        } finally {
+            resumeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a frame to the client.  Safe to call from any thread, and
+     * does nothing if the client has gone away.  The frame is encoded
+     * at most once per protocol however many clients it is sent to.
+     */
+    public void send(Frame frame) {
+        Session next = successor;
+        if (next != null) {
+            next.send(frame);
+        } else if (frame.sequenced && resumeToken != null) {
+            sendNumbered(frame.encoded(encoding));
+        } else {
+            offer(null, frame.encoded(encoding), frame.coalescingKey);
+        }
+    }
+
+    /**
+     * Queues a file to be sent once the ones before it have been, and
+     * wakes the writer up.
+     */
+    void download(AttachmentStore.Download download) {
+        synchronized (downloads) {
+            downloads.add(download);
+        }
+        outboundReady();
+    }
+
+    /**
+     * Returns the file the writer should send a chunk of next, or null.
+     */
+    AttachmentStore.Download currentDownload() {
+        synchronized (downloads) {
+            return downloads.peek();
+        }
+    }
+
+    /**
+     * Called by the writer once the current file has been sent.
+     */
+    void downloadFinished(AttachmentStore.Download download) {
+        synchronized (downloads) {
+            downloads.remove(download);
+        }
+        download.close();
+    }
+
+    /**
+     * Closes the files of unfinished uploads and downloads.  Called by
+     * the subclasses when the connection closes.
+     */
+    protected void closeTransfers() {
+        AttachmentStore.Upload unfinished = upload;
+        if (unfinished != null) {
+            upload = null;
+            unfinished.discard();
+        }
+        synchronized (downloads) {
+            for (AttachmentStore.Download download : downloads) {
+                download.close();
+            }
+            downloads.clear();
+        }
+    }
+
+    /**
+     * Numbers a chat message, queues it and keeps it until it is
+     * acknowledged.  This happens under the lock, so that the numbers
+     * go out in order and a hand over cannot slip in between and lose
+     * or reorder a message.
+     */
+    private void sendNumbered(byte[] bytes) {
+        resumeLock.lock();
+        try {
+            Session next = successor;
+            if (next != null) {
+                next.sendNumbered(bytes);
+                return;
+            }
+            queueNumbered(++sequence, bytes);
+        } finally {
+            resumeLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a message behind its SEQUENCE frame.  Called with resumeLock
+     * held.
+     */
+    private void queueNumbered(long number, byte[] bytes) {
+        if (!expired) {
+            retained.add(new Retained(number, bytes));
+            if (retained.size() > retainLimit) {
+                retained.poll();
+            }
+        }
+        byte[] prefix = new byte[BinaryFrames.HEADER_LENGTH + 8];
+        BinaryFrames.writeHeader(prefix, 0, FrameType.SEQUENCE, 8);
+        BinaryFrames.writeLong(prefix, BinaryFrames.HEADER_LENGTH, number);
+        offer(prefix, bytes, null);
+    }
+
+    private void offer(byte[] prefix, byte[] bytes, String coalescingKey) {
+        switch (outbound.offer(prefix, bytes, coalescingKey)) {
+        case ACCEPTED:
+            Metrics.messagesSent.increment();
+            outboundReady();
+            break;
+        case OVERFLOW:
+            HandlerStats.evictions.incrementAndGet();
+            System.out.println("Disconnecting slow client " + name + " with "
+                    + outbound.depth() + " lines queued");
+            close();
+            break;
+        case CLOSED:
+            break;
+        }
+    }
+
+    /**
+     * Called after a line has been queued.  The subclass makes sure that
+     * its writer will get round to the queue.
+     */
+    protected abstract void outboundReady();
+
+    /**
+     * Disconnects the client.  May be called from any thread, more than
+     * once.
+     */
+    public abstract void close();
+
+    /**
+     * A numbered message kept for a resume, as encoded for this client.
+     */
+    private static final class Retained {
+        final long sequence;
+        final byte[] bytes;
+
+        Retained(long sequence, byte[] bytes) {
+            this.sequence = sequence;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The sessions of all clients that have submitted a unique screen name.
+ *
+ * This replaces the separate set of names, map of writers by name and
+ * set of all writers that the server used to keep.  A single
+ * ConcurrentHashMap holds everything: claiming a name is an atomic
+ * putIfAbsent, looking up a recipient is a plain get, and broadcasting
+ * iterates the map without locking.  The iteration is weakly consistent,
+ * so it never throws ConcurrentModificationException while other
+ * clients join or leave; a client that joins during a broadcast may or
+ * may not see that message, exactly as if it had joined a moment
+ * earlier or later.
+ *
+ * The registry also holds the Rooms, so that a session that leaves the
+ * server leaves its rooms with it, and one that is resumed keeps them.
+ *
+ * When the server is part of a Cluster a name must also be claimed
+ * from the node that owns it before it is registered here, and the
+ * registry keeps a second map of the users on other nodes and which
+ * node each of them is on, so that a private message can be passed to
+ * the right node.
+ */
+public class SessionRegistry {
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+    private final Rooms rooms = new Rooms();
+
+    /**
+     * Users on the other nodes of the cluster, and the node of each.
+     */
+    private final ConcurrentHashMap<String, Integer> remote = new ConcurrentHashMap<String, Integer>();
+
+    private volatile Cluster cluster;
+
+    void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+        rooms.setCluster(cluster);
+    }
+
+    /**
+     * Returns the cluster this server is part of, or null.
+     */
+    public Cluster cluster() {
+        return cluster;
+    }
+
+    /**
+     * Claims a screen name for a session.  Returns false, leaving the
+     * session unnamed, if somebody else already has that name.  Waits
+     * for the owner of the name if it is on another node.
+     */
+    public boolean register(String name, Session session) {
+        long start = System.nanoTime();
+        try {
+            return claim(name).get() && registerClaimed(name, session);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } finally {
+            Metrics.registrationNanos.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Asks the cluster for a name, before registerClaimed.  Completes
+     * with false if somebody else has it.  Without a cluster this only
+     * checks the local names.
+     */
+    public CompletableFuture<Boolean> claim(String name) {
+        Cluster current = cluster;
+        if (current == null) {
+            return CompletableFuture.completedFuture(!sessions.containsKey(name));
+        }
+        return current.claim(name);
+    }
+
+    /**
+     * Registers a session under a name that has been claimed for it.
+     * Returns false if the name has been taken locally in the meantime.
+     */
+    public boolean registerClaimed(String name, Session session) {
+        if (sessions.putIfAbsent(name, session) != null) {
+            return false;
+        }
+        session.setName(name);
+        return true;
+    }
+
+    /**
+     * Gives back a claimed name, for a session that has gone away
+     * before it could be registered.
+     */
+    public void releaseClaim(String name) {
+        Cluster current = cluster;
+        if (current != null) {
+            current.release(name);
+        }
+    }
+
+    /**
+     * Frees the session's name.  Returns true if the session was
+     * registered, so that its departure is announced exactly once.
+     */
+    public boolean unregister(Session session) {
+        String name = session.name();
+        if (name == null || !sessions.remove(name, session)) {
+            return false;
+        }
+        rooms.leaveAll(session);
+        releaseClaim(name);
+        return true;
+    }
+
+    /**
+     * Puts next in place of previous under previous's name, if previous
+     * is still registered.  Used when a client resumes its session from
+     * a new connection.
+     */
+    public boolean replace(Session previous, Session next) {
+        String name = previous.name();
+        if (name == null || !sessions.replace(name, previous, next)) {
+            return false;
+        }
+        rooms.transfer(previous, next);
+        return true;
+    }
+
+    /**
+     * Returns the session registered under a name, or null.
+     */
+    public Session lookup(String name) {
+        return sessions.get(name);
+    }
+
+    public boolean contains(String name) {
+        return sessions.containsKey(name);
+    }
+
+    /**
+     * Records a user on another node.  Returns true if the user was not
+     * known before, so that the join is announced exactly once.
+     */
+    boolean remoteJoined(String name, int node) {
+        return remote.put(name, node) == null;
+    }
+
+    /**
+     * Forgets a user on another node.  Returns true if the user was
+     * known there.
+     */
+    boolean remoteLeft(String name, int node) {
+        return remote.remove(name, node);
+    }
+
+    /**
+     * Forgets every user on a node that has gone down, and returns their
+     * names.
+     */
+    List<String> remoteNodeDown(int node) {
+        List<String> names = new ArrayList<String>();
+        for (Map.Entry<String, Integer> user : remote.entrySet()) {
+            if (user.getValue() == node && remote.remove(user.getKey(), node)) {
+                names.add(user.getKey());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns the node a user on another node is on, or null.
+     */
+    public Integer remoteNode(String name) {
+        return remote.get(name);
+    }
+
+    public Set<String> remoteNames() {
+        return remote.keySet();
+    }
+
+    public Set<String> names() {
+        return sessions.keySet();
+    }
+
+    public Collection<Session> sessions() {
+        return sessions.values();
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public Rooms rooms() {
+        return rooms;
+    }
+
+    /**
+     * Sends a frame to every registered session and returns how many
+     * there were.  The frame is encoded once and the same bytes are
+     * queued for everybody.
+     */
+    public int broadcast(Frame frame) {
+        int recipients = 0;
+        for (Session session : sessions.values()) {
+            session.send(frame);
+            recipients++;
+        }
+        return recipients;
+    }
+}
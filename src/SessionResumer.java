@@ -0,0 +1,138 @@
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets a client whose connection dropped carry on where it left off.
+ *
+ * A binary client is given a resume token with NAMEACCEPTED.  When its
+ * connection goes, its name stays in the registry for a grace period
+ * instead of being freed, and nobody is told that it has left.  If the
+ * client reconnects within that time it sends RESUME with the token and
+ * the last sequence number it received, and its new connection takes
+ * the old session over: it gets NAMEACCEPTED again, its own copy of the
+ * roster and only the messages it missed.  Other clients see no
+ * USERLEFT or JOINED at all.  Once the grace period is over the session
+ * is removed as it always was.
+ *
+ * Text clients have no sequence numbers and are removed straight away.
+ */
+public class SessionResumer {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SessionRegistry sessions;
+    private final Presence presence;
+    private final long graceMillis;
+    private final int retainLimit;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Sessions by resume token.
+     */
+    private final Map<String, Session> tokens = new ConcurrentHashMap<String, Session>();
+
+    /**
+     * Creates the resumer.  With a grace period of 0 no session can be
+     * resumed.  retainLimit is the most unacknowledged messages kept for
+     * each session.
+     */
+    public SessionResumer(SessionRegistry sessions, Presence presence, long graceMillis, int retainLimit) {
+        this.sessions = sessions;
+        this.presence = presence;
+        this.graceMillis = graceMillis;
+        this.retainLimit = retainLimit;
+        if (graceMillis > 0) {
+            timer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "session-resume");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            timer = null;
+        }
+    }
+
+    /**
+     * Acknowledges a newly registered session's name, with a resume token
+     * if the client can use one.
+     */
+    public void accepted(Session session) {
+        if (timer == null || session.encoding() != Frame.Encoding.BINARY) {
+            session.send(Frame.of(FrameType.NAMEACCEPTED));
+            return;
+        }
+        String token = newToken();
+        session.enableResume(token, retainLimit);
+        tokens.put(token, session);
+        session.send(Frame.of(FrameType.NAMEACCEPTED, token));
+    }
+
+    /**
+     * Handles a RESUME frame from a session that has no name yet.
+     * Returns true if the session has taken over the one named by the
+     * token, or false if the client has to submit a name instead.
+     */
+    public boolean resume(Session session, InboundFrame frame) {
+        if (frame.length < 8) {
+            return false;
+        }
+        long lastSequence = BinaryFrames.readLong(frame.buffer, frame.offset);
+        String token = new String(frame.buffer, frame.offset + 8, frame.length - 8, StandardCharsets.UTF_8);
+        Session previous = tokens.get(token);
+        if (previous == null
+                || !previous.handOver(session, lastSequence, Frame.of(FrameType.NAMEACCEPTED, token))) {
+            return false;
+        }
+        sessions.replace(previous, session);
+        tokens.replace(token, previous, session);
+        // the old connection may not have noticed that it is dead yet
+        previous.close();
+        presence.roster(session);
+        System.out.println("<<< " + session.name() + " has resumed the conversation >>>");
+        return true;
+    }
+
+    /**
+     * Called once a session's connection has gone.  A resumable session
+     * keeps its name for the grace period; any other is removed and its
+     * departure announced.
+     */
+    public void disconnected(final Session session) {
+        String name = session.name();
+        if (name == null || session.superseded()) {
+            return;
+        }
+        if (timer != null && session.resumeToken() != null) {
+            timer.schedule(() -> expire(session), graceMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (sessions.unregister(session)) {
+            presence.left(name);
+        }
+    }
+
+    private void expire(Session session) {
+        if (!session.expire()) {
+            return;
+        }
+        tokens.remove(session.resumeToken(), session);
+        if (sessions.unregister(session)) {
+            presence.left(session.name());
+        }
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return token.toString();
+    }
+}
@@ -0,0 +1,402 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A non-blocking client socket with TLS in between, for the NIO server.
+ * Reads return the decrypted bytes and writes take the plain ones, so a
+ * Connection uses it just as it would use the SocketChannel itself, on
+ * its event loop thread and without any thread of its own.
+ *
+ * The handshake is driven by reading: whatever the SSLEngine has to say
+ * in return is written straight away, and its delegated tasks run on
+ * the loop, since they are the handshake's cost whichever thread pays
+ * it.  Writes only take plain bytes once the handshake is over.
+ *
+ * Encryption needs buffers of more than one TLS record each way.  They
+ * belong to the event loop and are shared by all of its clients, as the
+ * read buffer is; a client only holds on to bytes of its own when a
+ * record arrives in pieces or the socket does not take a whole write.
+ *
+ * The server's SSLContext caches sessions, so a client that comes back
+ * within the session timeout resumes its session, and the handshake
+ * skips the certificate and key exchange.  Handshakes, resumptions and
+ * the time spent in the SSLEngine on each connection are kept in
+ * Metrics.
+ */
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final ByteBuffer[] NOTHING = { ByteBuffer.allocate(0) };
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Buffers buffers;
+
+    /**
+     * Encrypted bytes of an incomplete record, carried over to the next
+     * read, or null.
+     */
+    private ByteBuffer inCarry;
+
+    /**
+     * Encrypted bytes the socket has not taken yet, or null.  Nothing
+     * more is encrypted until they have been written.
+     */
+    private ByteBuffer outCarry;
+
+    private boolean handshaking = true;
+    private boolean closed;
+
+    /**
+     * When the connection was accepted, for the handshake time and for
+     * telling a resumed session from a new one, and the nanoseconds
+     * spent in the SSLEngine since.
+     */
+    private final long startNanos = System.nanoTime();
+    private final long startMillis = System.currentTimeMillis();
+    private long cryptoNanos;
+
+    /**
+     * Scratch buffers shared by the clients of one event loop.
+     * Complete records are decrypted into the caller's buffer, which
+     * must hold at least as much as netIn.
+     */
+    static final class Buffers {
+        final ByteBuffer netIn;
+        final ByteBuffer netOut;
+        final int packetSize;
+
+        Buffers(SSLContext context) {
+            SSLSession session = context.createSSLEngine().getSession();
+            packetSize = session.getPacketBufferSize();
+            netIn = ByteBuffer.allocate(packetSize);
+            // a few records per write, as a gathering write sends a batch
+            netOut = ByteBuffer.allocate(4 * packetSize);
+        }
+
+        /**
+         * The smallest read buffer that decrypted records always fit in.
+         */
+        int readBufferSize() {
+            return netIn.capacity();
+        }
+    }
+
+    TlsChannel(SocketChannel channel, SSLEngine engine, Buffers buffers) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        this.buffers = buffers;
+        engine.setUseClientMode(false);
+        engine.beginHandshake();
+    }
+
+    /**
+     * Loads a keystore, PKCS12 unless its name ends in .jks, and returns
+     * a server context that keeps up to sessionCacheSize sessions for
+     * sessionTimeoutSeconds for clients to resume.  A self-signed one for
+     * trying it out on localhost is made with
+     *
+     *     keytool -genkeypair -alias chat -keyalg EC -dname CN=localhost
+     *         -ext san=dns:localhost,ip:127.0.0.1 -keystore chat.p12
+     */
+    static SSLContext serverContext(File keystore, char[] password, int sessionCacheSize, int sessionTimeoutSeconds)
+            throws IOException {
+        try {
+            KeyStore keys = KeyStore.getInstance(keystore.getName().endsWith(".jks") ? "JKS" : "PKCS12");
+            InputStream in = new FileInputStream(keystore);
+            try {
+                keys.load(in, password);
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            factory.init(keys, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(factory.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeoutSeconds);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use keystore " + keystore + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Does the handshake of a blocking SSLSocket, as the threaded server
+     * has one, counting it in the metrics.  The time the socket spends
+     * encrypting is not told apart from the time it waits, so only the
+     * NIO server measures that.
+     */
+    static void handshake(SSLSocket socket) throws IOException {
+        long startNanos = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        try {
+            socket.startHandshake();
+        } catch (SSLException e) {
+            Metrics.tlsFailures.increment();
+            throw e;
+        }
+        handshaken(socket.getSession(), startNanos, startMillis);
+    }
+
+    /**
+     * A resumed session was created by an earlier handshake.
+     */
+    private static void handshaken(SSLSession session, long startNanos, long startMillis) {
+        Metrics.tlsHandshakes.increment();
+        if (session.getCreationTime() < startMillis) {
+            Metrics.tlsResumed.increment();
+        }
+        Metrics.tlsHandshakeNanos.record(System.nanoTime() - startNanos);
+    }
+
+    boolean handshaking() {
+        return handshaking;
+    }
+
+    /**
+     * Returns true if encrypted bytes are waiting for the socket.
+     */
+    boolean hasPendingOutput() {
+        return outCarry != null;
+    }
+
+    /**
+     * Reads from the socket and decrypts every complete record into dst,
+     * answering the handshake on the way.  Returns the number of bytes
+     * decrypted, which is 0 while the handshake is going on, or -1 once
+     * the client has closed the connection.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ByteBuffer netIn = buffers.netIn;
+        netIn.clear();
+        if (inCarry != null) {
+            netIn.put(inCarry);
+            inCarry = null;
+        }
+        int read = channel.read(netIn);
+        netIn.flip();
+        int produced = 0;
+        try {
+            while (netIn.hasRemaining()) {
+                long start = System.nanoTime();
+                SSLEngineResult result = engine.unwrap(netIn, dst);
+                cryptoNanos += System.nanoTime() - start;
+                produced += result.bytesProduced();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    return produced > 0 ? produced : -1;
+                }
+                if (result.getStatus() != SSLEngineResult.Status.OK) {
+                    // the rest of a record is still to come
+                    break;
+                }
+                handshake(result.getHandshakeStatus());
+            }
+        } catch (SSLException e) {
+            if (handshaking) {
+                Metrics.tlsFailures.increment();
+            }
+            throw e;
+        }
+        if (netIn.hasRemaining()) {
+            if (netIn.remaining() == netIn.capacity()) {
+                throw new SSLException("TLS record too large");
+            }
+            inCarry = ByteBuffer.allocate(netIn.remaining());
+            inCarry.put(netIn).flip();
+        }
+        if (read < 0 && produced == 0) {
+            return -1;
+        }
+        return produced;
+    }
+
+    /**
+     * Carries the handshake on from the given status for as long as it
+     * does not need to hear from the client.  Messages for the client
+     * are queued behind whatever it has not been sent yet.
+     */
+    private void handshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+            case FINISHED:
+                handshaking = false;
+                handshaken(engine.getSession(), startNanos, startMillis);
+                // the server may have a session ticket to send after it
+                status = engine.getHandshakeStatus();
+                break;
+            case NEED_TASK:
+                long start = System.nanoTime();
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                cryptoNanos += System.nanoTime() - start;
+                status = engine.getHandshakeStatus();
+                break;
+            case NEED_WRAP:
+                ByteBuffer netOut = buffers.netOut;
+                netOut.clear();
+                SSLEngineResult result = wrap(NOTHING, 0, 1, netOut);
+                netOut.flip();
+                send(netOut);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    return;
+                }
+                status = result.getHandshakeStatus();
+                break;
+            default:
+                return;
+            }
+        }
+    }
+
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer netOut) throws SSLException {
+        long start = System.nanoTime();
+        try {
+            return engine.wrap(srcs, offset, length, netOut);
+        } finally {
+            cryptoNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Writes encrypted bytes to the socket, or queues them behind the
+     * ones it has not taken yet, and keeps whatever it does not take.
+     */
+    private void send(ByteBuffer netOut) throws IOException {
+        if (!netOut.hasRemaining()) {
+            return;
+        }
+        if (outCarry == null) {
+            channel.write(netOut);
+            if (netOut.hasRemaining()) {
+                outCarry = ByteBuffer.allocate(netOut.remaining());
+                outCarry.put(netOut).flip();
+            }
+            return;
+        }
+        ByteBuffer joined = ByteBuffer.allocate(outCarry.remaining() + netOut.remaining());
+        joined.put(outCarry).put(netOut).flip();
+        outCarry = joined;
+    }
+
+    /**
+     * Writes the encrypted bytes the socket did not take before, and
+     * returns true if there are none left and the handshake is over, so
+     * that plain bytes may be written.
+     */
+    boolean flush() throws IOException {
+        if (outCarry != null) {
+            channel.write(outCarry);
+            if (outCarry.hasRemaining()) {
+                return false;
+            }
+            outCarry = null;
+        }
+        return !handshaking;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts as many records of srcs as fit in the loop's buffer and
+     * writes them in one go.  Returns the number of plain bytes taken,
+     * which the socket may not all have been sent yet, or 0 if earlier
+     * ones are still waiting for it.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!flush()) {
+            return 0;
+        }
+        ByteBuffer netOut = buffers.netOut;
+        netOut.clear();
+        long consumed = 0;
+        SSLEngineResult result = null;
+        while (netOut.remaining() >= buffers.packetSize && remaining(srcs, offset, length)) {
+            result = wrap(srcs, offset, length, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS connection closed");
+            }
+            consumed += result.bytesConsumed();
+            if (result.getStatus() != SSLEngineResult.Status.OK
+                    || result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                break;
+            }
+        }
+        netOut.flip();
+        send(netOut);
+        if (result != null) {
+            handshake(result.getHandshakeStatus());
+        }
+        return consumed;
+    }
+
+    private static boolean remaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Says goodbye to the client if the socket takes it straight away,
+     * closes the socket and records what the connection cost.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Metrics.tlsCryptoNanos.record(cryptoNanos);
+        try {
+            if (!handshaking && outCarry == null) {
+                engine.closeOutbound();
+                ByteBuffer netOut = buffers.netOut;
+                netOut.clear();
+                wrap(NOTHING, 0, 1, netOut);
+                netOut.flip();
+                channel.write(netOut);
+            }
+        } catch (IOException e) {
+            // the client is gone already
+        } finally {
+            channel.close();
+        }
+    }
+}